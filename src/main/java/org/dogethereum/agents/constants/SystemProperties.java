@@ -258,6 +258,38 @@ public class SystemProperties {
         return getLongProperty("deposited.funds.limit", 0);
     }
 
+    public long superblockCacheMaxEntries() {
+        return getLongProperty("superblock.cache.max.entries", 1000);
+    }
+
+    public long superblockCacheMaxBytes() {
+        return getLongProperty("superblock.cache.max.bytes", 0);
+    }
+
+    public long superblockCacheExpirySeconds() {
+        return getLongProperty("superblock.cache.expiry.seconds", 0);
+    }
+
+    public long dogeBlockCacheMaxBytes() {
+        return getLongProperty("doge.block.cache.max.bytes", 16000000);
+    }
+
+    public int dogeSyncBatchBlocks() {
+        return (int) getLongProperty("doge.sync.batch.blocks", 2000);
+    }
+
+    public long dogeSyncBatchMillis() {
+        return getLongProperty("doge.sync.batch.millis", 1000);
+    }
+
+    public long superblockPruneDepth() {
+        return getLongProperty("superblock.prune.depth", 0);
+    }
+
+    public long superblockPrunePeriodSeconds() {
+        return getLongProperty("superblock.prune.period.seconds", 3600);
+    }
+
     protected String getStringProperty(String propertyName, String defaultValue) {
         return config.hasPath(propertyName) ? config.getString(propertyName) : defaultValue;
     }
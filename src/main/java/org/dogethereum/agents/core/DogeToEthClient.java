@@ -53,6 +53,19 @@ public class DogeToEthClient {
 
     public DogeToEthClient() {}
 
+    /**
+     * Constructor for using the client without Spring and without starting its timer, e.g. in tests.
+     */
+    DogeToEthClient(EthWrapper ethWrapper, OperatorPublicKeyHandler operatorPublicKeyHandler,
+                    DogecoinWrapper dogecoinWrapper, SuperblockChain superblockChain) {
+        this.ethWrapper = ethWrapper;
+        this.operatorPublicKeyHandler = operatorPublicKeyHandler;
+        this.dogecoinWrapper = dogecoinWrapper;
+        this.superblockChain = superblockChain;
+        this.config = SystemProperties.CONFIG;
+        this.agentConstants = config.getAgentConstants();
+    }
+
 
     @PostConstruct
     public void setup() throws Exception {
@@ -211,7 +224,10 @@ public class DogeToEthClient {
                         }
                     }
 
-                    Superblock txSuperblock = findBestSuperblockFor(txStoredBlock.getHeader().getHash());
+                    DogeBlockLocation txBlockLocation =
+                            superblockChain.getMainChainDogeBlockLocation(txStoredBlock.getHeader().getHash());
+                    Superblock txSuperblock = txBlockLocation == null ?
+                            null : superblockChain.getSuperblock(txBlockLocation.getSuperblockId());
 
                     if (txSuperblock == null) {
                         // no superblock found for tx
@@ -221,6 +237,15 @@ public class DogeToEthClient {
                         continue;
                     }
 
+                    if (txSuperblock.getDogeBlockHashes().isEmpty()) {
+                        // Merkle branches can't be built for superblocks below the pruning depth
+                        log.warn("Tx {} not relayed because the Doge block hashes of its superblock were pruned. " +
+                                        "Block hash: {}, superblock ID: {}",
+                                operatorWalletTx.getHash(), txStoredBlock.getHeader().getHash(),
+                                txSuperblock.getSuperblockId());
+                        continue;
+                    }
+
                     if (!ethWrapper.isSuperblockApproved(txSuperblock.getSuperblockId())) {
                         log.debug("Tx {} not relayed because the superblock it's in hasn't been approved yet." +
                                         "Block hash: {}, superblock ID: {}",
@@ -229,14 +254,13 @@ public class DogeToEthClient {
                         continue;
                     }
 
-                    int dogeBlockIndex = txSuperblock.getDogeBlockLeafIndex(txStoredBlock.getHeader().getHash());
-                    byte[] includeBits = new byte[(int) Math.ceil(txSuperblock.getDogeBlockHashes().size() / 8.0)];
-                    Utils.setBitLE(includeBits, dogeBlockIndex);
-                    PartialMerkleTree superblockPMT = PartialMerkleTree.buildFromLeaves(agentConstants.getDogeParams(),
-                            includeBits, txSuperblock.getDogeBlockHashes());
+                    int dogeBlockIndex = txBlockLocation.getLeafIndex();
+                    List<Sha256Hash> dogeBlockSiblings =
+                            superblockChain.getMerkleTree(txSuperblock).getSiblings(dogeBlockIndex);
 
                     ethWrapper.sendRelayTx(operatorWalletTx, operatorPublicKeyHandler.getPublicKeyHash(),
-                            (AltcoinBlock) txStoredBlock.getHeader(), txSuperblock, txPMT, superblockPMT);
+                            (AltcoinBlock) txStoredBlock.getHeader(), txSuperblock, txPMT,
+                            dogeBlockIndex, dogeBlockSiblings);
                     numberOfTxsSent++;
                     // Send a maximum of 40 registerTransaction txs per turn
                     if (numberOfTxsSent >= MAXIMUM_REGISTER_DOGE_LOCK_TXS_PER_TURN) {
@@ -259,34 +283,13 @@ public class DogeToEthClient {
             for (Sha256Hash blockHash : blockHashes.keySet()) {
                 StoredBlock storedBlock = dogecoinWrapper.getBlock(blockHash);
                 // Find out if that block is in the main chain
-                int height = storedBlock.getHeight();
-                StoredBlock storedBlockAtHeight = dogecoinWrapper.getStoredBlockAtHeight(height);
-                if (storedBlockAtHeight!=null && storedBlockAtHeight.getHeader().getHash().equals(blockHash)) {
-                    return storedBlockAtHeight;
+                if (storedBlock != null && dogecoinWrapper.isInMainChain(storedBlock)) {
+                    return storedBlock;
                 }
             }
 
         throw new IllegalStateException("Tx not in the best chain: " + tx.getHash());
     }
 
-    /**
-     * Finds the superblock in the superblock main chain that contains the block identified by `blockHash`.
-     * @param blockHash SHA-256 hash of a block that we want to find.
-     * @return Superblock where the block can be found.
-     * @throws BlockStoreException
-     */
-    private Superblock findBestSuperblockFor(Sha256Hash blockHash) throws BlockStoreException, IOException {
-        Superblock currentSuperblock = superblockChain.getChainHead();
-
-        while (currentSuperblock != null) {
-            if (currentSuperblock.hasDogeBlock(blockHash))
-                return currentSuperblock;
-            currentSuperblock = superblockChain.getSuperblock(currentSuperblock.getParentId());
-        }
-
-        // current superblock is null
-        return null;
-    }
-
 }
 
@@ -1,14 +1,13 @@
 package org.dogethereum.agents.core;
 
+import com.google.common.cache.CacheStats;
 import lombok.extern.slf4j.Slf4j;
-import org.bitcoinj.core.Sha256Hash;
-import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.store.BlockStoreException;
 import org.dogethereum.agents.constants.AgentConstants;
 import org.dogethereum.agents.constants.SystemProperties;
 import org.dogethereum.agents.core.dogecoin.DogecoinWrapper;
-import org.dogethereum.agents.core.dogecoin.Superblock;
 import org.dogethereum.agents.core.dogecoin.SuperblockChain;
+import org.dogethereum.agents.core.eth.EthWrapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -31,6 +30,9 @@ public class SuperblockChainClient {
     @Autowired
     private DogecoinWrapper dogecoinWrapper;
 
+    @Autowired
+    private EthWrapper ethWrapper;
+
 
     public SuperblockChainClient() {}
 
@@ -42,6 +44,11 @@ public class SuperblockChainClient {
                 config.isOperatorEnabled() || config.isDogeBlockChallengerEnabled()) {
             new Timer("SuperblockChainClient").scheduleAtFixedRate(new UpdateSuperblocksTimerTask(),
                       getFirstExecutionDate(), agentConstants.getDogeToEthTimerTaskPeriod());
+            if (config.superblockPruneDepth() > 0) {
+                // Pruning compacts the whole database, so it gets a thread of its own.
+                new Timer("SuperblockPruning").scheduleAtFixedRate(new PruneSuperblocksTimerTask(),
+                        getFirstExecutionDate(), config.superblockPrunePeriodSeconds() * 1000);
+            }
         }
     }
 
@@ -53,29 +60,27 @@ public class SuperblockChainClient {
 
     /**
      * Builds and maintains a chain of superblocks from the whole Dogecoin blockchain.
-     * Writes it to disk as specified by SuperblockLevelDBBlockStore.
+     * Writes it to disk as specified by the superblock store.
      * @throws BlockStoreException
      * @throws IOException
      */
     public void updateChain() throws Exception, BlockStoreException, IOException {
-        Superblock bestSuperblock = superblockChain.getChainHead();
-        Sha256Hash bestSuperblockLastBlockHash = bestSuperblock.getLastDogeBlockHash();
-
-        // get all the Dogecoin blocks that haven't yet been hashed into a superblock
-        Stack<Sha256Hash> allDogeHashesToHash = getDogeBlockHashesNewerThan(bestSuperblockLastBlockHash);
-        superblockChain.storeSuperblocks(allDogeHashesToHash, bestSuperblock.getSuperblockId()); // group them in superblocks
+        // group all the Dogecoin blocks that haven't yet been hashed into a superblock
+        superblockChain.storeSuperblocks(dogecoinWrapper.getChainHead());
+        log.debug("Superblock cache {}", superblockChain.getCacheStats());
+        CacheStats blockCacheStats = dogecoinWrapper.getBlockCacheStats();
+        log.debug("Doge block cache hit rate {} {}", blockCacheStats.hitRate(), blockCacheStats);
     }
 
-    private Stack<Sha256Hash> getDogeBlockHashesNewerThan(Sha256Hash blockHash) throws BlockStoreException {
-        Stack<Sha256Hash> hashes = new Stack<>();
-        StoredBlock currentStoredBlock = dogecoinWrapper.getChainHead();
-
-        while (!currentStoredBlock.getHeader().getHash().equals(blockHash)) {
-            hashes.push(currentStoredBlock.getHeader().getHash());
-            currentStoredBlock = dogecoinWrapper.getBlock(currentStoredBlock.getHeader().getPrevBlockHash());
-        }
-
-        return hashes;
+    /**
+     * Prunes the superblocks that are more than the configured depth below the best approved superblock.
+     * @throws Exception
+     */
+    public void pruneChain() throws Exception {
+        long pruned = superblockChain.pruneBelowApproved(ethWrapper.getBestSuperblockId(),
+                SystemProperties.CONFIG.superblockPruneDepth());
+        if (pruned > 0)
+            log.info("Pruned {} superblocks.", pruned);
     }
 
     /**
@@ -92,4 +97,19 @@ public class SuperblockChainClient {
             }
         }
     }
+
+    /**
+     * Task to keep the superblock store from growing with the whole chain history.
+     */
+    private class PruneSuperblocksTimerTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                log.debug("PruneSuperblocksTimerTask");
+                pruneChain();
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+            }
+        }
+    }
 }
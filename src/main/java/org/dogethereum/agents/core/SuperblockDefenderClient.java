@@ -11,6 +11,8 @@ import org.springframework.stereotype.Service;
 
 import java.io.*;
 import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Monitors the Ethereum blockchain for superblock-related events
@@ -140,7 +142,7 @@ public class SuperblockDefenderClient extends SuperblockBaseClient {
                 log.info("Header requested for Doge block {}, session {}. Responding now.",
                         queryBlockHeader.dogeBlockHash, queryBlockHeader.sessionId);
 
-                StoredBlock dogeBlock = dogecoinWrapper.getBlock(queryBlockHeader.dogeBlockHash);
+                StoredBlock dogeBlock = dogecoinWrapper.getBlockWithAuxPoW(queryBlockHeader.dogeBlockHash);
                 ethWrapper.respondBlockHeader(queryBlockHeader.superblockId, queryBlockHeader.sessionId,
                         (AltcoinBlock) dogeBlock.getHeader(), myAddress);
             }
@@ -291,18 +293,29 @@ public class SuperblockDefenderClient extends SuperblockBaseClient {
      */
     private Superblock getHighestSemiApprovedDescendant(Keccak256Hash superblockId)
             throws BlockStoreException, IOException, Exception {
-        Superblock highest = superblockChain.getChainHead();
+        Superblock superblock = superblockChain.getSuperblock(superblockId);
+        if (superblock == null)
+            return null;
+
+        // IDs of everything above the superblock, read in a single scan of the height index.
+        List<Keccak256Hash> descendantIds;
+        try (Stream<Keccak256Hash> ids = superblockChain.getMainChainIds(superblock.getSuperblockHeight(),
+                superblockChain.getChainHeight())) {
+            descendantIds = ids.collect(Collectors.toList());
+        }
+        if (descendantIds.isEmpty() || !descendantIds.get(0).equals(superblockId)) {
+            // Not in the main chain
+            return null;
+        }
 
         // Find highest semi-approved descendant
-        while (highest != null && !ethWrapper.isSuperblockSemiApproved(highest.getSuperblockId())) {
-            highest = superblockChain.getParent(highest);
-            if (highest.getSuperblockId().equals(superblockId)) {
-                // No semi-approved descendants found
-                return null;
-            }
+        for (int i = descendantIds.size() - 1; i > 0; i--) {
+            if (ethWrapper.isSuperblockSemiApproved(descendantIds.get(i)))
+                return superblockChain.getSuperblock(descendantIds.get(i));
         }
 
-        return highest;
+        // No semi-approved descendants found
+        return null;
     }
 
 
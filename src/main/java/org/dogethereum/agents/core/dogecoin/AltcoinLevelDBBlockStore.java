@@ -1,16 +1,28 @@
 package org.dogethereum.agents.core.dogecoin;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import lombok.extern.slf4j.Slf4j;
 import org.bitcoinj.core.*;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
 import org.fusesource.leveldbjni.JniDBFactory;
 import org.iq80.leveldb.*;
+import org.libdohj.core.AuxPoWNetworkParameters;
 
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.google.common.base.Preconditions.checkState;
 import static org.bitcoinj.core.StoredBlock.CHAIN_WORK_BYTES;
@@ -19,19 +31,73 @@ import static org.bitcoinj.core.StoredBlock.EMPTY_BYTES;
 /**
  * Copy of LevelDBBlockStore with a fix for blocks with AuxPoW
  * put() does not call StoredBlock.serializeCompact(),
- * it uses a custom serializeCompact() instead where block size is not trimmed to 80 bytes
+ * it uses a custom serializeCompact() instead where block size is not trimmed to 80 bytes.
+ * It also keeps a main chain index from height to block hash, updated along with the chain head,
+ * so main chain blocks can be looked up by height without walking back from the head.
+ * Recently read and written blocks are kept deserialised in a cache bounded by their estimated size.
+ * Each block is stored as a fixed size record with its chain work, height and 80-byte header, keyed by hash,
+ * plus, for merged mined blocks, the rest of its serialised header, i.e. the AuxPoW and the trailing
+ * transaction count, under a separate key.
+ * get() only reads the record and returns the block without its AuxPoW; getWithAuxPoW() reads both.
+ * Reads and put() don't take the store's monitor, since LevelDB gets and batch writes are thread-safe
+ * and every block is written atomically and never changes. Only the methods that rewrite the chain head
+ * and the height index, or the whole store, are synchronized, so header download and the agent's
+ * lookups don't wait for each other.
+ * During the initial header download the store can coalesce writes: puts and chain head updates are added
+ * to a single pending WriteBatch, visible to reads through an in-memory overlay, which is committed atomically
+ * once it holds enough blocks or is old enough. A crash loses at most the pending headers, which are
+ * downloaded again, and never leaves the chain head pointing to a missing block.
  */
+@Slf4j(topic = "AltcoinLevelDBBlockStore")
 public class AltcoinLevelDBBlockStore implements BlockStore {
 
     private static final byte[] CHAIN_HEAD_KEY = "chainhead".getBytes();
+    private static final byte[] HEIGHT_INDEX_VERSION_KEY = "heightindexversion".getBytes();
+    // Bump to rebuild the height index of existing stores when it's opened.
+    private static final int HEIGHT_INDEX_VERSION = 1;
+    // Height index keys are the prefix followed by the height as 4 big-endian bytes.
+    // Blocks are keyed by their 32-byte hash, so the two never collide.
+    private static final byte HEIGHT_INDEX_PREFIX = 'h';
+    private static final int HEIGHT_INDEX_KEY_LENGTH = 1 + 4;
+    // Index entries written in a single batch while rebuilding the index.
+    private static final int HEIGHT_INDEX_BATCH_SIZE = 10000;
+
+    private static final byte[] BLOCK_FORMAT_VERSION_KEY = "blockformatversion".getBytes();
+    // Version 1 split the AuxPoW from the block records. Stores without a version key have merged records.
+    private static final int BLOCK_FORMAT_VERSION = 1;
+    // Block record: chain work, height and header without AuxPoW.
+    public static final int RECORD_SIZE = CHAIN_WORK_BYTES + 4 + Block.HEADER_SIZE;
+    // AuxPoW keys are the prefix followed by the block hash.
+    // Serialised headers without AuxPoW only have the zero transaction count after the first 80 bytes.
+    private static final byte AUXPOW_PREFIX = 'a';
+    private static final byte[] NO_AUXPOW = new byte[]{0};
+    // Blocks converted in a single batch while splitting the records of an older store.
+    private static final int BLOCK_FORMAT_BATCH_SIZE = 10000;
+
+    // Overlay value of keys deleted by pending writes.
+    private static final byte[] DELETED = new byte[0];
+
+    // Default upper bound for the estimated size of the cached blocks.
+    public static final long DEFAULT_CACHE_MAX_BYTES = 16000000;
+    // Rough in-memory footprint of a deserialised block besides its serialised header,
+    // which is counted twice: once for the bytes the block is parsed from and once for the parsed fields.
+    private static final int BLOCK_SIZE_ESTIMATE = 512;
 
     private final Context context;
     private DB db;
-    // Block header could be huge because litecoin coinbase tx could be almost 1 mb in size
-    //public static final int COMPACT_SERIALIZED_SIZE = Block.MAX_BLOCK_SIZE * 2 + CHAIN_WORK_BYTES + 4;  // for height
-    public static final int COMPACT_SERIALIZED_SIZE = 20000 + CHAIN_WORK_BYTES + 4;  // for height
-    private final ByteBuffer buffer = ByteBuffer.allocate(COMPACT_SERIALIZED_SIZE);
     private final File path;
+    // Recently read and written blocks, so that the recent headers aren't deserialised over and over.
+    // Blocks are keyed by hash, so an entry can't become stale; reorgs only evict the blocks that left the main chain.
+    private final Cache<Sha256Hash, CachedBlock> cache;
+
+    // Writes not committed yet while coalescing, null otherwise. Only replaced under the store's monitor;
+    // a committed PendingWrites is replaced by an empty one, never cleared, so readers never miss its writes.
+    private volatile PendingWrites pendingWrites;
+    // Bounds for the pending writes while coalescing.
+    private int coalescingMaxBlocks;
+    private long coalescingMaxMillis;
+    // Commits pending writes that are old enough even if no more writes come, null if there's no time bound.
+    private Timer coalescingTimer;
 
     /** Creates a LevelDB SPV block store using the JNI/C++ version of LevelDB. */
     public AltcoinLevelDBBlockStore(Context context, File directory) throws BlockStoreException {
@@ -40,8 +106,22 @@ public class AltcoinLevelDBBlockStore implements BlockStore {
 
     /** Creates a LevelDB SPV block store using the given factory, which is useful if you want a pure Java version. */
     public AltcoinLevelDBBlockStore(Context context, File directory, DBFactory dbFactory) throws BlockStoreException {
+        this(context, directory, dbFactory, DEFAULT_CACHE_MAX_BYTES);
+    }
+
+    /**
+     * Creates a LevelDB SPV block store using the given factory and block cache size.
+     * @param cacheMaxBytes Upper bound for the estimated size of the cached blocks. Zero or less disables the cache.
+     */
+    public AltcoinLevelDBBlockStore(Context context, File directory, DBFactory dbFactory, long cacheMaxBytes)
+            throws BlockStoreException {
         this.context = context;
         this.path = directory;
+        this.cache = CacheBuilder.newBuilder()
+                .recordStats()
+                .maximumWeight(Math.max(cacheMaxBytes, 0))
+                .weigher((Sha256Hash hash, CachedBlock cachedBlock) -> cachedBlock.weight)
+                .build();
         Options options = new Options();
         options.createIfMissing();
 
@@ -64,26 +144,197 @@ public class AltcoinLevelDBBlockStore implements BlockStore {
     }
 
     private synchronized void initStoreIfNeeded() throws BlockStoreException {
-        if (db.get(CHAIN_HEAD_KEY) != null)
+        if (db.get(CHAIN_HEAD_KEY) != null) {
+            splitAuxPoWIfNeeded();
+            rebuildHeightIndexIfNeeded();
             return;   // Already initialised.
+        }
         Block genesis = context.getParams().getGenesisBlock().cloneAsHeader();
         StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
         put(storedGenesis);
         setChainHead(storedGenesis);
+        db.put(HEIGHT_INDEX_VERSION_KEY, ByteBuffer.allocate(4).putInt(HEIGHT_INDEX_VERSION).array());
+        db.put(BLOCK_FORMAT_VERSION_KEY, ByteBuffer.allocate(4).putInt(BLOCK_FORMAT_VERSION).array());
+    }
+
+    /**
+     * Moves the AuxPoW of the blocks of a store written before records were split to their own keys,
+     * BLOCK_FORMAT_BATCH_SIZE blocks per write.
+     * Merged records are still readable, so an interrupted conversion just leaves some of them
+     * for the next time the store is opened. The version is written once every record is split.
+     * @throws BlockStoreException
+     */
+    private synchronized void splitAuxPoWIfNeeded() throws BlockStoreException {
+        byte[] version = db.get(BLOCK_FORMAT_VERSION_KEY);
+        if (version != null && ByteBuffer.wrap(version).getInt() >= BLOCK_FORMAT_VERSION)
+            return;
+        log.info("Moving the AuxPoW of stored Doge blocks out of their records. This is only done once.");
+        long split = 0;
+        try {
+            WriteBatch batch = db.createWriteBatch();
+            try {
+                int batchSize = 0;
+                DBIterator it = db.iterator();
+                try {
+                    for (it.seekToFirst(); it.hasNext(); ) {
+                        Map.Entry<byte[], byte[]> entry = it.next();
+                        byte[] key = entry.getKey();
+                        byte[] record = entry.getValue();
+                        if (key.length != Sha256Hash.LENGTH || record.length <= RECORD_SIZE)
+                            continue;
+                        batch.put(key, Arrays.copyOf(record, RECORD_SIZE));
+                        if (record.length > RECORD_SIZE + NO_AUXPOW.length)
+                            batch.put(auxPowKey(key), Arrays.copyOfRange(record, RECORD_SIZE, record.length));
+                        split++;
+                        if (++batchSize >= BLOCK_FORMAT_BATCH_SIZE) {
+                            db.write(batch);
+                            batch.close();
+                            batch = db.createWriteBatch();
+                            batchSize = 0;
+                        }
+                    }
+                } finally {
+                    it.close();
+                }
+                batch.put(BLOCK_FORMAT_VERSION_KEY, ByteBuffer.allocate(4).putInt(BLOCK_FORMAT_VERSION).array());
+                db.write(batch);
+            } finally {
+                batch.close();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        log.info("Split {} Doge block records.", split);
+    }
+
+    /**
+     * Indexes the main chain of a store written before the height index existed, or with an older version of it.
+     * The chain is walked back from the head, HEIGHT_INDEX_BATCH_SIZE blocks per write,
+     * down to the genesis block or the checkpoint the chain was started from.
+     * The version is written last, so an interrupted rebuild starts over the next time the store is opened.
+     * @throws BlockStoreException
+     */
+    private synchronized void rebuildHeightIndexIfNeeded() throws BlockStoreException {
+        byte[] version = db.get(HEIGHT_INDEX_VERSION_KEY);
+        if (version != null && ByteBuffer.wrap(version).getInt() == HEIGHT_INDEX_VERSION)
+            return;
+        StoredBlock chainHead = getChainHead();
+        try {
+            // Entries above the head can only be left over from an interrupted rebuild.
+            deleteHeightIndexAbove(chainHead.getHeight());
+            WriteBatch batch = db.createWriteBatch();
+            try {
+                int batchSize = 0;
+                StoredBlock current = chainHead;
+                while (current != null) {
+                    batch.put(heightIndexKey(current.getHeight()), current.getHeader().getHash().getBytes());
+                    if (++batchSize >= HEIGHT_INDEX_BATCH_SIZE) {
+                        db.write(batch);
+                        batch.close();
+                        batch = db.createWriteBatch();
+                        batchSize = 0;
+                    }
+                    // Not cached: the walk would only evict the recent blocks.
+                    current = current.getHeight() > 0 ? read(current.getHeader().getPrevBlockHash()) : null;
+                }
+                batch.put(HEIGHT_INDEX_VERSION_KEY, ByteBuffer.allocate(4).putInt(HEIGHT_INDEX_VERSION).array());
+                db.write(batch);
+            } finally {
+                batch.close();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
     }
 
+    /**
+     * Deletes the height index entries above a given height.
+     * @param height Height of the highest entry that is kept.
+     * @throws IOException
+     */
+    private void deleteHeightIndexAbove(int height) throws IOException {
+        WriteBatch batch = db.createWriteBatch();
+        try {
+            DBIterator it = db.iterator();
+            try {
+                for (it.seek(heightIndexKey(height + 1)); it.hasNext(); it.next()) {
+                    byte[] key = it.peekNext().getKey();
+                    if (key[0] != HEIGHT_INDEX_PREFIX)
+                        break;
+                    // Block hashes starting with the prefix byte sort among the index keys.
+                    if (key.length != HEIGHT_INDEX_KEY_LENGTH)
+                        continue;
+                    batch.delete(key);
+                }
+            } finally {
+                it.close();
+            }
+            db.write(batch);
+        } finally {
+            batch.close();
+        }
+    }
+
+    private static byte[] heightIndexKey(int height) {
+        return ByteBuffer.allocate(HEIGHT_INDEX_KEY_LENGTH).put(HEIGHT_INDEX_PREFIX).putInt(height).array();
+    }
+
+    /**
+     * Writes a block record and, if the block is merged mined, its AuxPoW.
+     * @param block Block to be written.
+     * @throws BlockStoreException
+     */
     @Override
-    public synchronized void put(StoredBlock block) throws BlockStoreException {
-        buffer.clear();
-        serializeCompact(block, buffer);
-        int arraySize = buffer.position();
-        byte[] array = new byte[arraySize];
-        byte[] bufferArray = buffer.array();
-        System.arraycopy(bufferArray, 0, array, 0, arraySize);
-        db.put(block.getHeader().getHash().getBytes(), array);
+    public void put(StoredBlock block) throws BlockStoreException {
+        Sha256Hash hash = block.getHeader().getHash();
+        // Using bitcoinSerialize instead of unsafeBitcoinSerialize as used in the original implementation because we are not going to remove the
+        // trailing 00 byte
+        byte[] bytes = block.getHeader().bitcoinSerialize();
+        byte[] record = new byte[RECORD_SIZE];
+        serializeCompact(block, bytes, ByteBuffer.wrap(record));
+        // DON'T Trim the trailing 00 byte (zero transactions) - It would also trim the AuxPow.
+        byte[] auxPow = bytes.length > Block.HEADER_SIZE + NO_AUXPOW.length ?
+                Arrays.copyOfRange(bytes, Block.HEADER_SIZE, bytes.length) : null;
+        try {
+            if (pendingWrites == null || !putPending(hash, record, auxPow)) {
+                WriteBatch batch = db.createWriteBatch();
+                try {
+                    writeBlock(batch, hash, record, auxPow);
+                    db.write(batch);
+                } finally {
+                    batch.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        // New blocks are usually read back right away as the chain head.
+        // They're cached as get() would return them, without their AuxPoW.
+        cache.put(hash, new CachedBlock(deserializeCompact(context.getParams(), ByteBuffer.wrap(record)), RECORD_SIZE));
+    }
+
+    /**
+     * Adds a block to the pending writes if the store is coalescing them.
+     * @return False if the store isn't coalescing writes.
+     * @throws BlockStoreException
+     */
+    private synchronized boolean putPending(Sha256Hash hash, byte[] record, @Nullable byte[] auxPow)
+            throws BlockStoreException {
+        if (pendingWrites == null)
+            return false;
+        writeBlock(pendingWrites.batch, hash, record, auxPow);
+        pendingWrites.blocks++;
+        flushIfFull();
+        return true;
+    }
+
+    private void writeBlock(WriteBatch batch, Sha256Hash hash, byte[] record, @Nullable byte[] auxPow) {
+        batchPut(batch, hash.getBytes(), record);
+        if (auxPow != null)
+            batchPut(batch, auxPowKey(hash.getBytes()), auxPow);
     }
 
-    private void serializeCompact(StoredBlock block, ByteBuffer buffer) {
+    private void serializeCompact(StoredBlock block, byte[] headerBytes, ByteBuffer buffer) {
         byte[] chainWorkBytes = block.getChainWork().toByteArray();
         checkState(chainWorkBytes.length <= CHAIN_WORK_BYTES, "Ran out of space to store chain work!");
         if (chainWorkBytes.length < CHAIN_WORK_BYTES) {
@@ -92,19 +343,104 @@ public class AltcoinLevelDBBlockStore implements BlockStore {
         }
         buffer.put(chainWorkBytes);
         buffer.putInt(block.getHeight());
-        // Using bitcoinSerialize instead of unsafeBitcoinSerialize as used in the original implementation because we are not going to remove the
-        // trailing 00 byte
-        byte[] bytes = block.getHeader().bitcoinSerialize();
-        buffer.put(bytes);  // DON'T Trim the trailing 00 byte (zero transactions) - It would also trim the AuxPow.
+        buffer.put(headerBytes, 0, Block.HEADER_SIZE);
     }
 
 
+    /**
+     * Retrieves a block without its AuxPoW: enough for its hash, chain work, height and every header field.
+     * @param hash Block hash.
+     * @return Block, or null if it's not stored.
+     * @throws BlockStoreException
+     */
     @Override @Nullable
-    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
-        byte[] bits = db.get(hash.getBytes());
-        if (bits == null)
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        CachedBlock cachedBlock = cache.getIfPresent(hash);
+        if (cachedBlock != null)
+            return cachedBlock.block;
+        StoredBlock block = read(hash);
+        if (block != null)
+            cache.put(hash, new CachedBlock(block, RECORD_SIZE));
+        return block;
+    }
+
+    /**
+     * Retrieves a block along with its AuxPoW, e.g. to send its whole header to the contracts.
+     * Not cached. A record and its AuxPoW are written in the same batch, so reading them one after the other
+     * can't mix blocks even while the store is being written.
+     * @param hash Block hash.
+     * @return Block, or null if it's not stored.
+     * @throws BlockStoreException
+     */
+    @Nullable
+    public StoredBlock getWithAuxPoW(Sha256Hash hash) throws BlockStoreException {
+        byte[] record = dbGet(hash.getBytes());
+        if (record == null)
             return null;
-        return deserializeCompact(context.getParams(), ByteBuffer.wrap(bits));
+        // Records that haven't been split yet still hold the AuxPoW.
+        if (record.length > RECORD_SIZE)
+            return deserializeCompact(context.getParams(), ByteBuffer.wrap(record));
+        byte[] auxPow = mayHaveAuxPoW(record) ? dbGet(auxPowKey(hash.getBytes())) : null;
+        if (auxPow == null)
+            auxPow = NO_AUXPOW;
+        ByteBuffer merged = ByteBuffer.allocate(record.length + auxPow.length).put(record).put(auxPow);
+        merged.flip();
+        return deserializeCompact(context.getParams(), merged);
+    }
+
+    /**
+     * Checks a record's block version, so that blocks that can't be merged mined don't need a second read.
+     * @param record Block record.
+     * @return False if the block can't have AuxPoW.
+     */
+    private boolean mayHaveAuxPoW(byte[] record) {
+        NetworkParameters params = context.getParams();
+        return params instanceof AuxPoWNetworkParameters && ((AuxPoWNetworkParameters) params)
+                .isAuxPoWBlockVersion(Utils.readUint32(record, CHAIN_WORK_BYTES + 4));
+    }
+
+    /** Reads a block without its AuxPoW, without looking it up in the cache or adding it. */
+    @Nullable
+    private StoredBlock read(Sha256Hash hash) {
+        byte[] record = dbGet(hash.getBytes());
+        if (record == null)
+            return null;
+        // Only the header is parsed out of records that haven't been split yet.
+        return deserializeCompact(context.getParams(), ByteBuffer.wrap(record, 0, RECORD_SIZE));
+    }
+
+    /**
+     * Reads a key, pending writes included.
+     * @param key Key.
+     * @return Value, or null if the key isn't stored or a pending write deletes it.
+     */
+    @Nullable
+    private byte[] dbGet(byte[] key) {
+        PendingWrites pending = pendingWrites;
+        if (pending != null) {
+            byte[] value = pending.overlay.get(ByteBuffer.wrap(key));
+            if (value != null)
+                return value == DELETED ? null : value;
+        }
+        return db.get(key);
+    }
+
+    private void batchPut(WriteBatch batch, byte[] key, byte[] value) {
+        batch.put(key, value);
+        PendingWrites pending = pendingWrites;
+        if (pending != null && batch == pending.batch)
+            pending.add(key, value);
+    }
+
+    private void batchDelete(WriteBatch batch, byte[] key) {
+        batch.delete(key);
+        PendingWrites pending = pendingWrites;
+        if (pending != null && batch == pending.batch)
+            pending.add(key, DELETED);
+    }
+
+    private static byte[] auxPowKey(byte[] hash) {
+        return ByteBuffer.allocate(1 + Sha256Hash.LENGTH).put(AUXPOW_PREFIX).put(hash).array();
     }
 
     /** De-serializes the stored block from a custom packed format. Used by {@link CheckpointManager}. */
@@ -121,17 +457,205 @@ public class AltcoinLevelDBBlockStore implements BlockStore {
 
 
     @Override
-    public synchronized StoredBlock getChainHead() throws BlockStoreException {
-        return get(Sha256Hash.wrap(db.get(CHAIN_HEAD_KEY)));
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return get(Sha256Hash.wrap(dbGet(CHAIN_HEAD_KEY)));
     }
 
+    /**
+     * Sets the chain head and updates the height index in the same write.
+     * Entries above the new head are deleted, then the new main chain is indexed from the head down
+     * until it meets an entry that is already right, which is the parent of the head unless there was a reorg.
+     * While coalescing, the changes are added to the pending writes instead.
+     * @param chainHead New chain head. Must already be stored.
+     * @throws BlockStoreException
+     */
     @Override
     public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        db.put(CHAIN_HEAD_KEY, chainHead.getHeader().getHash().getBytes());
+        try {
+            boolean coalescing = pendingWrites != null;
+            WriteBatch batch = coalescing ? pendingWrites.batch : db.createWriteBatch();
+            try {
+                // Blocks that leave the main chain.
+                List<byte[]> orphanedHashes = new ArrayList<>();
+                byte[] oldChainHeadHash = dbGet(CHAIN_HEAD_KEY);
+                StoredBlock oldChainHead = oldChainHeadHash != null ? get(Sha256Hash.wrap(oldChainHeadHash)) : null;
+                if (oldChainHead != null) {
+                    // The new main chain can be shorter than the old one.
+                    for (int height = oldChainHead.getHeight(); height > chainHead.getHeight(); height--) {
+                        byte[] key = heightIndexKey(height);
+                        byte[] orphanedHash = dbGet(key);
+                        if (orphanedHash != null)
+                            orphanedHashes.add(orphanedHash);
+                        batchDelete(batch, key);
+                    }
+                }
+
+                StoredBlock current = chainHead;
+                byte[] hash = current.getHeader().getHash().getBytes();
+                byte[] indexedHash;
+                while (current != null &&
+                        !Arrays.equals(indexedHash = dbGet(heightIndexKey(current.getHeight())), hash)) {
+                    if (indexedHash != null)
+                        orphanedHashes.add(indexedHash);
+                    batchPut(batch, heightIndexKey(current.getHeight()), hash);
+                    if (current.getHeight() == 0)
+                        break;
+                    // Check the parent's entry before reading the parent itself,
+                    // so extending the main chain doesn't read any block.
+                    hash = current.getHeader().getPrevBlockHash().getBytes();
+                    if (Arrays.equals(dbGet(heightIndexKey(current.getHeight() - 1)), hash))
+                        break;
+                    // Null below the checkpoint the chain was started from.
+                    current = get(current.getHeader().getPrevBlockHash());
+                }
+
+                batchPut(batch, CHAIN_HEAD_KEY, chainHead.getHeader().getHash().getBytes());
+                if (coalescing)
+                    flushIfFull();
+                else
+                    db.write(batch);
+                for (byte[] orphanedHash : orphanedHashes)
+                    cache.invalidate(Sha256Hash.wrap(orphanedHash));
+            } finally {
+                if (!coalescing)
+                    batch.close();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Looks up the hash of the main chain block at a given height with a single read.
+     * @param height Block height.
+     * @return Hash of the main chain block at that height, or null if the chain isn't that high
+     *         or the height is below the checkpoint the chain was started from.
+     */
+    @Nullable
+    public Sha256Hash getMainChainBlockHash(int height) {
+        if (height < 0)
+            return null;
+        byte[] hash = dbGet(heightIndexKey(height));
+        return hash != null ? Sha256Hash.wrap(hash) : null;
+    }
+
+    /**
+     * Retrieves the main chain block at a given height.
+     * @param height Block height.
+     * @return Main chain block at that height, or null if the chain isn't that high
+     *         or the height is below the checkpoint the chain was started from.
+     * @throws BlockStoreException
+     */
+    @Nullable
+    public StoredBlock getMainChainBlock(int height) throws BlockStoreException {
+        Sha256Hash hash = getMainChainBlockHash(height);
+        return hash != null ? get(hash) : null;
+    }
+
+    /**
+     * Checks whether a block is part of the main chain with a single read.
+     * @param block Block to check.
+     * @return True if the block is the main chain block at its height.
+     */
+    public boolean isInMainChain(StoredBlock block) {
+        return block.getHeader().getHash().equals(getMainChainBlockHash(block.getHeight()));
+    }
+
+    /**
+     * Returns block cache statistics.
+     * @return Hits, misses and evictions of the block cache since the store was opened.
+     */
+    public CacheStats getCacheStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Starts coalescing writes, e.g. for the initial header download.
+     * Pending writes are committed when a write finds them over either bound, by flush() and by close().
+     * A timer thread also commits them once they're older than maxMillis, so the last headers of a download
+     * don't wait for the next write; it checks every quarter of maxMillis, so they're committed at most
+     * that late.
+     * @param maxBlocks Number of blocks after which the pending writes are committed.
+     * @param maxMillis Time after the first pending write after which the pending writes are committed.
+     *                  Long.MAX_VALUE means no time bound.
+     */
+    public synchronized void startWriteCoalescing(int maxBlocks, long maxMillis) {
+        coalescingMaxBlocks = maxBlocks;
+        coalescingMaxMillis = maxMillis;
+        if (pendingWrites == null)
+            pendingWrites = new PendingWrites(db.createWriteBatch());
+        cancelCoalescingTimer();
+        if (maxMillis > 0 && maxMillis < Long.MAX_VALUE) {
+            long period = Math.max(1, maxMillis / 4);
+            coalescingTimer = new Timer("Doge block store flush", true);
+            coalescingTimer.scheduleAtFixedRate(new FlushTimerTask(), period, period);
+        }
+    }
+
+    /**
+     * Commits the pending writes and goes back to writing every put and chain head update on its own.
+     * @throws BlockStoreException
+     */
+    public synchronized void stopWriteCoalescing() throws BlockStoreException {
+        cancelCoalescingTimer();
+        if (pendingWrites == null)
+            return;
+        flush();
+        PendingWrites pending = pendingWrites;
+        pendingWrites = null;
+        closeBatch(pending.batch);
+    }
+
+    /**
+     * Commits the pending writes in a single write, if the store is coalescing writes.
+     * @throws BlockStoreException
+     */
+    public synchronized void flush() throws BlockStoreException {
+        PendingWrites pending = pendingWrites;
+        if (pending == null || pending.overlay.isEmpty())
+            return;
+        db.write(pending.batch);
+        // Written before being replaced, so readers find the writes either in the overlay or in LevelDB.
+        pendingWrites = new PendingWrites(db.createWriteBatch());
+        closeBatch(pending.batch);
+    }
+
+    private void flushIfFull() throws BlockStoreException {
+        PendingWrites pending = pendingWrites;
+        if (pending.blocks >= coalescingMaxBlocks ||
+                System.currentTimeMillis() - pending.firstWriteMillis >= coalescingMaxMillis)
+            flush();
+    }
+
+    private synchronized void flushIfOld() throws BlockStoreException {
+        PendingWrites pending = pendingWrites;
+        if (pending != null && !pending.overlay.isEmpty() &&
+                System.currentTimeMillis() - pending.firstWriteMillis >= coalescingMaxMillis)
+            flush();
+    }
+
+    private void cancelCoalescingTimer() {
+        if (coalescingTimer != null) {
+            coalescingTimer.cancel();
+            coalescingTimer = null;
+        }
+    }
+
+    private static void closeBatch(WriteBatch batch) throws BlockStoreException {
+        try {
+            batch.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
     }
 
+    /**
+     * Commits any pending writes and closes the database.
+     * Must not be called while other threads still read from the store.
+     */
     @Override
     public synchronized void close() throws BlockStoreException {
+        stopWriteCoalescing();
         try {
             db.close();
         } catch (IOException e) {
@@ -142,6 +666,13 @@ public class AltcoinLevelDBBlockStore implements BlockStore {
     /** Erases the contents of the database (but NOT the underlying files themselves)
      * and then reinitialises with the genesis block. */
     public synchronized void reset() throws BlockStoreException {
+        // Pending writes are dropped rather than committed, and the genesis block is written directly.
+        boolean coalescing = pendingWrites != null;
+        if (coalescing) {
+            PendingWrites pending = pendingWrites;
+            pendingWrites = null;
+            closeBatch(pending.batch);
+        }
         try {
             WriteBatch batch = db.createWriteBatch();
             try {
@@ -157,10 +688,13 @@ public class AltcoinLevelDBBlockStore implements BlockStore {
             } finally {
                 batch.close();
             }
+            cache.invalidateAll();
             initStoreIfNeeded();
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
+        if (coalescing)
+            pendingWrites = new PendingWrites(db.createWriteBatch());
     }
 
     public synchronized void destroy() throws IOException {
@@ -171,4 +705,52 @@ public class AltcoinLevelDBBlockStore implements BlockStore {
     public NetworkParameters getParams() {
         return context.getParams();
     }
+
+    /**
+     * Commits the pending writes once they're older than the coalescing time bound.
+     */
+    private class FlushTimerTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                flushIfOld();
+            } catch (Exception e) {
+                log.error("Couldn't commit pending Doge block writes.", e);
+            }
+        }
+    }
+
+    /**
+     * Writes added to a batch that isn't committed yet, along with an overlay for reading them back.
+     */
+    private static class PendingWrites {
+        final WriteBatch batch;
+        // Latest pending value of every written key, DELETED for deleted ones.
+        final Map<ByteBuffer, byte[]> overlay = new ConcurrentHashMap<>();
+        long firstWriteMillis;
+        int blocks;
+
+        PendingWrites(WriteBatch batch) {
+            this.batch = batch;
+        }
+
+        void add(byte[] key, byte[] value) {
+            if (overlay.isEmpty())
+                firstWriteMillis = System.currentTimeMillis();
+            overlay.put(ByteBuffer.wrap(key), value);
+        }
+    }
+
+    /**
+     * Cached block along with its estimated in-memory size.
+     */
+    private static class CachedBlock {
+        final StoredBlock block;
+        final int weight;
+
+        CachedBlock(StoredBlock block, int serializedLength) {
+            this.block = block;
+            this.weight = BLOCK_SIZE_ESTIMATE + 2 * serializedLength;
+        }
+    }
 }
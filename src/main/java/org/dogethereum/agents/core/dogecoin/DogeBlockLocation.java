@@ -0,0 +1,37 @@
+package org.dogethereum.agents.core.dogecoin;
+
+/**
+ * Position of a Doge block within the superblock chain.
+ */
+public class DogeBlockLocation {
+    private final Keccak256Hash superblockId;
+    private final long superblockHeight;
+    private final int leafIndex;
+
+    public DogeBlockLocation(Keccak256Hash superblockId, long superblockHeight, int leafIndex) {
+        this.superblockId = superblockId;
+        this.superblockHeight = superblockHeight;
+        this.leafIndex = leafIndex;
+    }
+
+    /**
+     * @return ID of the superblock that contains the block.
+     */
+    public Keccak256Hash getSuperblockId() {
+        return superblockId;
+    }
+
+    /**
+     * @return Height of the superblock that contains the block.
+     */
+    public long getSuperblockHeight() {
+        return superblockHeight;
+    }
+
+    /**
+     * @return Index of the block among the superblock's Merkle tree leaves.
+     */
+    public int getLeafIndex() {
+        return leafIndex;
+    }
+}
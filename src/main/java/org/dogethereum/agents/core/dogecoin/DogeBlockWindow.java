@@ -0,0 +1,71 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Doge blocks of a superblock time window, as returned by DogeBlockWindowIterator.
+ * Holds everything needed to build the superblock except for its place in the superblock chain,
+ * so that Merkle roots can be calculated apart from chaining the superblocks.
+ */
+public class DogeBlockWindow {
+    private final Date endTime;
+    private final List<Sha256Hash> dogeBlockHashes = new ArrayList<>();
+    private StoredBlock lastBlock;
+    private StoredBlock previousToLastBlock;
+
+    /**
+     * Constructor.
+     * @param endTime End of the superblock time window.
+     */
+    DogeBlockWindow(Date endTime) {
+        this.endTime = endTime;
+    }
+
+    /**
+     * Adds the next block of the window.
+     * @param block Block to be added.
+     * @param previousBlock Block right before it, which might belong to an earlier window.
+     */
+    void add(StoredBlock block, StoredBlock previousBlock) {
+        dogeBlockHashes.add(block.getHeader().getHash());
+        lastBlock = block;
+        previousToLastBlock = previousBlock;
+    }
+
+    /**
+     * Builds the superblock of the window.
+     * @param merkleRoot Merkle root of the window's Doge block hashes, as calculated by SuperblockMerkle.
+     * @param parentId ID of the previous superblock.
+     * @param superblockHeight Height of the new superblock.
+     * @return New superblock.
+     */
+    public Superblock toSuperblock(Sha256Hash merkleRoot, Keccak256Hash parentId, long superblockHeight) {
+        return new Superblock(merkleRoot, dogeBlockHashes, lastBlock.getChainWork(),
+                lastBlock.getHeader().getTimeSeconds(), previousToLastBlock.getHeader().getTimeSeconds(),
+                lastBlock.getHeader().getDifficultyTarget(), parentId, superblockHeight);
+    }
+
+    public Date getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * @return Hashes of the window's blocks, sorted from oldest to newest.
+     */
+    public List<Sha256Hash> getDogeBlockHashes() {
+        return dogeBlockHashes;
+    }
+
+    public StoredBlock getLastBlock() {
+        return lastBlock;
+    }
+
+    public StoredBlock getPreviousToLastBlock() {
+        return previousToLastBlock;
+    }
+}
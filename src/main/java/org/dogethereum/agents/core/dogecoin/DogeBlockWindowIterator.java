@@ -0,0 +1,88 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import org.bitcoinj.core.StoredBlock;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Groups a forward stream of Doge blocks into superblock time windows, oldest first.
+ * A window is returned as soon as the first block of a later window is read, or the stream ends,
+ * so memory use only depends on the size of a window. A block belongs to the window that's open
+ * when it's read, based on its timestamp.
+ * Iteration stops at the first window that doesn't end before the storing stop time,
+ * since its superblock might still get more blocks.
+ * Used both by SuperblockChain and by the offline bootstrap tool, so that they build the same superblocks.
+ */
+public class DogeBlockWindowIterator implements Iterator<DogeBlockWindow> {
+    private final Iterator<StoredBlock> dogeBlocks;
+    private final int superblockDuration;
+    private final Date storingStopTime;
+    // Last block added to a window.
+    private StoredBlock lastBlock;
+    // Block read from the stream that wasn't added to a window yet.
+    private StoredBlock nextBlock;
+    // End of the window starting with nextBlock, once it's known to be closed.
+    private Date nextEndTime;
+    private boolean openWindowReached = false;
+
+    /**
+     * Constructor.
+     * @param dogeBlocks Blocks to be grouped, sorted from oldest to newest.
+     * @param lastSuperblockedBlock Block right before the first one, i.e. the last block of the superblock chain.
+     * @param superblockDuration Length of a superblock time window, in seconds.
+     * @param storingStopTime Time before which a window must end for it to be returned.
+     */
+    public DogeBlockWindowIterator(Iterator<StoredBlock> dogeBlocks, StoredBlock lastSuperblockedBlock,
+                                   int superblockDuration, Date storingStopTime) {
+        this.dogeBlocks = dogeBlocks;
+        this.lastBlock = lastSuperblockedBlock;
+        this.superblockDuration = superblockDuration;
+        this.storingStopTime = storingStopTime;
+    }
+
+    /**
+     * Reads the first block of the next window if it wasn't read yet.
+     * @return True if there's a window that ends before the storing stop time.
+     */
+    @Override
+    public boolean hasNext() {
+        if (nextEndTime != null)
+            return true;
+        if (openWindowReached)
+            return false;
+        if (nextBlock == null) {
+            if (!dogeBlocks.hasNext())
+                return false;
+            nextBlock = dogeBlocks.next();
+        }
+        Date endTime = SuperblockUtils.getSuperblockEndTime(SuperblockUtils.getSuperblockStartTime(
+                nextBlock.getHeader().getTime(), superblockDuration), superblockDuration);
+        // Superblocks whose time window is still open are built later.
+        if (!endTime.before(storingStopTime)) {
+            openWindowReached = true;
+            return false;
+        }
+        nextEndTime = endTime;
+        return true;
+    }
+
+    /**
+     * Reads the blocks of the next window, along with the first block of the one after it.
+     * @return Next window.
+     */
+    @Override
+    public DogeBlockWindow next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        DogeBlockWindow window = new DogeBlockWindow(nextEndTime);
+        nextEndTime = null;
+        do {
+            window.add(nextBlock, lastBlock);
+            lastBlock = nextBlock;
+            nextBlock = dogeBlocks.hasNext() ? dogeBlocks.next() : null;
+        } while (nextBlock != null && nextBlock.getHeader().getTime().before(window.getEndTime()));
+        return window;
+    }
+}
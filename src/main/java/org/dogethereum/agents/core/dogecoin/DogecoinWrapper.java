@@ -5,6 +5,7 @@
 package org.dogethereum.agents.core.dogecoin;
 
 
+import com.google.common.cache.CacheStats;
 import lombok.extern.slf4j.Slf4j;
 import org.bitcoinj.core.*;
 import org.bitcoinj.kits.WalletAppKit;
@@ -16,6 +17,7 @@ import org.dogethereum.agents.util.AgentUtils;
 import org.dogethereum.agents.constants.AgentConstants;
 import org.dogethereum.agents.util.FileUtils;
 import org.dogethereum.agents.util.OperatorPublicKeyHandler;
+import org.fusesource.leveldbjni.JniDBFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -97,7 +99,12 @@ public class DogecoinWrapper {
             }
             @Override
             protected BlockStore provideBlockStore(File file) throws BlockStoreException {
-                return new AltcoinLevelDBBlockStore(dogeContext, getChainFile());
+                AltcoinLevelDBBlockStore store = new AltcoinLevelDBBlockStore(dogeContext, getChainFile(),
+                        JniDBFactory.factory, config.dogeBlockCacheMaxBytes());
+                // Coalesce header writes until start() returns, i.e. until the initial download is done.
+                if (config.dogeSyncBatchBlocks() > 0)
+                    store.startWriteCoalescing(config.dogeSyncBatchBlocks(), config.dogeSyncBatchMillis());
+                return store;
             }
             @Override
             protected boolean chainFileDelete(File chainFile) {
@@ -125,9 +132,10 @@ public class DogecoinWrapper {
         }
     }
 
-    public void start() {
+    public void start() throws BlockStoreException {
         Context.propagate(dogeContext);
         kit.startAsync().awaitRunning();
+        getBlockStore().stopWriteCoalescing();
     }
 
     public void stop() {
@@ -147,8 +155,53 @@ public class DogecoinWrapper {
         return kit.store().get(hash);
     }
 
+    /**
+     * Retrieves a Doge block along with its AuxPoW.
+     * getBlock() leaves the AuxPoW out, so this is only needed when the whole header is sent to the contracts.
+     * @param hash Doge block hash.
+     * @return Block, or null if it's not stored.
+     * @throws BlockStoreException
+     */
+    public StoredBlock getBlockWithAuxPoW(Sha256Hash hash) throws BlockStoreException {
+        return getBlockStore().getWithAuxPoW(hash);
+    }
+
+    /**
+     * Returns the Doge block store. The kit always uses the AltcoinLevelDBBlockStore created
+     * in provideBlockStore(), so the rest of the agent can rely on its height index and AuxPoW records.
+     * @return Doge block store.
+     */
+    public AltcoinLevelDBBlockStore getBlockStore() {
+        return (AltcoinLevelDBBlockStore) kit.store();
+    }
+
+    /**
+     * Retrieves the main chain block at a given height.
+     * @param height Block height.
+     * @return Main chain block at that height, or null if the chain isn't that high.
+     * @throws BlockStoreException
+     */
     public StoredBlock getStoredBlockAtHeight(int height) throws BlockStoreException {
-        return AgentUtils.getStoredBlockAtHeight(kit.store(), height);
+        // Single lookup in the height index instead of walking back from the head.
+        return getBlockStore().getMainChainBlock(height);
+    }
+
+    /**
+     * Checks whether a block is part of the Doge main chain.
+     * @param block Stored Doge block.
+     * @return True if the block is the main chain block at its height.
+     * @throws BlockStoreException
+     */
+    public boolean isInMainChain(StoredBlock block) throws BlockStoreException {
+        return getBlockStore().isInMainChain(block);
+    }
+
+    /**
+     * Returns Doge block cache statistics.
+     * @return Statistics of the block store's cache.
+     */
+    public CacheStats getBlockCacheStats() {
+        return getBlockStore().getCacheStats();
     }
 
     public Set<Transaction> getTransactions(int minconfirmations, boolean includeLock, boolean includeUnlock) {
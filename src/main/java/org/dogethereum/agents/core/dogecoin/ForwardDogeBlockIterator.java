@@ -0,0 +1,74 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStoreException;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over a range of the Doge main chain from the oldest block to the newest.
+ * Blocks are read one at a time by height through the block store's main chain height index,
+ * so every header is read once and memory use doesn't depend on the length of the range.
+ * Each block must point to the previous one, so a reorganisation of the range while iterating is detected
+ * instead of mixing blocks from two chains.
+ */
+public class ForwardDogeBlockIterator implements Iterator<StoredBlock> {
+    private final AltcoinLevelDBBlockStore blockStore;
+    private final Sha256Hash toHash;
+    private final int toHeight;
+    // Hash of the last block returned, or of from if none was.
+    private Sha256Hash previousHash;
+    private int nextHeight;
+
+    /**
+     * Constructor.
+     * @param blockStore Doge block store.
+     * @param from Block before the first one to be returned. Must be in the main chain.
+     * @param to Last block to be returned. Must be in the main chain and descend from from.
+     * @throws IllegalStateException if either block isn't in the main chain,
+     *         e.g. because of a Doge chain reorganisation.
+     */
+    public ForwardDogeBlockIterator(AltcoinLevelDBBlockStore blockStore, StoredBlock from, StoredBlock to) {
+        this.blockStore = blockStore;
+        this.toHash = to.getHeader().getHash();
+        this.toHeight = to.getHeight();
+        this.previousHash = from.getHeader().getHash();
+        this.nextHeight = from.getHeight() + 1;
+        if (!blockStore.isInMainChain(from) || !blockStore.isInMainChain(to) || toHeight < from.getHeight()) {
+            throw new IllegalStateException("Doge block " + toHash + " doesn't descend from " + previousHash +
+                    " in the main chain");
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextHeight <= toHeight;
+    }
+
+    /**
+     * @return Next block of the range.
+     * @throws IllegalStateException if the main chain changed within the range since the iterator was created.
+     */
+    @Override
+    public StoredBlock next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        StoredBlock block;
+        try {
+            block = blockStore.getMainChainBlock(nextHeight);
+        } catch (BlockStoreException e) {
+            throw new IllegalStateException(e);
+        }
+        Sha256Hash hash = block != null ? block.getHeader().getHash() : null;
+        if (block == null || !block.getHeader().getPrevBlockHash().equals(previousHash) ||
+                (nextHeight == toHeight && !hash.equals(toHash))) {
+            throw new IllegalStateException("Doge main chain changed at height " + nextHeight +
+                    " while iterating up to " + toHash);
+        }
+        previousHash = hash;
+        nextHeight++;
+        return block;
+    }
+}
@@ -0,0 +1,284 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import com.google.common.cache.CacheStats;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.store.BlockStoreException;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Superblock store that keeps everything on the heap.
+ * Maintains the same indexes as SuperblockLevelDBBlockStore, so chains can be built and queried
+ * without native LevelDB files, e.g. in tests and benchmarks. Nothing survives the process.
+ */
+public class InMemorySuperblockStore implements SuperblockStore {
+    private static final CacheStats NO_CACHE_STATS = new CacheStats(0, 0, 0, 0, 0, 0);
+
+    private final Superblock genesisSuperblock;
+
+    private final Map<Keccak256Hash, Superblock> superblocks = new HashMap<>();
+    private final Map<Long, Keccak256Hash> mainChainIds = new HashMap<>();
+    private final Map<Keccak256Hash, Keccak256Hash> mainChainChildIds = new HashMap<>();
+    private final Map<Keccak256Hash, Set<Keccak256Hash>> childrenIds = new HashMap<>();
+    private final Map<Sha256Hash, DogeBlockLocation> dogeBlockLocations = new HashMap<>();
+    private final Set<Keccak256Hash> tipIds = new LinkedHashSet<>();
+    private Superblock chainHead;
+    private long prunedHeight = 0;
+
+
+    /* ---- ESSENTIAL METHODS ---- */
+
+    /**
+     * Constructor.
+     * @param genesisSuperblock First superblock of the chain. It's stored right away and becomes the chain head.
+     * @throws IOException
+     */
+    public InMemorySuperblockStore(Superblock genesisSuperblock) throws IOException {
+        this.genesisSuperblock = genesisSuperblock;
+        putAll(Collections.singletonList(genesisSuperblock), genesisSuperblock);
+    }
+
+    @Override
+    public synchronized void put(Superblock block) throws IOException {
+        putAll(Collections.singletonList(block), null);
+    }
+
+    @Override
+    public synchronized void putAll(List<Superblock> superblocks, Superblock newChainHead) throws IOException {
+        for (Superblock superblock : superblocks) {
+            Keccak256Hash superblockId = superblock.getSuperblockId();
+            // Stored superblocks keep their tip status and, if they were pruned, stay pruned.
+            if (this.superblocks.containsKey(superblockId))
+                continue;
+            tipIds.remove(superblock.getParentId());
+            tipIds.add(superblockId);
+            this.superblocks.put(superblockId, superblock);
+            Set<Keccak256Hash> siblings = childrenIds.get(superblock.getParentId());
+            if (siblings == null) {
+                siblings = new LinkedHashSet<>();
+                childrenIds.put(superblock.getParentId(), siblings);
+            }
+            siblings.add(superblockId);
+            indexDogeBlocks(superblock, true);
+        }
+        if (newChainHead != null)
+            writeChainHead(newChainHead);
+    }
+
+    @Override
+    public synchronized Superblock get(Keccak256Hash superblockId) {
+        return superblocks.get(superblockId);
+    }
+
+    @Override
+    public synchronized Superblock getByHeight(long height) {
+        Keccak256Hash superblockId = mainChainIds.get(height);
+        if (superblockId == null)
+            return null;
+        return superblocks.get(superblockId);
+    }
+
+    @Override
+    public synchronized Keccak256Hash getMainChainSuperblockId(long height) {
+        return mainChainIds.get(height);
+    }
+
+    @Override
+    public synchronized Stream<Keccak256Hash> getMainChainIds(long fromHeight, long toHeight) {
+        // Copied, so that the stream isn't affected by later writes.
+        return LongStream.rangeClosed(Math.max(0, fromHeight), Math.min(toHeight, chainHead.getSuperblockHeight()))
+                .mapToObj(mainChainIds::get).collect(Collectors.toList()).stream();
+    }
+
+    @Override
+    public synchronized Stream<Superblock> getMainChain(long fromHeight, long toHeight) {
+        return getMainChainIds(fromHeight, toHeight).map(superblocks::get).collect(Collectors.toList()).stream();
+    }
+
+    @Override
+    public synchronized Keccak256Hash getMainChainChildId(Keccak256Hash superblockId) {
+        return mainChainChildIds.get(superblockId);
+    }
+
+    @Override
+    public synchronized List<Keccak256Hash> getChildrenIds(Keccak256Hash superblockId) {
+        Set<Keccak256Hash> children = childrenIds.get(superblockId);
+        if (children == null)
+            return new ArrayList<>();
+        return new ArrayList<>(children);
+    }
+
+    @Override
+    public synchronized DogeBlockLocation getDogeBlockLocation(Sha256Hash dogeBlockHash) {
+        return dogeBlockLocations.get(dogeBlockHash);
+    }
+
+    @Override
+    public synchronized DogeBlockLocation getMainChainDogeBlockLocation(Sha256Hash dogeBlockHash) {
+        DogeBlockLocation location = dogeBlockLocations.get(dogeBlockHash);
+        if (location == null || !location.getSuperblockId().equals(mainChainIds.get(location.getSuperblockHeight())))
+            return null;
+        return location;
+    }
+
+    @Override
+    public synchronized List<SuperblockTip> getTips() throws IOException {
+        List<SuperblockTip> tips = new ArrayList<>();
+        for (Keccak256Hash tipId : tipIds) {
+            Superblock tip = superblocks.get(tipId);
+            Superblock current = tip;
+            while (!current.getSuperblockId().equals(mainChainIds.get(current.getSuperblockHeight()))) {
+                current = superblocks.get(current.getParentId());
+                if (current == null)
+                    throw new IOException("Superblock branch ending at " + tipId + " is not connected.");
+            }
+            tips.add(new SuperblockTip(tipId, tip.getSuperblockHeight(), tip.getChainWork(),
+                    current.getSuperblockId(), current.getSuperblockHeight()));
+        }
+        return tips;
+    }
+
+    @Override
+    public synchronized long pruneBelow(long height) throws IOException {
+        long target = Math.min(height, chainHead.getSuperblockHeight());
+        long pruned = 0;
+        for (; prunedHeight < target; prunedHeight++) {
+            Superblock superblock = superblocks.get(mainChainIds.get(prunedHeight));
+            if (superblock.getDogeBlockHashes().isEmpty())
+                continue;
+            superblocks.put(superblock.getSuperblockId(), new Superblock(superblock.getMerkleRoot(),
+                    superblock.getChainWork(), superblock.getLastDogeBlockTime(),
+                    superblock.getPreviousToLastDogeBlockTime(), superblock.getLastDogeBlockHash(),
+                    superblock.getLastDogeBlockBits(), superblock.getParentId(), superblock.getSuperblockHeight()));
+            pruned++;
+        }
+        return pruned;
+    }
+
+    @Override
+    public synchronized long getPrunedHeight() {
+        return prunedHeight;
+    }
+
+    /**
+     * Returns superblock cache statistics.
+     * @return All zero, since superblocks are never deserialised.
+     */
+    @Override
+    public CacheStats getCacheStats() {
+        return NO_CACHE_STATS;
+    }
+
+    /**
+     * Erases the contents of the store and stores the genesis superblock again.
+     * @throws BlockStoreException
+     */
+    @Override
+    public synchronized void reset() throws BlockStoreException {
+        superblocks.clear();
+        mainChainIds.clear();
+        mainChainChildIds.clear();
+        childrenIds.clear();
+        dogeBlockLocations.clear();
+        tipIds.clear();
+        chainHead = null;
+        prunedHeight = 0;
+        try {
+            putAll(Collections.singletonList(genesisSuperblock), genesisSuperblock);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+
+    /* ---- CHAIN HEAD METHODS ---- */
+
+    @Override
+    public synchronized Superblock getChainHead() {
+        return chainHead;
+    }
+
+    @Override
+    public synchronized Keccak256Hash getChainHeadId() throws BlockStoreException {
+        try {
+            return chainHead.getSuperblockId();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized long getChainHeight() {
+        return chainHead.getSuperblockHeight();
+    }
+
+    @Override
+    public synchronized BigInteger getChainHeadWork() {
+        return chainHead.getChainWork();
+    }
+
+    @Override
+    public synchronized void setChainHead(Superblock chainHead) throws IOException {
+        putAll(Collections.<Superblock>emptyList(), chainHead);
+    }
+
+    /**
+     * Sets the chain head and reindexes the main chain from it down to the fork point with the old one.
+     * @param newChainHead New tip of the superblock chain.
+     * @throws IOException
+     */
+    private void writeChainHead(Superblock newChainHead) throws IOException {
+        if (chainHead != null) {
+            // The new main chain might be shorter than the old one.
+            for (long h = chainHead.getSuperblockHeight(); h > newChainHead.getSuperblockHeight(); h--) {
+                Keccak256Hash oldSuperblockId = mainChainIds.remove(h);
+                if (oldSuperblockId != null)
+                    mainChainChildIds.remove(oldSuperblockId);
+            }
+        }
+        // Nothing comes after the head.
+        mainChainChildIds.remove(newChainHead.getSuperblockId());
+
+        Superblock current = newChainHead;
+        while (current != null) {
+            Keccak256Hash superblockId = current.getSuperblockId();
+            Keccak256Hash replacedSuperblockId = mainChainIds.put(current.getSuperblockHeight(), superblockId);
+            if (superblockId.equals(replacedSuperblockId))
+                break;
+            if (replacedSuperblockId != null)
+                mainChainChildIds.remove(replacedSuperblockId);
+            mainChainChildIds.put(current.getParentId(), superblockId);
+            indexDogeBlocks(current, false);
+            current = superblocks.get(current.getParentId());
+        }
+
+        chainHead = newChainHead;
+    }
+
+    /**
+     * Points the Doge block index entries of all the blocks in a superblock to it.
+     * @param superblock Superblock whose blocks are indexed.
+     * @param keepExisting If true, blocks that already have an entry are skipped,
+     *                     since it might point to the main chain.
+     * @throws IOException
+     */
+    private void indexDogeBlocks(Superblock superblock, boolean keepExisting) throws IOException {
+        Keccak256Hash superblockId = superblock.getSuperblockId();
+        List<Sha256Hash> dogeBlockHashes = superblock.getDogeBlockHashes();
+        for (int i = 0; i < dogeBlockHashes.size(); i++) {
+            if (keepExisting && dogeBlockLocations.containsKey(dogeBlockHashes.get(i)))
+                continue;
+            dogeBlockLocations.put(dogeBlockHashes.get(i),
+                    new DogeBlockLocation(superblockId, superblock.getSuperblockHeight(), i));
+        }
+    }
+}
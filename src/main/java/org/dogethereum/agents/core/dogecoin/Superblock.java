@@ -5,10 +5,10 @@ import org.bitcoinj.core.*;
 import org.spongycastle.util.encoders.Hex;
 import org.web3j.crypto.Hash;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Date;
@@ -59,19 +59,19 @@ public class Superblock {
     public static final int UINT32_LENGTH = 4;
 
     // Offsets for deserialising a Superblock object
-    private static final int MERKLE_ROOT_PAYLOAD_OFFSET = 0;
-    private static final int CHAIN_WORK_PAYLOAD_OFFSET = MERKLE_ROOT_PAYLOAD_OFFSET + HASH_BYTES_LENGTH;
-    private static final int LAST_BLOCK_TIME_PAYLOAD_OFFSET = CHAIN_WORK_PAYLOAD_OFFSET + BIG_INTEGER_LENGTH;
-    private static final int PREVIOUS_TO_LAST_BLOCK_TIME_PAYLOAD_OFFSET =
+    static final int MERKLE_ROOT_PAYLOAD_OFFSET = 0;
+    static final int CHAIN_WORK_PAYLOAD_OFFSET = MERKLE_ROOT_PAYLOAD_OFFSET + HASH_BYTES_LENGTH;
+    static final int LAST_BLOCK_TIME_PAYLOAD_OFFSET = CHAIN_WORK_PAYLOAD_OFFSET + BIG_INTEGER_LENGTH;
+    static final int PREVIOUS_TO_LAST_BLOCK_TIME_PAYLOAD_OFFSET =
             LAST_BLOCK_TIME_PAYLOAD_OFFSET + BIG_INTEGER_LENGTH;
-    private static final int LAST_BLOCK_HASH_PAYLOAD_OFFSET =
+    static final int LAST_BLOCK_HASH_PAYLOAD_OFFSET =
             PREVIOUS_TO_LAST_BLOCK_TIME_PAYLOAD_OFFSET + BIG_INTEGER_LENGTH;
-    private static final int LAST_BLOCK_BITS_PAYLOAD_OFFSET = LAST_BLOCK_HASH_PAYLOAD_OFFSET + HASH_BYTES_LENGTH;
-    private static final int PARENT_ID_PAYLOAD_OFFSET = LAST_BLOCK_BITS_PAYLOAD_OFFSET + UINT32_LENGTH;
+    static final int LAST_BLOCK_BITS_PAYLOAD_OFFSET = LAST_BLOCK_HASH_PAYLOAD_OFFSET + HASH_BYTES_LENGTH;
+    static final int PARENT_ID_PAYLOAD_OFFSET = LAST_BLOCK_BITS_PAYLOAD_OFFSET + UINT32_LENGTH;
 
-    private static final int SUPERBLOCK_HEIGHT_PAYLOAD_OFFSET = PARENT_ID_PAYLOAD_OFFSET + HASH_BYTES_LENGTH;
-    private static final int NUMBER_OF_HASHES_PAYLOAD_OFFSET = SUPERBLOCK_HEIGHT_PAYLOAD_OFFSET + UINT32_LENGTH;
-    private static final int DOGE_BLOCK_HASHES_PAYLOAD_OFFSET = NUMBER_OF_HASHES_PAYLOAD_OFFSET + UINT32_LENGTH;
+    static final int SUPERBLOCK_HEIGHT_PAYLOAD_OFFSET = PARENT_ID_PAYLOAD_OFFSET + HASH_BYTES_LENGTH;
+    static final int NUMBER_OF_HASHES_PAYLOAD_OFFSET = SUPERBLOCK_HEIGHT_PAYLOAD_OFFSET + UINT32_LENGTH;
+    static final int DOGE_BLOCK_HASHES_PAYLOAD_OFFSET = NUMBER_OF_HASHES_PAYLOAD_OFFSET + UINT32_LENGTH;
 
 
     /* ---- CONSTRUCTION METHODS ---- */
@@ -91,14 +91,27 @@ public class Superblock {
     public Superblock(NetworkParameters params, List<Sha256Hash> dogeBlockHashes, BigInteger chainWork,
                       long lastDogeBlockTime, long previousToLastDogeBlockTime, long lastDogeBlockBits,
                       Keccak256Hash parentId, long superblockHeight) {
-        // hash all the block dogeBlockHashes into a Merkle tree
-        byte[] includeBits = new byte[(int) Math.ceil(dogeBlockHashes.size() / 8.0)];
-        for (int i = 0; i < dogeBlockHashes.size(); i++)
-            Utils.setBitLE(includeBits, i);
-        PartialMerkleTree dogeBlockHashesFullMerkleTree = PartialMerkleTree.buildFromLeaves(
-                params, includeBits, dogeBlockHashes);
-
-        this.merkleRoot = dogeBlockHashesFullMerkleTree.getTxnHashAndMerkleRoot(dogeBlockHashes);
+        this(SuperblockMerkle.computeRoot(dogeBlockHashes), dogeBlockHashes, chainWork, lastDogeBlockTime,
+                previousToLastDogeBlockTime, lastDogeBlockBits, parentId, superblockHeight);
+    }
+
+    /**
+     * Constructs a Superblock object from a list of Dogecoin block hashes whose Merkle root was already calculated,
+     * e.g. in parallel with other superblocks' roots.
+     * @param merkleRoot Merkle root of dogeBlockHashes, as calculated by SuperblockMerkle.
+     * @param dogeBlockHashes List of hashes belonging to all Dogecoin blocks
+     *                        mined within the one hour lapse corresponding to this superblock.
+     * @param chainWork Last Dogecoin block's accumulated chainwork.
+     * @param lastDogeBlockTime Last Dogecoin block's timestamp.
+     * @param previousToLastDogeBlockTime Previous to last Dogecoin block's timestamp.
+     * @param lastDogeBlockBits Last Dogecoin block's difficulty.
+     * @param parentId Previous superblock's SHA-256 hash.
+     * @param superblockHeight Height of this superblock within superblock chain.
+     */
+    public Superblock(Sha256Hash merkleRoot, List<Sha256Hash> dogeBlockHashes, BigInteger chainWork,
+                      long lastDogeBlockTime, long previousToLastDogeBlockTime, long lastDogeBlockBits,
+                      Keccak256Hash parentId, long superblockHeight) {
+        this.merkleRoot = merkleRoot;
         this.chainWork = chainWork;
         this.lastDogeBlockTime = lastDogeBlockTime;
         this.previousToLastDogeBlockTime = previousToLastDogeBlockTime;
@@ -162,16 +175,25 @@ public class Superblock {
         this.dogeBlockHashes = deserializeHashesLE(payload, DOGE_BLOCK_HASHES_PAYLOAD_OFFSET, numberOfDogeBlockHashes);
     }
 
+    /**
+     * Constructs a Superblock object from an array representing a serialized superblock whose ID is already known,
+     * e.g. because it's the key it was stored under. This avoids recalculating the Keccak-256 hash.
+     * @param payload Serialized superblock.
+     * @param superblockId Superblock ID. It's trusted to be the hash of the payload's data.
+     * @throws ProtocolException
+     */
+    public Superblock(byte[] payload, Keccak256Hash superblockId) throws ProtocolException {
+        this(payload);
+        this.superblockId = superblockId;
+    }
+
     /**
      * Calculates Keccak-256 hash of superblock data.
      * @return Superblock ID in Keccak wrapper format.
      * @throws IOException
      */
     private Keccak256Hash calculateHash() throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        serializeBE(outputStream);
-        byte[] data = outputStream.toByteArray();
-        return Keccak256Hash.of(data);
+        return SuperblockEncoder.calculateId(this);
     }
 
 
@@ -271,13 +293,9 @@ public class Superblock {
      * @throws IOException if a byte operation fails.
      */
     public void serializeLE(OutputStream stream) throws IOException {
-        stream.write(merkleRoot.getReversedBytes()); // 32
-        stream.write(Utils.reverseBytes(SuperblockUtils.toBytes32(chainWork))); // 32
-        stream.write(Utils.reverseBytes(SuperblockUtils.toBytes32(lastDogeBlockTime))); // 32
-        stream.write(Utils.reverseBytes(SuperblockUtils.toBytes32(previousToLastDogeBlockTime))); // 32
-        stream.write(lastDogeBlockHash.getReversedBytes()); // 32
-        stream.write(Utils.reverseBytes(SuperblockUtils.toUint32(lastDogeBlockBits))); // 4
-        stream.write(parentId.getReversedBytes()); // 32
+        ByteBuffer buffer = SuperblockEncoder.getThreadBuffer(SuperblockEncoder.HEADER_LENGTH);
+        SuperblockEncoder.encodeLE(this, buffer);
+        stream.write(buffer.array(), 0, buffer.position());
     }
 
     /**
@@ -287,13 +305,9 @@ public class Superblock {
      * @throws IOException if a byte operation fails.
      */
     public void serializeBE(OutputStream stream) throws IOException {
-        stream.write(merkleRoot.getBytes());
-        stream.write(SuperblockUtils.toBytes32(chainWork));
-        stream.write(SuperblockUtils.toBytes32(lastDogeBlockTime));
-        stream.write(SuperblockUtils.toBytes32(previousToLastDogeBlockTime));
-        stream.write(lastDogeBlockHash.getBytes());
-        stream.write(SuperblockUtils.toUint32(lastDogeBlockBits));
-        stream.write(parentId.getBytes());
+        ByteBuffer buffer = SuperblockEncoder.getThreadBuffer(SuperblockEncoder.HEADER_LENGTH);
+        SuperblockEncoder.encodeBE(this, buffer);
+        stream.write(buffer.array(), 0, buffer.position());
     }
 
     /**
@@ -307,11 +321,9 @@ public class Superblock {
      * @throws IOException
      */
     public void serializeForStorage(OutputStream stream) throws IOException {
-        serializeLE(stream);
-
-        Utils.uint32ToByteStreamLE(superblockHeight, stream);
-        Utils.uint32ToByteStreamLE(dogeBlockHashes.size(), stream);
-        serializeHashesLE(dogeBlockHashes, stream);
+        ByteBuffer buffer = SuperblockEncoder.getThreadBuffer(SuperblockEncoder.getStorageLength(this));
+        SuperblockEncoder.encodeForStorage(this, buffer);
+        stream.write(buffer.array(), 0, buffer.position());
     }
 
     /**
@@ -1,5 +1,8 @@
 package org.dogethereum.agents.core.dogecoin;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import lombok.extern.slf4j.Slf4j;
 
 import org.bitcoinj.core.*;
@@ -16,13 +19,14 @@ import javax.annotation.PostConstruct;
 import java.io.*;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.stream.Stream;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 
 /**
  * Provides methods for interacting with a superblock chain.
- * Storage is managed by SuperblockLevelDBBlockStore.
+ * Storage is managed by a SuperblockStore, which is a SuperblockLevelDBBlockStore unless another one is given.
  * @author Catalina Juarros
  */
 
@@ -34,18 +38,46 @@ public class SuperblockChain {
     @Autowired
     private SuperblockConstantProvider provider; // Interface with the Ethereum blockchain
     private NetworkParameters params;
-    private SuperblockLevelDBBlockStore superblockStorage; // database for storing superblocks
+    private SuperblockStore superblockStorage; // database for storing superblocks
 
     int SUPERBLOCK_DURATION; // time window for a superblock (in seconds)
     private int SUPERBLOCK_DELAY; // time to wait before building a superblock
     private int SUPERBLOCK_STORING_WINDOW; // small time window between storing and sending to avoid losing sync
 
+    // Maximum number of superblocks committed to the store in a single write while catching up.
+    static final int SUPERBLOCK_WRITE_BATCH_SIZE = 100;
+    // Maximum number of superblock Merkle trees kept for building SPV branches.
+    private static final int MERKLE_TREE_CACHE_SIZE = 100;
+
+    // Merkle trees of superblocks whose blocks were relayed recently, so that relaying several transactions
+    // from the same superblock only hashes its tree once.
+    private final Cache<Keccak256Hash, SuperblockMerkleTree> merkleTrees =
+            CacheBuilder.newBuilder().maximumSize(MERKLE_TREE_CACHE_SIZE).build();
+
 
     /* ---- CONSTRUCTION METHODS ---- */
 
     @Autowired
     public SuperblockChain() throws Exception, BlockStoreException {}
 
+    /**
+     * Builds a chain on top of a given store instead of the LevelDB one in the data directory,
+     * e.g. an InMemorySuperblockStore.
+     * @param dogecoinWrapper Interface with the Doge blockchain.
+     * @param provider Interface with the Ethereum blockchain.
+     * @param params Dogecoin network parameters.
+     * @param superblockStorage Store holding the superblocks. Must already contain the genesis superblock.
+     * @throws Exception if superblock duration or delay cannot be retrieved from SuperblockConstantProvider.
+     */
+    public SuperblockChain(DogecoinWrapper dogecoinWrapper, SuperblockConstantProvider provider,
+                           NetworkParameters params, SuperblockStore superblockStorage) throws Exception {
+        this.dogecoinWrapper = dogecoinWrapper;
+        this.provider = provider;
+        this.params = params;
+        this.superblockStorage = superblockStorage;
+        setupConstants();
+    }
+
     /**
      * Sets up variables and initialises chain.
      * @throws Exception if superblock duration or delay cannot be retrieved from SuperblockConstantProvider.
@@ -60,92 +92,168 @@ public class SuperblockChain {
         File chainFile = new File(directory.getAbsolutePath() + "/SuperblockChain");
         this.params = agentConstants.getDogeParams();
         this.superblockStorage = new SuperblockLevelDBBlockStore(context, chainFile, params);
+        setupConstants();
+    }
+
+    /**
+     * Reads superblock timing constants.
+     * @throws Exception if superblock duration or delay cannot be retrieved from SuperblockConstantProvider.
+     */
+    private void setupConstants() throws Exception {
         this.SUPERBLOCK_DURATION = provider.getSuperblockDuration().intValue();
         this.SUPERBLOCK_DELAY = provider.getSuperblockDelay().intValue();
         this.SUPERBLOCK_STORING_WINDOW = 60; // store superblocks one minute before they should be sent
     }
 
     /**
-     * Given a stack of blocks to hash, builds and stores superblocks based on the blocks' timestamps.
-     * @param allDogeHashesToHash All the Dogecoin blocks that come after the last block of the last stored superblock.
-     *                            This stack should be sorted from least to most recently mined,
-     *                            i.e. the top block's hash should be the previous block hash of the block underneath it
-     *                            and so on.
-     *                            Modified by function: all the blocks up to and not including the first ('highest') one
-     *                            that was mined under three hours ago are popped.
-     * @param initialPreviousSuperblockHash Keccak-256 hash of the last stored superblock.
+     * Builds and stores superblocks for all the Dogecoin blocks that came after the last block of the chain head,
+     * based on the blocks' timestamps.
+     * Blocks are streamed from oldest to newest and grouped into time windows by a DogeBlockWindowIterator,
+     * so a superblock is emitted as soon as its time window closes and memory use doesn't depend on
+     * how far behind the superblock chain is. The chain head doubles as the builder's persisted cursor:
+     * its last Doge block is the last block that was superblocked.
+     * Only superblocks whose time window ended before the storing stop time are built.
+     * If the Doge chain was reorganised below that block, the chain head is first moved back onto the new
+     * Doge chain, and the new superblocks form a branch of their own; the old one stays stored as a tip.
+     * New superblocks are committed to the store every SUPERBLOCK_WRITE_BATCH_SIZE superblocks,
+     * each time in a single write along with the new chain head.
+     * @param dogeChainHead Newest Dogecoin block to take into account.
      * @throws Exception
      */
-    public void storeSuperblocks(Stack<Sha256Hash> allDogeHashesToHash, Keccak256Hash initialPreviousSuperblockHash)
-            throws Exception {
-        if (allDogeHashesToHash.empty())
+    public void storeSuperblocks(StoredBlock dogeChainHead) throws Exception {
+        Superblock chainHead = getChainHead();
+        StoredBlock lastSuperblockedBlock = dogecoinWrapper.getBlock(chainHead.getLastDogeBlockHash());
+        if (lastSuperblockedBlock == null)
+            throw new Exception("Last block of superblock chain head " + chainHead.getSuperblockId() +
+                    " is not in the Doge block store.");
+        StoredBlock dogeSplitPoint = findDogeSplit(lastSuperblockedBlock, dogeChainHead);
+        if (!dogeSplitPoint.getHeader().getHash().equals(lastSuperblockedBlock.getHeader().getHash())) {
+            chainHead = switchToDogeBranch(chainHead, dogeSplitPoint, dogeChainHead);
+            lastSuperblockedBlock = dogecoinWrapper.getBlock(chainHead.getLastDogeBlockHash());
+        }
+        if (dogeChainHead.getHeight() <= lastSuperblockedBlock.getHeight())
             return;
 
-        Date nextSuperblockStartTime =
-                getStartTime(dogecoinWrapper.getBlock(allDogeHashesToHash.peek()).getHeader().getTime());
-        Date nextSuperblockEndTime = getEndTime(nextSuperblockStartTime);
-
-        List<Sha256Hash> nextSuperblockDogeHashes = new ArrayList<>();
-        Keccak256Hash nextSuperblockPrevHash = initialPreviousSuperblockHash;
-        long nextSuperblockHeight = getChainHeight() + 1;
-
-        // build and store all superblocks whose last block was mined three hours ago or more
-        while (!allDogeHashesToHash.empty() && nextSuperblockEndTime.before(getStoringStopTime())) {
-            // Modify allDogeHashesToHash and get hashes for next superblock.
-            nextSuperblockDogeHashes = popBlocksBeforeTime(allDogeHashesToHash, nextSuperblockEndTime);
-            StoredBlock nextSuperblockLastBlock = dogecoinWrapper.getBlock(
-                    nextSuperblockDogeHashes.get(nextSuperblockDogeHashes.size() - 1));
-            StoredBlock nextSuperblockPreviousToLastBlock =
-                    dogecoinWrapper.getBlock(nextSuperblockLastBlock.getHeader().getPrevBlockHash());
-
-            Superblock newSuperblock = new Superblock(this.params, nextSuperblockDogeHashes,
-                    nextSuperblockLastBlock.getChainWork(), nextSuperblockLastBlock.getHeader().getTimeSeconds(),
-                    nextSuperblockPreviousToLastBlock.getHeader().getTimeSeconds(),
-                    nextSuperblockLastBlock.getHeader().getDifficultyTarget(),
+        Iterator<DogeBlockWindow> windows = new DogeBlockWindowIterator(
+                new ForwardDogeBlockIterator(dogecoinWrapper.getBlockStore(), lastSuperblockedBlock, dogeChainHead),
+                lastSuperblockedBlock, SUPERBLOCK_DURATION, getStoringStopTime());
+
+        Keccak256Hash nextSuperblockPrevHash = chainHead.getSuperblockId();
+        long nextSuperblockHeight = chainHead.getSuperblockHeight() + 1;
+        List<Superblock> newSuperblocks = new ArrayList<>();
+        Superblock newChainHead = null;
+        BigInteger bestChainWork = superblockStorage.getChainHeadWork();
+        int storedSuperblocks = 0;
+
+        while (windows.hasNext()) {
+            DogeBlockWindow window = windows.next();
+            Superblock newSuperblock = window.toSuperblock(SuperblockMerkle.computeRoot(window.getDogeBlockHashes()),
                     nextSuperblockPrevHash, nextSuperblockHeight);
-            superblockStorage.put(newSuperblock);
-            if (newSuperblock.getChainWork().compareTo(superblockStorage.getChainHeadWork()) > 0) {
-                superblockStorage.setChainHead(newSuperblock);
-                log.info("New superblock chain head {}", newSuperblock);
+            newSuperblocks.add(newSuperblock);
+            if (newSuperblock.getChainWork().compareTo(bestChainWork) > 0) {
+                newChainHead = newSuperblock;
+                bestChainWork = newSuperblock.getChainWork();
             }
+            nextSuperblockPrevHash = newSuperblock.getSuperblockId();
+            nextSuperblockHeight++;
 
-            // set prev hash and end time for next superblock
-            if (!allDogeHashesToHash.empty()) {
-                nextSuperblockPrevHash = newSuperblock.getSuperblockId();
-                nextSuperblockStartTime =
-                        getStartTime(dogecoinWrapper.getBlock(allDogeHashesToHash.peek()).getHeader().getTime());
-                nextSuperblockEndTime = getEndTime(nextSuperblockStartTime);
-                nextSuperblockHeight++;
+            if (newSuperblocks.size() >= SUPERBLOCK_WRITE_BATCH_SIZE) {
+                storedSuperblocks += writeSuperblocks(newSuperblocks, newChainHead);
+                newChainHead = null;
             }
-
-            nextSuperblockDogeHashes.clear();
         }
+
+        storedSuperblocks += writeSuperblocks(newSuperblocks, newChainHead);
+        if (storedSuperblocks > 0)
+            log.debug("Stored {} new superblocks.", storedSuperblocks);
     }
 
     /**
-     * Given a stack of blocks sorted from least to most recently mined,
-     * returns a list of hashes belonging to those which were mined before a certain time.
-     * These blocks can be used for constructing a superblock mined before a certain time.
-     * @param hashStack All the Dogecoin blocks that come after the last block of the last stored superblock.
-     *                  Must not be empty.
-     *                  Modified by function: all the blocks up to and not including the first ('highest') one
-     *                  that was mined after endTime are popped.
-     * @param endTime Time limit of the superblock that this method is being used to construct.
-     * @return List of superblocks mined before endTime, sorted from least to most recently mined.
-     * @throws Exception if list is empty.
+     * Moves the chain head back to the newest main chain superblock that only contains blocks of the current
+     * Doge chain, or to a previously built branch that follows the current Doge chain from there, if any.
+     * Only the index entries above the fork point are rewritten.
+     * @param chainHead Current chain head, whose last block is no longer part of the Doge main chain.
+     * @param dogeSplitPoint Newest block shared by the chain head's Doge branch and the current one.
+     * @param dogeChainHead Tip of the current Doge chain.
+     * @return New chain head.
+     * @throws Exception if the Doge chain forked before the superblock chain starts
+     *         or within its pruned part, whose superblocks don't have their Doge block hashes anymore.
      */
-    private List<Sha256Hash> popBlocksBeforeTime(Stack<Sha256Hash> hashStack, Date endTime) throws Exception {
-        if (hashStack.empty()) {
-            throw new Exception("List of blocks to pop must not be empty.");
+    private Superblock switchToDogeBranch(Superblock chainHead, StoredBlock dogeSplitPoint,
+                                          StoredBlock dogeChainHead) throws Exception {
+        Sha256Hash dogeSplitHash = dogeSplitPoint.getHeader().getHash();
+        DogeBlockLocation location = superblockStorage.getMainChainDogeBlockLocation(dogeSplitHash);
+        if (location == null)
+            throw new Exception("Doge chain forked at block " + dogeSplitHash + ", before the superblock chain.");
+        long prunedHeight = superblockStorage.getPrunedHeight();
+        if (location.getSuperblockHeight() < prunedHeight)
+            throw new Exception("Doge chain forked at block " + dogeSplitHash + " in superblock " +
+                    location.getSuperblockId() + " at height " + location.getSuperblockHeight() +
+                    ", below the pruned height " + prunedHeight + ".");
+        Superblock newChainHead = superblockStorage.get(location.getSuperblockId());
+        if (!dogeSplitHash.equals(newChainHead.getLastDogeBlockHash())) {
+            // The superblock also has blocks that were reorganised away.
+            newChainHead = getParent(newChainHead);
+        }
+
+        // Any branch that's still valid has to fork right at the new head, since every main chain superblock
+        // above it has blocks from the old Doge branch.
+        Keccak256Hash forkPointId = newChainHead.getSuperblockId();
+        for (SuperblockTip tip : superblockStorage.getTips()) {
+            if (!tip.getForkPointId().equals(forkPointId) || tip.isMainChain() ||
+                    tip.getChainWork().compareTo(newChainHead.getChainWork()) <= 0)
+                continue;
+            Superblock tipSuperblock = superblockStorage.get(tip.getSuperblockId());
+            StoredBlock tipLastBlock = dogecoinWrapper.getBlock(tipSuperblock.getLastDogeBlockHash());
+            if (tipLastBlock != null && tipLastBlock.getHeader().getHash().equals(
+                    findDogeSplit(tipLastBlock, dogeChainHead).getHeader().getHash()))
+                newChainHead = tipSuperblock;
         }
 
-        List<Sha256Hash> poppedBlocks = new ArrayList<>();
+        superblockStorage.setChainHead(newChainHead);
+        log.info("Doge chain reorganised at block {}. Superblock chain head moved from {} to {}",
+                dogeSplitHash, chainHead.getSuperblockId(), newChainHead.getSuperblockId());
+        return newChainHead;
+    }
 
-        while (!hashStack.empty() && dogecoinWrapper.getBlock(hashStack.peek()).getHeader().getTime().before(endTime)) {
-            poppedBlocks.add(hashStack.pop());
+    /**
+     * Finds the newest block that two Doge blocks descend from.
+     * @param oldBlock Block of a possibly abandoned Doge branch.
+     * @param newBlock Block of the current Doge chain.
+     * @return Common ancestor, which is oldBlock itself if newBlock descends from it.
+     * @throws Exception if the blocks don't have a common ancestor in the Doge block store.
+     */
+    private StoredBlock findDogeSplit(StoredBlock oldBlock, StoredBlock newBlock) throws Exception {
+        StoredBlock currentOld = oldBlock;
+        StoredBlock currentNew = newBlock;
+        while (!currentOld.getHeader().getHash().equals(currentNew.getHeader().getHash())) {
+            if (currentNew.getHeight() >= currentOld.getHeight())
+                currentNew = dogecoinWrapper.getBlock(currentNew.getHeader().getPrevBlockHash());
+            else
+                currentOld = dogecoinWrapper.getBlock(currentOld.getHeader().getPrevBlockHash());
+            if (currentOld == null || currentNew == null)
+                throw new Exception("Doge blocks " + oldBlock.getHeader().getHash() + " and " +
+                        newBlock.getHeader().getHash() + " have no common ancestor in the Doge block store.");
         }
+        return currentOld;
+    }
 
-        return poppedBlocks;
+    /**
+     * Commits superblocks and, if there is one, a new chain head in a single write.
+     * @param newSuperblocks Superblocks to be written, sorted from oldest to newest. Cleared after writing.
+     * @param newChainHead New chain head, or null if it doesn't change.
+     * @return Number of superblocks written.
+     * @throws IOException
+     */
+    private int writeSuperblocks(List<Superblock> newSuperblocks, Superblock newChainHead) throws IOException {
+        if (newSuperblocks.isEmpty())
+            return 0;
+        int written = newSuperblocks.size();
+        superblockStorage.putAll(newSuperblocks, newChainHead);
+        newSuperblocks.clear();
+        if (newChainHead != null)
+            log.info("New superblock chain head {}", newChainHead);
+        return written;
     }
 
 
@@ -166,7 +274,15 @@ public class SuperblockChain {
      * @throws BlockStoreException
      */
     public long getChainHeight() throws BlockStoreException, IOException {
-        return getChainHead().getSuperblockHeight();
+        return superblockStorage.getChainHeight();
+    }
+
+    /**
+     * Returns statistics of the superblock store's cache.
+     * @return Superblock cache statistics.
+     */
+    public CacheStats getCacheStats() {
+        return superblockStorage.getCacheStats();
     }
 
     /**
@@ -179,52 +295,118 @@ public class SuperblockChain {
     }
 
     /**
-     * Looks up a superblock by its height.
-     * Slower than looking up by hash, as it traverses the chain backwards.
+     * Returns every level of a superblock's Merkle tree, calculating it only the first time it's needed.
+     * @param superblock Superblock.
+     * @return Merkle tree of the superblock's Doge block hashes.
+     * @throws IOException If the superblock has no Doge block hashes, either because it was pruned
+     *                     or because it's a genesis superblock without them.
+     */
+    public SuperblockMerkleTree getMerkleTree(Superblock superblock) throws IOException {
+        Keccak256Hash superblockId = superblock.getSuperblockId();
+        SuperblockMerkleTree merkleTree = merkleTrees.getIfPresent(superblockId);
+        if (merkleTree == null) {
+            if (superblock.getDogeBlockHashes().isEmpty()) {
+                if (superblock.getSuperblockHeight() < superblockStorage.getPrunedHeight())
+                    throw new IOException("Doge block hashes of superblock " + superblockId + " were pruned.");
+                throw new IOException("Superblock " + superblockId + " has no Doge block hashes.");
+            }
+            merkleTree = SuperblockMerkle.computeTree(superblock.getDogeBlockHashes());
+            merkleTrees.put(superblockId, merkleTree);
+        }
+        return merkleTree;
+    }
+
+    /**
+     * Looks up a main chain superblock by its height.
+     * Uses the store's height index, so it takes a single lookup regardless of the chain length.
      * @param superblockHeight Height of a superblock
      * @return Superblock with the given height if said height is less than that of the chain tip,
      *         null otherwise.
      * @throws BlockStoreException
-     * @throws IOException If a superblock hash cannot be calculated.
+     * @throws IOException If a superblock cannot be read.
      */
     public Superblock getSuperblockByHeight(long superblockHeight) throws BlockStoreException, IOException {
-        Superblock currentSuperblock = getChainHead();
-        if (superblockHeight > currentSuperblock.getSuperblockHeight())
-            return null; // Superblock does not exist.
+        return superblockStorage.getByHeight(superblockHeight);
+    }
 
-        // Superblock exists.
-        while (currentSuperblock.getSuperblockHeight() > superblockHeight)
-            currentSuperblock = getSuperblock(currentSuperblock.getParentId());
+    /**
+     * Streams a range of the main chain from the lowest superblock to the highest.
+     * The range is read from the store's height index in order, instead of walking parent links.
+     * The stream must be closed, e.g. with try-with-resources.
+     * @param fromHeight Height of the first superblock.
+     * @param toHeight Height of the last superblock. Capped at the chain head's.
+     * @return Main chain superblocks in the range.
+     */
+    public Stream<Superblock> getMainChain(long fromHeight, long toHeight) {
+        return superblockStorage.getMainChain(fromHeight, toHeight);
+    }
 
-        return currentSuperblock;
+    /**
+     * Streams the IDs of a range of the main chain from the lowest superblock to the highest,
+     * without reading the superblocks themselves.
+     * The stream must be closed, e.g. with try-with-resources.
+     * @param fromHeight Height of the first superblock.
+     * @param toHeight Height of the last superblock. Capped at the chain head's.
+     * @return IDs of the main chain superblocks in the range.
+     */
+    public Stream<Keccak256Hash> getMainChainIds(long fromHeight, long toHeight) {
+        return superblockStorage.getMainChainIds(fromHeight, toHeight);
+    }
+
+    /**
+     * Finds the main chain superblock that contains a given Doge block and the block's position in it.
+     * Uses the store's Doge block index instead of scanning superblocks.
+     * @param dogeBlockHash Doge block hash.
+     * @return Superblock ID, height and leaf index if the block is part of a main chain superblock,
+     *         null otherwise.
+     * @throws IOException
+     */
+    public DogeBlockLocation getMainChainDogeBlockLocation(Sha256Hash dogeBlockHash) throws IOException {
+        return superblockStorage.getMainChainDogeBlockLocation(dogeBlockHash);
     }
 
     /**
      * Finds a superblock with a given parentId.
+     * Uses the store's main chain child index, so it doesn't depend on how far the superblock is from the tip.
      * @param superblockId parentId of desired superblock.
      * @return Best superblock in main chain with superblockId as its parentId if said superblock exists,
      *         null otherwise.
      * @throws BlockStoreException
      */
     public Superblock getFirstDescendant(Keccak256Hash superblockId) throws BlockStoreException, IOException {
-        if (getSuperblock(superblockId) == null) {
-            // The superblock isn't in the main chain.
-            log.info("Superblock {} is not in the main chain. Returning from getFirstDescendant.", superblockId);
-            return null;
-        }
+        Keccak256Hash childId = superblockStorage.getMainChainChildId(superblockId);
 
-        if (getSuperblock(superblockId).getSuperblockHeight() == getChainHeight()) {
-            // There's nothing above the tip of the chain.
+        if (childId == null) {
+            // Either the superblock isn't in the main chain or there's nothing above it.
+            log.debug("Superblock {} has no descendants in the main chain.", superblockId);
             return null;
         }
 
-        Superblock currentSuperblock = getChainHead();
+        return getSuperblock(childId);
+    }
+
 
-        while (currentSuperblock != null && !currentSuperblock.getParentId().equals(superblockId)) {
-            currentSuperblock = getSuperblock(currentSuperblock.getParentId());
-        }
+    /* ---- PRUNING ---- */
 
-        return currentSuperblock;
+    /**
+     * Drops the Doge block hashes of old main chain superblocks, keeping their headers and Doge block index entries.
+     * getMerkleTree fails for pruned superblocks, so lock transactions in their Doge blocks can't be relayed anymore.
+     * @param approvedSuperblockId Best superblock approved in the contracts.
+     * @param depth Number of superblocks below the approved one that are kept whole.
+     * @return Number of superblocks pruned. 0 if the approved superblock isn't in the local main chain.
+     * @throws IOException
+     */
+    public long pruneBelowApproved(Keccak256Hash approvedSuperblockId, long depth) throws IOException {
+        Superblock approvedSuperblock = getSuperblock(approvedSuperblockId);
+        if (approvedSuperblock == null || !approvedSuperblockId.equals(
+                superblockStorage.getMainChainSuperblockId(approvedSuperblock.getSuperblockHeight()))) {
+            log.debug("Approved superblock {} is not in the main chain, nothing pruned.", approvedSuperblockId);
+            return 0;
+        }
+        long height = approvedSuperblock.getSuperblockHeight() - depth;
+        if (height <= superblockStorage.getPrunedHeight())
+            return 0;
+        return superblockStorage.pruneBelow(height);
     }
 
 
@@ -237,19 +419,7 @@ public class SuperblockChain {
      * @return Superblock start time.
      */
     Date getStartTime(Date firstBlockTimestamp) {
-        Calendar startTime = Calendar.getInstance();
-        startTime.setTime(firstBlockTimestamp);
-        startTime.set(Calendar.HOUR, 0);
-        startTime.set(Calendar.MINUTE, 0);
-        startTime.set(Calendar.SECOND, 0);
-        startTime.set(Calendar.MILLISECOND, 0);
-        Calendar nextStartTime = (Calendar) startTime.clone();
-        nextStartTime.add(Calendar.SECOND, SUPERBLOCK_DURATION);
-        while (!nextStartTime.getTime().after(firstBlockTimestamp)) {
-            startTime.add(Calendar.SECOND, SUPERBLOCK_DURATION);
-            nextStartTime.add(Calendar.SECOND, SUPERBLOCK_DURATION);
-        }
-        return startTime.getTime();
+        return SuperblockUtils.getSuperblockStartTime(firstBlockTimestamp, SUPERBLOCK_DURATION);
     }
 
     /**
@@ -258,10 +428,7 @@ public class SuperblockChain {
      * @return Superblock end time.
      */
     Date getEndTime(Date startTime) {
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTime(startTime);
-        calendar.add(Calendar.SECOND, SUPERBLOCK_DURATION);
-        return calendar.getTime();
+        return SuperblockUtils.getSuperblockEndTime(startTime, SUPERBLOCK_DURATION);
     }
 
     /**
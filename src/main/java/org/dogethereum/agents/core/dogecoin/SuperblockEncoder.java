@@ -0,0 +1,190 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.dogethereum.agents.core.dogecoin.Superblock.*;
+
+/**
+ * Writes superblocks in their binary forms straight into a ByteBuffer, at the fixed offsets of the format.
+ * Produces exactly the same bytes as the stream based serialisation, without allocating
+ * intermediate arrays for every field:
+ * - big-endian, which is hashed into the superblock ID;
+ * - little-endian, which is what Dogethereum Contracts get;
+ * - storage, which is the little-endian form followed by the height and the Doge block hashes.
+ * Every method writes at the buffer's position and leaves the position right after the written bytes.
+ */
+public class SuperblockEncoder {
+    // Length of the big-endian and little-endian forms.
+    public static final int HEADER_LENGTH = SUPERBLOCK_HEIGHT_PAYLOAD_OFFSET;
+
+    // Thread buffers are grown up to this size; bigger superblocks get a buffer of their own.
+    private static final int MAX_REUSED_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() ->
+            ByteBuffer.allocate(DOGE_BLOCK_HASHES_PAYLOAD_OFFSET + 64 * HASH_BYTES_LENGTH));
+
+    private SuperblockEncoder() {}
+
+    /**
+     * Returns the size of a superblock's storage form.
+     * @param superblock Superblock.
+     * @return Number of bytes written by encodeForStorage.
+     */
+    public static int getStorageLength(Superblock superblock) {
+        return DOGE_BLOCK_HASHES_PAYLOAD_OFFSET + superblock.getDogeBlockHashes().size() * HASH_BYTES_LENGTH;
+    }
+
+    /**
+     * Returns a cleared buffer owned by the calling thread.
+     * Its contents are only valid until the thread's next call to an encoder method.
+     * @param length Minimum capacity.
+     * @return Buffer with position 0 and at least the given capacity.
+     */
+    public static ByteBuffer getThreadBuffer(int length) {
+        ByteBuffer buffer = buffers.get();
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(length);
+            if (length <= MAX_REUSED_BUFFER_SIZE)
+                buffers.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Calculates a superblock's ID, i.e. the Keccak-256 hash of its big-endian form.
+     * @param superblock Superblock.
+     * @return Superblock ID.
+     */
+    public static Keccak256Hash calculateId(Superblock superblock) {
+        ByteBuffer buffer = getThreadBuffer(HEADER_LENGTH);
+        encodeBE(superblock, buffer);
+        return Keccak256Hash.wrap(Keccak256Hash.hash(buffer.array(), 0, HEADER_LENGTH));
+    }
+
+    /**
+     * Writes Merkle root, chain work, last block time, previous to last block time, last block hash,
+     * last block bits and parent ID in big-endian format.
+     * @param superblock Superblock.
+     * @param buffer Where the bytes are written. Needs HEADER_LENGTH bytes remaining.
+     */
+    public static void encodeBE(Superblock superblock, ByteBuffer buffer) {
+        int start = buffer.position();
+        putBE(buffer, start + MERKLE_ROOT_PAYLOAD_OFFSET, superblock.getMerkleRoot().getBytes());
+        putUint256BE(buffer, start + CHAIN_WORK_PAYLOAD_OFFSET, superblock.getChainWork());
+        putUint256BE(buffer, start + LAST_BLOCK_TIME_PAYLOAD_OFFSET, superblock.getLastDogeBlockTime());
+        putUint256BE(buffer, start + PREVIOUS_TO_LAST_BLOCK_TIME_PAYLOAD_OFFSET,
+                superblock.getPreviousToLastDogeBlockTime());
+        putBE(buffer, start + LAST_BLOCK_HASH_PAYLOAD_OFFSET, superblock.getLastDogeBlockHash().getBytes());
+        putUint32BE(buffer, start + LAST_BLOCK_BITS_PAYLOAD_OFFSET, superblock.getLastDogeBlockBits());
+        putBE(buffer, start + PARENT_ID_PAYLOAD_OFFSET, superblock.getParentId().getBytes());
+        buffer.position(start + HEADER_LENGTH);
+    }
+
+    /**
+     * Writes the same fields as encodeBE in little-endian format.
+     * @param superblock Superblock.
+     * @param buffer Where the bytes are written. Needs HEADER_LENGTH bytes remaining.
+     */
+    public static void encodeLE(Superblock superblock, ByteBuffer buffer) {
+        int start = buffer.position();
+        putLE(buffer, start + MERKLE_ROOT_PAYLOAD_OFFSET, superblock.getMerkleRoot().getBytes());
+        putUint256LE(buffer, start + CHAIN_WORK_PAYLOAD_OFFSET, superblock.getChainWork());
+        putUint256LE(buffer, start + LAST_BLOCK_TIME_PAYLOAD_OFFSET, superblock.getLastDogeBlockTime());
+        putUint256LE(buffer, start + PREVIOUS_TO_LAST_BLOCK_TIME_PAYLOAD_OFFSET,
+                superblock.getPreviousToLastDogeBlockTime());
+        putLE(buffer, start + LAST_BLOCK_HASH_PAYLOAD_OFFSET, superblock.getLastDogeBlockHash().getBytes());
+        putUint32LE(buffer, start + LAST_BLOCK_BITS_PAYLOAD_OFFSET, superblock.getLastDogeBlockBits());
+        putLE(buffer, start + PARENT_ID_PAYLOAD_OFFSET, superblock.getParentId().getBytes());
+        buffer.position(start + HEADER_LENGTH);
+    }
+
+    /**
+     * Writes the little-endian form followed by superblock height, number of Doge blocks
+     * and Doge block hashes, all of them little-endian.
+     * @param superblock Superblock.
+     * @param buffer Where the bytes are written. Needs getStorageLength(superblock) bytes remaining.
+     */
+    public static void encodeForStorage(Superblock superblock, ByteBuffer buffer) {
+        int start = buffer.position();
+        encodeLE(superblock, buffer);
+        List<Sha256Hash> dogeBlockHashes = superblock.getDogeBlockHashes();
+        putUint32LE(buffer, start + SUPERBLOCK_HEIGHT_PAYLOAD_OFFSET, superblock.getSuperblockHeight());
+        putUint32LE(buffer, start + NUMBER_OF_HASHES_PAYLOAD_OFFSET, dogeBlockHashes.size());
+        int offset = start + DOGE_BLOCK_HASHES_PAYLOAD_OFFSET;
+        for (Sha256Hash dogeBlockHash : dogeBlockHashes) {
+            putLE(buffer, offset, dogeBlockHash.getBytes());
+            offset += HASH_BYTES_LENGTH;
+        }
+        buffer.position(offset);
+    }
+
+    /**
+     * Returns a superblock's storage form.
+     * @param superblock Superblock.
+     * @return Array of exactly getStorageLength(superblock) bytes.
+     */
+    public static byte[] encodeForStorage(Superblock superblock) {
+        byte[] payload = new byte[getStorageLength(superblock)];
+        encodeForStorage(superblock, ByteBuffer.wrap(payload));
+        return payload;
+    }
+
+    private static void putBE(ByteBuffer buffer, int offset, byte[] bytes) {
+        for (int i = 0; i < HASH_BYTES_LENGTH; i++)
+            buffer.put(offset + i, bytes[i]);
+    }
+
+    private static void putLE(ByteBuffer buffer, int offset, byte[] bytes) {
+        for (int i = 0; i < HASH_BYTES_LENGTH; i++)
+            buffer.put(offset + i, bytes[HASH_BYTES_LENGTH - 1 - i]);
+    }
+
+    private static void putUint256BE(ByteBuffer buffer, int offset, BigInteger n) {
+        byte[] magnitude = n.toByteArray();
+        // toByteArray might add a sign byte, and only the lowest 32 bytes fit anyway.
+        int length = Math.min(magnitude.length, BIG_INTEGER_LENGTH);
+        int padding = BIG_INTEGER_LENGTH - length;
+        for (int i = 0; i < padding; i++)
+            buffer.put(offset + i, (byte) 0);
+        for (int i = 0; i < length; i++)
+            buffer.put(offset + padding + i, magnitude[magnitude.length - length + i]);
+    }
+
+    private static void putUint256LE(ByteBuffer buffer, int offset, BigInteger n) {
+        byte[] magnitude = n.toByteArray();
+        int length = Math.min(magnitude.length, BIG_INTEGER_LENGTH);
+        for (int i = 0; i < length; i++)
+            buffer.put(offset + i, magnitude[magnitude.length - 1 - i]);
+        for (int i = length; i < BIG_INTEGER_LENGTH; i++)
+            buffer.put(offset + i, (byte) 0);
+    }
+
+    private static void putUint256BE(ByteBuffer buffer, int offset, long n) {
+        for (int i = 0; i < BIG_INTEGER_LENGTH - 8; i++)
+            buffer.put(offset + i, (byte) 0);
+        for (int i = 0; i < 8; i++)
+            buffer.put(offset + BIG_INTEGER_LENGTH - 1 - i, (byte) (n >>> (8 * i)));
+    }
+
+    private static void putUint256LE(ByteBuffer buffer, int offset, long n) {
+        for (int i = 0; i < 8; i++)
+            buffer.put(offset + i, (byte) (n >>> (8 * i)));
+        for (int i = 8; i < BIG_INTEGER_LENGTH; i++)
+            buffer.put(offset + i, (byte) 0);
+    }
+
+    private static void putUint32BE(ByteBuffer buffer, int offset, long n) {
+        for (int i = 0; i < UINT32_LENGTH; i++)
+            buffer.put(offset + UINT32_LENGTH - 1 - i, (byte) (n >>> (8 * i)));
+    }
+
+    private static void putUint32LE(ByteBuffer buffer, int offset, long n) {
+        for (int i = 0; i < UINT32_LENGTH; i++)
+            buffer.put(offset + i, (byte) (n >>> (8 * i)));
+    }
+}
@@ -1,5 +1,11 @@
 package org.dogethereum.agents.core.dogecoin;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import lombok.extern.slf4j.Slf4j;
 import org.bitcoinj.core.*;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.core.Context;
@@ -13,6 +19,9 @@ import java.math.BigInteger;
 import java.io.*;
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 //import static com.google.common.base.Preconditions.checkState;
 
@@ -20,16 +29,88 @@ import java.util.*;
  * LevelDB for storing and retrieving superblocks.
  * This class only takes care of storing/retrieving data that it receives from external sources;
  * the information itself is handled by SuperblockChain, primarily via the updateChain() method.
+ * Writes are serialised, while reads don't take any lock: every write is a single atomic batch,
+ * so readers see either all of it or none of it. Lookups that take more than one read use a LevelDB snapshot.
  * @author Catalina Juarros
  */
 
-public class SuperblockLevelDBBlockStore {
+@Slf4j(topic = "SuperblockLevelDBBlockStore")
+public class SuperblockLevelDBBlockStore implements SuperblockStore {
     private static final byte[] CHAIN_HEAD_KEY = "chainhead".getBytes(); // to store chain head hash
+    private static final byte[] INDEX_VERSION_KEY = "indexversion".getBytes(); // to know when to rebuild indexes
+    private static final byte[] PRUNED_HEIGHT_KEY = "prunedheight".getBytes(); // main chain is pruned below this
+
+    // Bump whenever an index is added or its layout changes, so that existing databases get reindexed on open.
+    private static final int INDEX_VERSION = 4;
+
+    // Main chain height index: prefix + height (8 bytes, big-endian) -> superblock ID.
+    // Superblocks themselves are keyed by their 32-byte ID, so index keys never collide with them.
+    private static final byte HEIGHT_INDEX_PREFIX = 'h';
+    private static final int HEIGHT_INDEX_KEY_LENGTH = 1 + 8;
+
+    // Doge block index: prefix + Doge block hash ->
+    // ID of the superblock that contains it + superblock height (8 bytes) + leaf index (4 bytes).
+    // If a block is in several superblocks, the entry points to the one in the main chain.
+    private static final byte DOGE_BLOCK_INDEX_PREFIX = 'd';
+    private static final int DOGE_BLOCK_INDEX_KEY_LENGTH = 1 + Sha256Hash.LENGTH;
+
+    // Children index: prefix + parent ID + child ID -> nothing. Lists every stored child of a superblock.
+    private static final byte CHILDREN_INDEX_PREFIX = 'c';
+    private static final int CHILDREN_INDEX_KEY_LENGTH = 1 + Keccak256Hash.LENGTH + Keccak256Hash.LENGTH;
+
+    // Main chain child index: prefix + parent ID -> ID of its child in the main chain.
+    // Only main chain superblocks other than the chain head have an entry.
+    private static final byte MAIN_CHILD_INDEX_PREFIX = 'm';
+    private static final int MAIN_CHILD_INDEX_KEY_LENGTH = 1 + Keccak256Hash.LENGTH;
+
+    // Tip index: prefix + superblock ID -> superblock height (8 bytes) + chain work (unsigned, big-endian).
+    // Every stored superblock without stored children has an entry, whether it's in the main chain or not.
+    private static final byte TIP_INDEX_PREFIX = 't';
+    private static final int TIP_INDEX_KEY_LENGTH = 1 + Keccak256Hash.LENGTH;
+
+    private static final byte[] EMPTY_VALUE = new byte[0];
+
+    // Maximum number of superblocks pruned in a single write.
+    private static final int PRUNING_BATCH_SIZE = 1000;
+    // Maximum number of index entries written or deleted in a single write while rebuilding indexes.
+    private static final int REINDEX_BATCH_SIZE = 10000;
+    // Bounds of the whole key space for compactions. Superblock IDs are spread all over it.
+    private static final byte[] FIRST_KEY = new byte[]{0};
+    private static final byte[] LAST_KEY = new byte[]{
+            -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
+            -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1};
+
+    // Known superblock ID filter sizing. The filter is rebuilt with twice the capacity once it's full.
+    private static final int MIN_KNOWN_IDS_CAPACITY = 100000;
+    private static final double KNOWN_IDS_FALSE_POSITIVE_RATE = 0.01;
+
+    // Rough in-memory footprint of a deserialised superblock, used when the cache is bounded by bytes.
+    private static final int SUPERBLOCK_SIZE_ESTIMATE = 512;
+    private static final int DOGE_BLOCK_HASH_SIZE_ESTIMATE = 96;
 
     private final Context context;
     private final File path;
+    private final NetworkParameters params;
     private DB db;
 
+    // Recently read superblocks, so that the tip of the chain doesn't have to be read from disk over and over.
+    private final Cache<Keccak256Hash, Superblock> cache;
+
+    // Latest committed chain head. Replaced as a whole after every head change, never modified.
+    private volatile ChainHead chainHead;
+
+    // IDs of every stored superblock, so that lookups of unknown IDs don't have to reach LevelDB.
+    // A published filter is never modified, since BloomFilter isn't safe for concurrent use: writers add
+    // new IDs to a copy and replace the filter with it before committing their batch. The volatile write
+    // happens before the commit, so a reader that can see a superblock in the database and then reads
+    // the field gets a filter that contains its ID.
+    private volatile BloomFilter<byte[]> knownIds;
+    // Copy of the filter holding the IDs of the write in progress. Only used by writers, which are serialised.
+    private BloomFilter<byte[]> unpublishedKnownIds;
+    private int knownIdsCount;
+    private int knownIdsCapacity;
+    private final int minKnownIdsCapacity;
+
 
     /* ---- ESSENTIAL DATABASE METHODS ---- */
 
@@ -53,8 +134,28 @@ public class SuperblockLevelDBBlockStore {
      */
     public SuperblockLevelDBBlockStore(Context context, File directory, DBFactory dbFactory, NetworkParameters params)
             throws BlockStoreException {
+        this(context, directory, dbFactory, params, MIN_KNOWN_IDS_CAPACITY);
+    }
+
+    /**
+     * Constructor with a smaller known ID filter, so that tests can make it fill up and be rebuilt.
+     * @param context Dogecoin context.
+     * @param directory Where data is stored.
+     * @param dbFactory Interface for opening and repairing directory if needed.
+     * @param params Dogecoin network parameters.
+     * @param minKnownIdsCapacity Number of IDs the known ID filter is sized for, at least.
+     * @throws BlockStoreException
+     */
+    SuperblockLevelDBBlockStore(Context context, File directory, DBFactory dbFactory, NetworkParameters params,
+                                int minKnownIdsCapacity) throws BlockStoreException {
         this.context = context;
         this.path = directory;
+        this.params = params;
+        this.minKnownIdsCapacity = minKnownIdsCapacity;
+        SystemProperties config = SystemProperties.CONFIG;
+        this.cache = buildCache(config.superblockCacheMaxEntries(), config.superblockCacheMaxBytes(),
+                config.superblockCacheExpirySeconds());
+        resetKnownIds(minKnownIdsCapacity);
         Options options = new Options();
         options.createIfMissing();
 
@@ -88,6 +189,7 @@ public class SuperblockLevelDBBlockStore {
     /**
      * If the database hasn't been initialised, this method sets it up
      * by storing the genesis superblock.
+     * If it has been initialised by a version with older indexes, they are rebuilt.
      * Genesis superblock spec:
      * - its only block is the genesis block from whatever Doge network it's storing blocks from
      * - since it doesn't have an actual block before it, its parent block hash is hardcoded
@@ -97,45 +199,460 @@ public class SuperblockLevelDBBlockStore {
      * @throws BlockStoreException
      */
     private synchronized void initStoreIfNeeded(NetworkParameters params) throws IOException, BlockStoreException {
-        if (db.get(CHAIN_HEAD_KEY) != null)
-            return; // Already initialised.
+        byte[] chainHeadId = db.get(CHAIN_HEAD_KEY);
+        if (chainHeadId != null) {
+            // Already initialised. The known ID filter is built from the children index, so it goes last.
+            chainHead = new ChainHead(getView(Keccak256Hash.wrap(chainHeadId)).toSuperblock());
+            rebuildIndexesIfNeeded();
+            loadKnownIds();
+            return;
+        }
         SystemProperties config = SystemProperties.CONFIG;
         AgentConstants agentConstants = config.getAgentConstants();
         Superblock genesisSuperblock = agentConstants.getGenesisSuperblock();
-        put(genesisSuperblock);
-        setChainHead(genesisSuperblock);
+        putAll(Collections.singletonList(genesisSuperblock), genesisSuperblock);
+        db.put(INDEX_VERSION_KEY, SuperblockUtils.intToBytes(INDEX_VERSION));
     }
 
     /**
-     * Writes a superblock to the database.
+     * Rebuilds every index from the stored superblocks if the database was written
+     * by a version of the agent that didn't maintain them, or maintained an older layout.
+     * Entries are written REINDEX_BATCH_SIZE at a time, so memory use doesn't grow with the number of superblocks.
+     * The version is written last, so an interrupted rebuild starts over the next time the store is opened.
+     * This only happens once per data directory.
+     * @throws IOException
+     * @throws BlockStoreException
+     */
+    private synchronized void rebuildIndexesIfNeeded() throws IOException, BlockStoreException {
+        byte[] versionBytes = db.get(INDEX_VERSION_KEY);
+        if (versionBytes != null && ByteBuffer.wrap(versionBytes).getInt() == INDEX_VERSION)
+            return;
+
+        ChunkedWriteBatch batch = new ChunkedWriteBatch(REINDEX_BATCH_SIZE);
+        try {
+            deleteKeysWithPrefix(batch, HEIGHT_INDEX_PREFIX, HEIGHT_INDEX_KEY_LENGTH);
+            // Pruned superblocks don't have their Doge block hashes anymore, so their entries can't be rebuilt.
+            deleteDogeBlockIndexEntries(batch, getPrunedHeight());
+            deleteKeysWithPrefix(batch, CHILDREN_INDEX_PREFIX, CHILDREN_INDEX_KEY_LENGTH);
+            deleteKeysWithPrefix(batch, MAIN_CHILD_INDEX_PREFIX, MAIN_CHILD_INDEX_KEY_LENGTH);
+            deleteKeysWithPrefix(batch, TIP_INDEX_PREFIX, TIP_INDEX_KEY_LENGTH);
+            indexAllChildren(batch);
+            // Tips are found through the children index, so it must be committed first.
+            batch.flush();
+            indexAllTips(batch);
+            long indexed = indexMainChain(batch, getView(getChainHeadId()), false,
+                    Collections.<Keccak256Hash, SuperblockView>emptyMap());
+            batch.flush();
+            db.put(INDEX_VERSION_KEY, SuperblockUtils.intToBytes(INDEX_VERSION));
+            log.info("Rebuilt superblock indexes for {} main chain superblocks.", indexed);
+        } finally {
+            batch.close();
+        }
+    }
+
+    /**
+     * Writes a superblock to the database, along with the index entries for its Doge blocks and parent.
      * @param block Superblock to be written.
      * @throws java.io.IOException
      */
+    @Override
     public synchronized void put(Superblock block) throws IOException {
-//        buffer.clear();
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        block.serializeForStorage(stream);
-        ByteBuffer buffer = ByteBuffer.allocate(stream.size());
-        buffer.put(stream.toByteArray());
-        db.put(block.getSuperblockId().getBytes(), buffer.array());
+        putAll(Collections.singletonList(block), null);
+    }
+
+    /**
+     * Writes a run of superblocks, their index entries and optionally a new chain head
+     * in a single atomic write, so that the head never points to superblocks that weren't stored.
+     * @param superblocks Superblocks to be written, sorted so that parents come before their children.
+     * @param newChainHead New tip of the superblock chain. It can be one of the superblocks being written
+     *                     or an already stored one. If null, the chain head isn't changed.
+     * @throws IOException
+     */
+    @Override
+    public synchronized void putAll(List<Superblock> superblocks, Superblock newChainHead) throws IOException {
+        // Superblocks that are part of this write, so that they can be read before being committed.
+        Map<Keccak256Hash, SuperblockView> pending = new HashMap<>();
+
+        WriteBatch batch = db.createWriteBatch();
+        try {
+            for (Superblock superblock : superblocks) {
+                SuperblockView view = writeSuperblock(batch, superblock, pending);
+                pending.put(view.getSuperblockId(), view);
+            }
+            if (newChainHead != null)
+                writeChainHead(batch, newChainHead, pending);
+            // Publishes the new IDs before they're committed.
+            if (unpublishedKnownIds != null)
+                knownIds = unpublishedKnownIds;
+            db.write(batch);
+        } finally {
+            unpublishedKnownIds = null;
+            batch.close();
+        }
+
+        // Publish the new head only once it's committed.
+        if (newChainHead != null)
+            chainHead = new ChainHead(newChainHead);
+
+        for (Superblock superblock : superblocks)
+            cache.invalidate(superblock.getSuperblockId());
+    }
+
+    /**
+     * Writes a superblock along with its Doge block, children and tip index entries.
+     * Doge blocks that are already indexed keep their entries, since they might point to the main chain;
+     * they're rewritten if the superblock becomes part of it.
+     * The superblock replaces its parent as a tip.
+     * Superblocks that were already stored are left as they are: they keep their tip status,
+     * since they might have children by now, and pruned ones don't get their Doge block hashes back.
+     * @param batch Batch where the superblock is written.
+     * @param superblock Superblock to be written.
+     * @param pending Superblocks written earlier in the same batch.
+     * @return View of the superblock as it is stored.
+     * @throws IOException
+     */
+    private SuperblockView writeSuperblock(WriteBatch batch, Superblock superblock,
+                                           Map<Keccak256Hash, SuperblockView> pending) throws IOException {
+        Keccak256Hash superblockId = superblock.getSuperblockId();
+        SuperblockView storedView = pending.get(superblockId);
+        if (storedView == null && knownIds.mightContain(superblockId.getBytes()))
+            storedView = getView(superblockId);
+        if (storedView != null)
+            return storedView;
+
+        SuperblockView view = new SuperblockView(superblockId, SuperblockEncoder.encodeForStorage(superblock));
+        batch.put(superblockId.getBytes(), view.getPayload());
+        batch.put(childrenIndexKey(superblock.getParentId(), superblockId), EMPTY_VALUE);
+        indexDogeBlocks(batch, view, true);
+        addKnownId(superblockId, pending.keySet());
+        batch.delete(tipIndexKey(superblock.getParentId()));
+        batch.put(tipIndexKey(superblockId), tipIndexValue(view.getSuperblockHeight(), view.getChainWork()));
+        return view;
+    }
+
+    /**
+     * Retrieves the main chain superblock at a given height.
+     * @param height Superblock height.
+     * @return Superblock at that height in the main chain if the chain is at least that high, null otherwise.
+     * @throws IOException
+     */
+    @Override
+    public Superblock getByHeight(long height) throws IOException {
+        Keccak256Hash superblockId = getMainChainSuperblockId(height);
+        if (superblockId == null)
+            return null;
+        return get(superblockId);
+    }
+
+    /**
+     * Looks up the ID of the main chain superblock at a given height in the height index.
+     * @param height Superblock height.
+     * @return ID of the superblock at that height in the main chain if the chain is at least that high,
+     *         null otherwise.
+     */
+    @Override
+    public Keccak256Hash getMainChainSuperblockId(long height) {
+        byte[] superblockId = db.get(heightIndexKey(height));
+        if (superblockId == null)
+            return null;
+        return Keccak256Hash.wrap(superblockId);
+    }
+
+    /**
+     * Streams the IDs of a range of the main chain, lowest first.
+     * Height index keys are sorted by height, so the range is read with a single sequential scan.
+     * The scan reads from a snapshot, which is released when the stream is closed.
+     * @param fromHeight Height of the first superblock.
+     * @param toHeight Height of the last superblock. Capped at the chain head's.
+     * @return IDs of the main chain superblocks in the range.
+     */
+    @Override
+    public Stream<Keccak256Hash> getMainChainIds(long fromHeight, long toHeight) {
+        MainChainScan scan = new MainChainScan(fromHeight, toHeight);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(scan,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false).onClose(scan::close);
+    }
+
+    /**
+     * Streams a range of the main chain, lowest first.
+     * IDs come from a sequential scan of the height index, and superblocks are read from the cache
+     * or from the same snapshot, so the stream never mixes two versions of the main chain.
+     * @param fromHeight Height of the first superblock.
+     * @param toHeight Height of the last superblock. Capped at the chain head's.
+     * @return Main chain superblocks in the range.
+     */
+    @Override
+    public Stream<Superblock> getMainChain(long fromHeight, long toHeight) {
+        MainChainScan scan = new MainChainScan(fromHeight, toHeight);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(scan,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false)
+                .map(scan::readSuperblock).onClose(scan::close);
+    }
+
+    /**
+     * Looks up the child of a superblock in the main chain.
+     * @param superblockId Superblock ID.
+     * @return ID of the superblock's child in the main chain if the superblock is in the main chain
+     *         and isn't its head, null otherwise.
+     */
+    @Override
+    public Keccak256Hash getMainChainChildId(Keccak256Hash superblockId) {
+        byte[] childId = db.get(mainChildIndexKey(superblockId));
+        if (childId == null)
+            return null;
+        return Keccak256Hash.wrap(childId);
+    }
+
+    /**
+     * Lists every stored child of a superblock, whether it's in the main chain or not.
+     * @param superblockId Superblock ID.
+     * @return IDs of all the stored superblocks whose parent is the given superblock.
+     */
+    @Override
+    public List<Keccak256Hash> getChildrenIds(Keccak256Hash superblockId) throws IOException {
+        List<Keccak256Hash> children = new ArrayList<>();
+        byte[] prefix = ByteBuffer.allocate(1 + Keccak256Hash.LENGTH)
+                .put(CHILDREN_INDEX_PREFIX).put(superblockId.getBytes()).array();
+        DBIterator it = db.iterator();
+        try {
+            for (it.seek(prefix); it.hasNext(); ) {
+                byte[] key = it.next().getKey();
+                if (key.length != CHILDREN_INDEX_KEY_LENGTH || !startsWith(key, prefix))
+                    break;
+                children.add(Keccak256Hash.wrap(Arrays.copyOfRange(key, prefix.length, key.length)));
+            }
+        } finally {
+            it.close();
+        }
+        return children;
+    }
+
+    /**
+     * Looks up which superblock contains a given Doge block, and where.
+     * @param dogeBlockHash Doge block hash.
+     * @return Superblock ID, height and leaf index of the block if it's part of a stored superblock,
+     *         null otherwise.
+     *         If the block is in the main chain, the superblock is the main chain one.
+     */
+    @Override
+    public DogeBlockLocation getDogeBlockLocation(Sha256Hash dogeBlockHash) {
+        byte[] location = db.get(dogeBlockIndexKey(dogeBlockHash));
+        if (location == null)
+            return null;
+        return toDogeBlockLocation(location);
+    }
+
+    /**
+     * Looks up the main chain superblock that contains a given Doge block, and where.
+     * Both the Doge block index and the height index are read from the same snapshot,
+     * so the answer is consistent even if the main chain is reorganised in the meantime.
+     * @param dogeBlockHash Doge block hash.
+     * @return Superblock ID, height and leaf index of the block if it's part of a main chain superblock,
+     *         null otherwise.
+     * @throws IOException
+     */
+    @Override
+    public DogeBlockLocation getMainChainDogeBlockLocation(Sha256Hash dogeBlockHash) throws IOException {
+        Snapshot snapshot = db.getSnapshot();
+        try {
+            ReadOptions readOptions = new ReadOptions().snapshot(snapshot);
+            byte[] location = db.get(dogeBlockIndexKey(dogeBlockHash), readOptions);
+            if (location == null)
+                return null;
+            DogeBlockLocation dogeBlockLocation = toDogeBlockLocation(location);
+            // The block might only be part of a superblock that was left out of the main chain.
+            byte[] mainChainId = db.get(heightIndexKey(dogeBlockLocation.getSuperblockHeight()), readOptions);
+            if (!Arrays.equals(mainChainId, dogeBlockLocation.getSuperblockId().getBytes()))
+                return null;
+            return dogeBlockLocation;
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Lists the ends of every known branch of the superblock tree, the main chain head included.
+     * The tip index and the branches are read from the same snapshot, so fork points always refer to
+     * the main chain at the time of the call.
+     * @return Every stored superblock without stored children.
+     * @throws IOException
+     */
+    @Override
+    public List<SuperblockTip> getTips() throws IOException {
+        List<SuperblockTip> tips = new ArrayList<>();
+        Snapshot snapshot = db.getSnapshot();
+        try {
+            ReadOptions readOptions = new ReadOptions().snapshot(snapshot);
+            DBIterator it = db.iterator(readOptions);
+            try {
+                for (it.seek(new byte[]{TIP_INDEX_PREFIX}); it.hasNext(); ) {
+                    Map.Entry<byte[], byte[]> entry = it.next();
+                    byte[] key = entry.getKey();
+                    if (key[0] != TIP_INDEX_PREFIX)
+                        break;
+                    if (key.length != TIP_INDEX_KEY_LENGTH)
+                        continue; // a superblock whose ID starts with the prefix
+                    Keccak256Hash superblockId = Keccak256Hash.wrap(Arrays.copyOfRange(key, 1, key.length));
+                    ByteBuffer value = ByteBuffer.wrap(entry.getValue());
+                    long superblockHeight = value.getLong();
+                    byte[] chainWork = new byte[value.remaining()];
+                    value.get(chainWork);
+                    tips.add(findForkPoint(superblockId, superblockHeight, new BigInteger(1, chainWork),
+                            readOptions));
+                }
+            } finally {
+                it.close();
+            }
+        } finally {
+            snapshot.close();
+        }
+        return tips;
+    }
+
+    /**
+     * Walks a branch back until it reaches the main chain.
+     * @param superblockId ID of the tip.
+     * @param superblockHeight Height of the tip.
+     * @param chainWork Chain work of the tip.
+     * @param readOptions Options with the snapshot to read from.
+     * @return Tip along with its fork point.
+     * @throws IOException if the branch is not connected to the main chain.
+     */
+    private SuperblockTip findForkPoint(Keccak256Hash superblockId, long superblockHeight, BigInteger chainWork,
+                                        ReadOptions readOptions) throws IOException {
+        Keccak256Hash currentId = superblockId;
+        long currentHeight = superblockHeight;
+        while (!Arrays.equals(db.get(heightIndexKey(currentHeight), readOptions), currentId.getBytes())) {
+            byte[] bits = db.get(currentId.getBytes(), readOptions);
+            if (bits == null)
+                throw new IOException("Superblock branch ending at " + superblockId + " is not connected.");
+            currentId = new SuperblockView(currentId, bits).getParentId();
+            currentHeight--;
+        }
+        return new SuperblockTip(superblockId, superblockHeight, chainWork, currentId, currentHeight);
     }
 
     /**
      * Retrieves a deserialised superblock from the database.
+     * IDs that were never stored are usually turned down by the known ID filter without reading the database.
      * @param superblockId Keccak-256 hash of superblock.
      * @return superblock identified by hash
      */
-    public synchronized Superblock get(Keccak256Hash superblockId) throws IOException {
+    @Override
+    public Superblock get(Keccak256Hash superblockId) throws IOException {
+        Superblock superblock = cache.getIfPresent(superblockId);
+        if (superblock != null)
+            return superblock;
+        if (!knownIds.mightContain(superblockId.getBytes()))
+            return null;
+        byte[] bits = db.get(superblockId.getBytes());
+        if (bits == null)
+            return null;
+        superblock = new Superblock(bits, superblockId);
+        cache.put(superblockId, superblock);
+        return superblock;
+    }
+
+    /**
+     * Retrieves a superblock from the database without deserialising it.
+     * Meant for walking the chain, where usually only a couple of fields of each superblock are needed.
+     * Views are neither read from nor added to the superblock cache.
+     * @param superblockId Keccak-256 hash of superblock.
+     * @return view of the superblock identified by hash, or null if it's not stored.
+     */
+    public SuperblockView getView(Keccak256Hash superblockId) {
         byte[] bits = db.get(superblockId.getBytes());
         if (bits == null)
             return null;
-        return new Superblock(bits);
+        return new SuperblockView(superblockId, bits);
+    }
+
+    /**
+     * Drops the Doge block hashes of the main chain superblocks below a given height,
+     * PRUNING_BATCH_SIZE superblocks per write, and then compacts the database to reclaim their space.
+     * The write lock is only held for one batch at a time, and the compaction runs after it's released,
+     * so pruning doesn't hold back new superblocks.
+     * @param height Height of the first main chain superblock that is kept whole. Capped at the chain head's.
+     * @return Number of superblocks pruned.
+     * @throws IOException
+     */
+    @Override
+    public long pruneBelow(long height) throws IOException {
+        long pruned = 0;
+        long batchPruned;
+        while ((batchPruned = pruneMainChainBatch(height)) >= 0)
+            pruned += batchPruned;
+        if (pruned > 0) {
+            long start = System.currentTimeMillis();
+            db.compactRange(FIRST_KEY, LAST_KEY);
+            log.info("Pruned {} superblocks below height {}. Compaction took {} ms.", pruned, getPrunedHeight(),
+                    System.currentTimeMillis() - start);
+        }
+        return pruned;
+    }
+
+    /**
+     * Replaces the next PRUNING_BATCH_SIZE main chain superblocks above the pruned height, and below a given height,
+     * with their pruned versions. The chain head and the pruned height are read again every time,
+     * since superblocks might have been written since the previous batch.
+     * @param height Height of the first main chain superblock that is kept whole. Capped at the chain head's.
+     * @return Number of superblocks pruned, or -1 if everything below the height was already pruned.
+     * @throws IOException
+     */
+    private synchronized long pruneMainChainBatch(long height) throws IOException {
+        long target = Math.min(height, chainHead.getSuperblockHeight());
+        long prunedHeight = getPrunedHeight();
+        if (prunedHeight >= target)
+            return -1;
+
+        long batchEnd = Math.min(target, prunedHeight + PRUNING_BATCH_SIZE);
+        List<Keccak256Hash> prunedIds = new ArrayList<>();
+        WriteBatch batch = db.createWriteBatch();
+        try {
+            for (long h = prunedHeight; h < batchEnd; h++) {
+                Keccak256Hash superblockId = getMainChainSuperblockId(h);
+                SuperblockView superblock = superblockId != null ? getView(superblockId) : null;
+                if (superblock == null)
+                    throw new IOException("Main chain superblock at height " + h + " is missing.");
+                if (superblock.isPruned())
+                    continue;
+                batch.put(superblockId.getBytes(), superblock.pruned().getPayload());
+                prunedIds.add(superblockId);
+            }
+            batch.put(PRUNED_HEIGHT_KEY, ByteBuffer.allocate(8).putLong(batchEnd).array());
+            db.write(batch);
+        } finally {
+            batch.close();
+        }
+        cache.invalidateAll(prunedIds);
+        return prunedIds.size();
+    }
+
+    /**
+     * @return Height below which main chain superblocks have been pruned, 0 if none were.
+     */
+    @Override
+    public long getPrunedHeight() {
+        byte[] prunedHeight = db.get(PRUNED_HEIGHT_KEY);
+        if (prunedHeight == null)
+            return 0;
+        return ByteBuffer.wrap(prunedHeight).getLong();
+    }
+
+    /**
+     * Returns superblock cache statistics.
+     * @return Hit and miss counters, among others, since the store was opened.
+     */
+    @Override
+    public CacheStats getCacheStats() {
+        return cache.stats();
     }
 
     /**
      * Closes underlying database.
      * @throws BlockStoreException
      */
+    @Override
     public synchronized void close() throws BlockStoreException {
         try {
             db.close();
@@ -147,9 +664,11 @@ public class SuperblockLevelDBBlockStore {
     // this was copied more or less word-by-word from bitcoinj
 
     /**
-     * Erases the contents of the database (but NOT the underlying files themselves).
+     * Erases the contents of the database (but NOT the underlying files themselves)
+     * and stores the genesis superblock again, so the store can still be used afterwards.
      * @throws BlockStoreException
      */
+    @Override
     public synchronized void reset() throws BlockStoreException {
         try {
             WriteBatch batch = db.createWriteBatch();
@@ -166,6 +685,10 @@ public class SuperblockLevelDBBlockStore {
             } finally {
                 batch.close();
             }
+            cache.invalidateAll();
+            chainHead = null;
+            resetKnownIds(minKnownIdsCapacity);
+            initStoreIfNeeded(params);
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
@@ -183,35 +706,543 @@ public class SuperblockLevelDBBlockStore {
      * @return Highest stored superblock.
      * @throws BlockStoreException
      */
-    public synchronized Superblock getChainHead() throws BlockStoreException, IOException {
+    @Override
+    public Superblock getChainHead() throws BlockStoreException, IOException {
         return get(getChainHeadId());
     }
 
     /**
      * Returns hash of tip of superblock chain. Not necessarily approved in the contracts.
+     * Doesn't read the database.
      * @return Highest stored superblock's hash.
      * @throws BlockStoreException
      */
-    public synchronized Keccak256Hash getChainHeadId() throws BlockStoreException {
-        return Keccak256Hash.wrap(db.get(CHAIN_HEAD_KEY));
+    @Override
+    public Keccak256Hash getChainHeadId() throws BlockStoreException {
+        return chainHead.getSuperblockId();
     }
 
     /**
-     * Sets tip of superblock chain.
-     * @param chainHead Superblock with the highest chain work.
+     * Returns height of tip of superblock chain. Doesn't read the database.
+     * @return Chain head's height.
      * @throws BlockStoreException
      */
+    @Override
+    public long getChainHeight() throws BlockStoreException {
+        return chainHead.getSuperblockHeight();
+    }
+
+    /**
+     * Sets tip of superblock chain and updates the main chain indexes in the same write.
+     * Only the index entries of the superblocks that weren't already part of the main chain are rewritten.
+     * @param chainHead Superblock with the highest chain work. Must already be stored.
+     * @throws BlockStoreException
+     */
+    @Override
     public synchronized void setChainHead(Superblock chainHead) throws BlockStoreException, IOException {
-        db.put(CHAIN_HEAD_KEY, chainHead.getSuperblockId().getBytes());
+        putAll(Collections.<Superblock>emptyList(), chainHead);
+    }
+
+    /**
+     * Writes the chain head key and updates the main chain indexes.
+     * @param batch Batch where the changes are written.
+     * @param chainHead New tip of the superblock chain.
+     * @param pending Superblocks written to the same batch that aren't committed yet.
+     * @throws IOException
+     */
+    private void writeChainHead(WriteBatch batch, Superblock chainHead, Map<Keccak256Hash, SuperblockView> pending)
+            throws IOException {
+        ChainHead oldChainHead = this.chainHead;
+        if (oldChainHead != null) {
+            // The new main chain might be shorter than the old one.
+            for (long h = oldChainHead.getSuperblockHeight(); h > chainHead.getSuperblockHeight(); h--) {
+                byte[] heightKey = heightIndexKey(h);
+                byte[] oldSuperblockId = db.get(heightKey);
+                if (oldSuperblockId != null)
+                    batch.delete(mainChildIndexKey(Keccak256Hash.wrap(oldSuperblockId)));
+                batch.delete(heightKey);
+            }
+        }
+        // Nothing comes after the head.
+        batch.delete(mainChildIndexKey(chainHead.getSuperblockId()));
+        SuperblockView chainHeadView = pending.get(chainHead.getSuperblockId());
+        indexMainChain(batch, chainHeadView != null ? chainHeadView : getView(chainHead.getSuperblockId()),
+                true, pending);
+        batch.put(CHAIN_HEAD_KEY, chainHead.getSuperblockId().getBytes());
     }
 
     /**
-     * Returns tip work.
+     * Returns tip work. Doesn't read the database.
      * @return Chain head's accumulated work.
      * @throws BlockStoreException
      */
-    public synchronized BigInteger getChainHeadWork() throws BlockStoreException, IOException {
-        return getChainHead().getChainWork();
+    @Override
+    public BigInteger getChainHeadWork() throws BlockStoreException, IOException {
+        return chainHead.getChainWork();
+    }
+
+
+    /* ---- INDEX METHODS ---- */
+
+    /**
+     * Writes height index entries for a superblock and its ancestors.
+     * Doge block and main chain child index entries are rewritten too, so that they point to the new main chain;
+     * main chain child entries of the superblocks that are replaced are removed.
+     * @param batch Batch where the entries are written.
+     * @param superblock Tip of the chain to be indexed.
+     * @param stopAtForkPoint If true, stops at the first ancestor that is already indexed at its height,
+     *                        since everything below it is indexed too. Otherwise, indexes the whole chain.
+     * @param pending Superblocks written to the same batch that aren't committed yet.
+     * @return Number of superblocks indexed.
+     * @throws IOException
+     */
+    private long indexMainChain(WriteBatch batch, SuperblockView superblock, boolean stopAtForkPoint,
+                                Map<Keccak256Hash, SuperblockView> pending) throws IOException {
+        long indexed = 0;
+        SuperblockView current = superblock;
+
+        while (current != null) {
+            byte[] heightKey = heightIndexKey(current.getSuperblockHeight());
+            byte[] superblockId = current.getSuperblockId().getBytes();
+            if (stopAtForkPoint) {
+                byte[] replacedSuperblockId = db.get(heightKey);
+                if (Arrays.equals(replacedSuperblockId, superblockId))
+                    break;
+                if (replacedSuperblockId != null)
+                    batch.delete(mainChildIndexKey(Keccak256Hash.wrap(replacedSuperblockId)));
+            }
+            batch.put(heightKey, superblockId);
+            Keccak256Hash parentId = current.getParentId();
+            batch.put(mainChildIndexKey(parentId), superblockId);
+            indexDogeBlocks(batch, current, false);
+            indexed++;
+            SuperblockView parent = pending.get(parentId);
+            current = parent != null ? parent : getView(parentId);
+        }
+
+        return indexed;
+    }
+
+    /**
+     * Writes Doge block index entries for all the blocks in a superblock.
+     * @param batch Batch where the entries are written.
+     * @param superblock Superblock whose blocks are indexed.
+     * @param keepExisting If true, blocks that already have a committed entry are skipped.
+     * @throws IOException
+     */
+    private void indexDogeBlocks(WriteBatch batch, SuperblockView superblock, boolean keepExisting)
+            throws IOException {
+        byte[] superblockId = superblock.getSuperblockId().getBytes();
+        long superblockHeight = superblock.getSuperblockHeight();
+        int numberOfDogeBlocks = superblock.getDogeBlockHashCount();
+
+        for (int i = 0; i < numberOfDogeBlocks; i++) {
+            byte[] key = new byte[DOGE_BLOCK_INDEX_KEY_LENGTH];
+            key[0] = DOGE_BLOCK_INDEX_PREFIX;
+            superblock.copyDogeBlockHash(i, key, 1);
+            if (keepExisting && db.get(key) != null)
+                continue;
+            byte[] location = ByteBuffer.allocate(Keccak256Hash.LENGTH + 8 + 4)
+                    .put(superblockId).putLong(superblockHeight).putInt(i).array();
+            batch.put(key, location);
+        }
+    }
+
+    /**
+     * Writes children index entries for every stored superblock.
+     * @param batch Batch where the entries are written.
+     * @throws IOException
+     */
+    private void indexAllChildren(WriteBatch batch) throws IOException {
+        DBIterator it = db.iterator();
+        try {
+            for (it.seekToFirst(); it.hasNext(); ) {
+                Map.Entry<byte[], byte[]> entry = it.next();
+                if (entry.getKey().length != Keccak256Hash.LENGTH)
+                    continue; // not a superblock
+                SuperblockView superblock = new SuperblockView(Keccak256Hash.wrap(entry.getKey()), entry.getValue());
+                batch.put(childrenIndexKey(superblock.getParentId(), superblock.getSuperblockId()), EMPTY_VALUE);
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * Writes tip index entries for every stored superblock that isn't the parent of any other.
+     * The children index must be complete and committed.
+     * @param batch Batch where the entries are written.
+     * @throws IOException
+     */
+    private void indexAllTips(WriteBatch batch) throws IOException {
+        DBIterator it = db.iterator();
+        try {
+            for (it.seekToFirst(); it.hasNext(); ) {
+                Map.Entry<byte[], byte[]> entry = it.next();
+                if (entry.getKey().length != Keccak256Hash.LENGTH)
+                    continue; // not a superblock
+                SuperblockView superblock = new SuperblockView(Keccak256Hash.wrap(entry.getKey()), entry.getValue());
+                if (getChildrenIds(superblock.getSuperblockId()).isEmpty()) {
+                    batch.put(tipIndexKey(superblock.getSuperblockId()),
+                            tipIndexValue(superblock.getSuperblockHeight(), superblock.getChainWork()));
+                }
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * Deletes every index entry of a certain kind.
+     * Superblock IDs might start with the same byte as an index prefix, so key length is checked too.
+     * @param batch Batch where the deletions are written.
+     * @param prefix Index prefix.
+     * @param keyLength Length of the index keys.
+     */
+    private void deleteKeysWithPrefix(WriteBatch batch, byte prefix, int keyLength) throws IOException {
+        DBIterator it = db.iterator();
+        try {
+            for (it.seek(new byte[]{prefix}); it.hasNext(); ) {
+                byte[] key = it.next().getKey();
+                if (key[0] != prefix)
+                    break;
+                if (key.length == keyLength)
+                    batch.delete(key);
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * Replaces the known ID filter with an empty one.
+     * @param capacity Number of IDs the filter is sized for.
+     */
+    private void resetKnownIds(int capacity) {
+        knownIdsCount = 0;
+        knownIdsCapacity = capacity;
+        knownIds = BloomFilter.create(Funnels.byteArrayFunnel(), capacity, KNOWN_IDS_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * Adds a superblock ID to the unpublished copy of the known ID filter, making the copy if needed.
+     * If the filter is full, a new one is built from the children index with twice the capacity.
+     * That index only lists committed superblocks, so the ones in the current batch are added again afterwards.
+     * @param superblockId ID of a superblock about to be written.
+     * @param uncommittedIds IDs of the superblocks written earlier in the same batch.
+     * @throws IOException
+     */
+    private void addKnownId(Keccak256Hash superblockId, Collection<Keccak256Hash> uncommittedIds)
+            throws IOException {
+        if (knownIdsCount >= knownIdsCapacity) {
+            unpublishedKnownIds = buildKnownIds();
+            for (Keccak256Hash uncommittedId : uncommittedIds) {
+                unpublishedKnownIds.put(uncommittedId.getBytes());
+                knownIdsCount++;
+            }
+        } else if (unpublishedKnownIds == null) {
+            unpublishedKnownIds = knownIds.copy();
+        }
+        unpublishedKnownIds.put(superblockId.getBytes());
+        knownIdsCount++;
+    }
+
+    /**
+     * Replaces the known ID filter with one built from the database.
+     * @throws IOException
+     */
+    private synchronized void loadKnownIds() throws IOException {
+        knownIds = buildKnownIds();
+        log.debug("Loaded {} known superblock IDs.", knownIdsCount);
+    }
+
+    /**
+     * Builds a known ID filter from the database. Every superblock but the genesis one is the child
+     * in a children index entry, so only that index is scanned instead of the whole database.
+     * @return New filter, sized for twice the number of stored superblocks.
+     * @throws IOException
+     */
+    private BloomFilter<byte[]> buildKnownIds() throws IOException {
+        List<byte[]> storedIds = new ArrayList<>();
+        Keccak256Hash genesisId = getMainChainSuperblockId(0);
+        if (genesisId != null)
+            storedIds.add(genesisId.getBytes());
+        DBIterator it = db.iterator();
+        try {
+            for (it.seek(new byte[]{CHILDREN_INDEX_PREFIX}); it.hasNext(); ) {
+                byte[] key = it.next().getKey();
+                if (key[0] != CHILDREN_INDEX_PREFIX)
+                    break;
+                if (key.length == CHILDREN_INDEX_KEY_LENGTH)
+                    storedIds.add(Arrays.copyOfRange(key, 1 + Keccak256Hash.LENGTH, key.length));
+            }
+        } finally {
+            it.close();
+        }
+
+        knownIdsCount = storedIds.size();
+        knownIdsCapacity = Math.max(minKnownIdsCapacity, 2 * storedIds.size());
+        BloomFilter<byte[]> filter = BloomFilter.create(Funnels.byteArrayFunnel(), knownIdsCapacity,
+                KNOWN_IDS_FALSE_POSITIVE_RATE);
+        for (byte[] storedId : storedIds)
+            filter.put(storedId);
+        return filter;
+    }
+
+    /**
+     * Deletes the Doge block index entries that point to superblocks at or above a given height.
+     * @param batch Batch where the deletions are written.
+     * @param minHeight Entries pointing below this height are kept.
+     */
+    private void deleteDogeBlockIndexEntries(WriteBatch batch, long minHeight) throws IOException {
+        DBIterator it = db.iterator();
+        try {
+            for (it.seek(new byte[]{DOGE_BLOCK_INDEX_PREFIX}); it.hasNext(); ) {
+                Map.Entry<byte[], byte[]> entry = it.next();
+                byte[] key = entry.getKey();
+                if (key[0] != DOGE_BLOCK_INDEX_PREFIX)
+                    break;
+                if (key.length == DOGE_BLOCK_INDEX_KEY_LENGTH &&
+                        toDogeBlockLocation(entry.getValue()).getSuperblockHeight() >= minHeight)
+                    batch.delete(key);
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * Builds the superblock cache.
+     * @param maxEntries Maximum number of cached superblocks. Ignored if maxBytes is positive.
+     * @param maxBytes Maximum estimated size of the cached superblocks. Zero or less means no byte bound.
+     * @param expirySeconds Time after which a superblock that hasn't been read is evicted.
+     *                      Zero or less means no expiry.
+     * @return Empty cache.
+     */
+    private static Cache<Keccak256Hash, Superblock> buildCache(long maxEntries, long maxBytes, long expirySeconds) {
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().recordStats();
+        if (maxBytes > 0) {
+            builder.maximumWeight(maxBytes).weigher((Keccak256Hash superblockId, Superblock superblock) ->
+                    SUPERBLOCK_SIZE_ESTIMATE + DOGE_BLOCK_HASH_SIZE_ESTIMATE * superblock.getDogeBlockHashes().size());
+        } else {
+            builder.maximumSize(maxEntries);
+        }
+        if (expirySeconds > 0)
+            builder.expireAfterAccess(expirySeconds, TimeUnit.SECONDS);
+        return builder.build();
+    }
+
+    private static DogeBlockLocation toDogeBlockLocation(byte[] location) {
+        ByteBuffer buffer = ByteBuffer.wrap(location);
+        byte[] superblockId = new byte[Keccak256Hash.LENGTH];
+        buffer.get(superblockId);
+        long superblockHeight = buffer.getLong();
+        return new DogeBlockLocation(Keccak256Hash.wrap(superblockId), superblockHeight, buffer.getInt());
+    }
+
+    private static byte[] heightIndexKey(long height) {
+        return ByteBuffer.allocate(HEIGHT_INDEX_KEY_LENGTH).put(HEIGHT_INDEX_PREFIX).putLong(height).array();
+    }
+
+    private static byte[] dogeBlockIndexKey(Sha256Hash dogeBlockHash) {
+        return ByteBuffer.allocate(DOGE_BLOCK_INDEX_KEY_LENGTH)
+                .put(DOGE_BLOCK_INDEX_PREFIX).put(dogeBlockHash.getBytes()).array();
+    }
+
+    private static byte[] childrenIndexKey(Keccak256Hash parentId, Keccak256Hash childId) {
+        return ByteBuffer.allocate(CHILDREN_INDEX_KEY_LENGTH)
+                .put(CHILDREN_INDEX_PREFIX).put(parentId.getBytes()).put(childId.getBytes()).array();
+    }
+
+    private static byte[] mainChildIndexKey(Keccak256Hash parentId) {
+        return ByteBuffer.allocate(MAIN_CHILD_INDEX_KEY_LENGTH)
+                .put(MAIN_CHILD_INDEX_PREFIX).put(parentId.getBytes()).array();
+    }
+
+    private static byte[] tipIndexKey(Keccak256Hash superblockId) {
+        return ByteBuffer.allocate(TIP_INDEX_KEY_LENGTH).put(TIP_INDEX_PREFIX).put(superblockId.getBytes()).array();
+    }
+
+    private static byte[] tipIndexValue(long superblockHeight, BigInteger chainWork) {
+        byte[] work = chainWork.toByteArray();
+        return ByteBuffer.allocate(8 + work.length).putLong(superblockHeight).put(work).array();
+    }
+
+    private static boolean startsWith(byte[] array, byte[] prefix) {
+        if (array.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (array[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+
+    /* ---- HELPER CLASSES ---- */
+
+    /**
+     * Write batch that commits itself every time it holds a given number of changes.
+     * Writes aren't atomic as a whole, so it's only meant for changes that can be redone from scratch
+     * if they're interrupted.
+     */
+    private class ChunkedWriteBatch implements WriteBatch {
+        private final int maxChanges;
+        private WriteBatch batch;
+        private int changes;
+
+        ChunkedWriteBatch(int maxChanges) {
+            this.maxChanges = maxChanges;
+            this.batch = db.createWriteBatch();
+        }
+
+        @Override
+        public WriteBatch put(byte[] key, byte[] value) {
+            batch.put(key, value);
+            changeWritten();
+            return this;
+        }
+
+        @Override
+        public WriteBatch delete(byte[] key) {
+            batch.delete(key);
+            changeWritten();
+            return this;
+        }
+
+        private void changeWritten() {
+            if (++changes >= maxChanges)
+                flush();
+        }
+
+        /**
+         * Commits the changes written so far.
+         */
+        void flush() {
+            if (changes == 0)
+                return;
+            db.write(batch);
+            try {
+                batch.close();
+            } catch (IOException e) {
+                throw new DBException(e);
+            }
+            batch = db.createWriteBatch();
+            changes = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            batch.close();
+        }
+    }
+
+    /**
+     * Sequential scan of the height index over a range of heights, reading from a snapshot.
+     * Must be closed to release the snapshot.
+     */
+    private class MainChainScan implements Iterator<Keccak256Hash> {
+        private final Snapshot snapshot;
+        private final ReadOptions readOptions;
+        private final DBIterator iterator;
+        private final long toHeight;
+        private Keccak256Hash next;
+
+        MainChainScan(long fromHeight, long toHeight) {
+            this.snapshot = db.getSnapshot();
+            this.readOptions = new ReadOptions().snapshot(snapshot);
+            this.iterator = db.iterator(readOptions);
+            this.toHeight = toHeight;
+            iterator.seek(heightIndexKey(Math.max(0, fromHeight)));
+            advance();
+        }
+
+        /**
+         * Moves to the next height index entry in the range, skipping superblock keys that share the prefix.
+         */
+        private void advance() {
+            next = null;
+            while (iterator.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = iterator.next();
+                byte[] key = entry.getKey();
+                if (key[0] != HEIGHT_INDEX_PREFIX)
+                    return;
+                if (key.length != HEIGHT_INDEX_KEY_LENGTH)
+                    continue;
+                if (ByteBuffer.wrap(key, 1, 8).getLong() > toHeight)
+                    return;
+                next = Keccak256Hash.wrap(entry.getValue());
+                return;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Keccak256Hash next() {
+            if (next == null)
+                throw new NoSuchElementException();
+            Keccak256Hash superblockId = next;
+            advance();
+            return superblockId;
+        }
+
+        /**
+         * Reads a superblock from the cache or from the scan's snapshot.
+         * @param superblockId ID returned by the scan.
+         * @return Superblock.
+         */
+        Superblock readSuperblock(Keccak256Hash superblockId) {
+            Superblock superblock = cache.getIfPresent(superblockId);
+            if (superblock != null)
+                return superblock;
+            byte[] bits = db.get(superblockId.getBytes(), readOptions);
+            if (bits == null)
+                throw new IllegalStateException("Main chain superblock " + superblockId + " is missing.");
+            return new Superblock(bits, superblockId);
+        }
+
+        void close() {
+            try {
+                try {
+                    iterator.close();
+                } finally {
+                    snapshot.close();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Immutable summary of the chain head, so that it can be queried without touching the database.
+     */
+    private static class ChainHead {
+        private final Keccak256Hash superblockId;
+        private final long superblockHeight;
+        private final BigInteger chainWork;
+
+        ChainHead(Superblock superblock) throws IOException {
+            this.superblockId = superblock.getSuperblockId();
+            this.superblockHeight = superblock.getSuperblockHeight();
+            this.chainWork = superblock.getChainWork();
+        }
+
+        Keccak256Hash getSuperblockId() {
+            return superblockId;
+        }
+
+        long getSuperblockHeight() {
+            return superblockHeight;
+        }
+
+        BigInteger getChainWork() {
+            return chainWork;
+        }
     }
 
 }
@@ -0,0 +1,150 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Merkle root calculation for complete superblock trees.
+ * Produces the same roots as building a bitcoinj PartialMerkleTree with every leaf included:
+ * nodes are double SHA-256 hashes of their children in internal byte order,
+ * and the last node of a level is paired with itself when the level has an odd number of nodes.
+ * Each level is hashed from one byte buffer into another, with one MessageDigest per thread.
+ */
+public class SuperblockMerkle {
+    // Levels with at least this many nodes are hashed in parallel when parallelism is requested.
+    static final int PARALLEL_THRESHOLD = 1 << 13;
+    // Nodes hashed by each parallel task.
+    private static final int PARALLEL_CHUNK = 1 << 11;
+    // Trees with more leaves than this get their own buffers instead of keeping them around in every thread.
+    private static final int MAX_REUSED_LEAVES = 1 << 12;
+
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(Sha256Hash::newDigest);
+    private static final ThreadLocal<byte[][]> levelBuffers = ThreadLocal.withInitial(() -> new byte[2][0]);
+
+    private SuperblockMerkle() {}
+
+    /**
+     * Calculates the Merkle root of a list of Dogecoin block hashes on the calling thread.
+     * @param leaves Hashes of the blocks in a superblock. Must not be empty.
+     * @return Merkle root.
+     */
+    public static Sha256Hash computeRoot(List<Sha256Hash> leaves) {
+        return computeRoot(leaves, false);
+    }
+
+    /**
+     * Calculates the Merkle root of a list of Dogecoin block hashes.
+     * @param leaves Hashes of the blocks in a superblock. Must not be empty.
+     * @param parallel If true, big levels are split across the common fork-join pool.
+     * @return Merkle root.
+     */
+    public static Sha256Hash computeRoot(List<Sha256Hash> leaves, boolean parallel) {
+        int count = leaves.size();
+        if (count == 0)
+            throw new IllegalArgumentException("A Merkle tree needs at least one leaf.");
+        if (count == 1)
+            return leaves.get(0);
+
+        byte[] in = levelBuffer(0, count);
+        byte[] out = levelBuffer(1, (count + 1) / 2);
+        for (int i = 0; i < count; i++)
+            System.arraycopy(leaves.get(i).getReversedBytes(), 0, in, i * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+
+        while (count > 1) {
+            int parents = (count + 1) / 2;
+            if (parallel && parents >= PARALLEL_THRESHOLD) {
+                byte[] level = in;
+                byte[] nextLevel = out;
+                int children = count;
+                IntStream.range(0, (parents + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK).parallel().forEach(chunk ->
+                        hashLevel(level, children, nextLevel, chunk * PARALLEL_CHUNK,
+                                Math.min(parents, (chunk + 1) * PARALLEL_CHUNK)));
+            } else {
+                hashLevel(in, count, out, 0, parents);
+            }
+            byte[] swap = in;
+            in = out;
+            out = swap;
+            count = parents;
+        }
+
+        byte[] root = new byte[Sha256Hash.LENGTH];
+        System.arraycopy(in, 0, root, 0, Sha256Hash.LENGTH);
+        return Sha256Hash.wrapReversed(root);
+    }
+
+    /**
+     * Calculates every level of the Merkle tree of a list of Dogecoin block hashes,
+     * so that sibling paths can be read from it afterwards.
+     * @param leaves Hashes of the blocks in a superblock. Must not be empty.
+     * @return Complete Merkle tree.
+     */
+    public static SuperblockMerkleTree computeTree(List<Sha256Hash> leaves) {
+        int count = leaves.size();
+        if (count == 0)
+            throw new IllegalArgumentException("A Merkle tree needs at least one leaf.");
+
+        List<byte[]> levels = new ArrayList<>();
+        byte[] level = new byte[count * Sha256Hash.LENGTH];
+        for (int i = 0; i < count; i++)
+            System.arraycopy(leaves.get(i).getReversedBytes(), 0, level, i * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+        levels.add(level);
+
+        while (count > 1) {
+            int parents = (count + 1) / 2;
+            byte[] nextLevel = new byte[parents * Sha256Hash.LENGTH];
+            hashLevel(level, count, nextLevel, 0, parents);
+            levels.add(nextLevel);
+            level = nextLevel;
+            count = parents;
+        }
+
+        return new SuperblockMerkleTree(levels);
+    }
+
+    /**
+     * Hashes a range of nodes of the next level up.
+     * @param level Current level, one 32-byte node after another.
+     * @param count Number of nodes in the current level.
+     * @param nextLevel Where the parents are written.
+     * @param from First parent to calculate.
+     * @param to Parent after the last one to calculate.
+     */
+    private static void hashLevel(byte[] level, int count, byte[] nextLevel, int from, int to) {
+        MessageDigest digest = digests.get();
+        try {
+            for (int i = from; i < to; i++) {
+                int left = 2 * i;
+                int right = left + 1 < count ? left + 1 : left;
+                digest.update(level, left * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+                digest.update(level, right * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+                digest.digest(nextLevel, i * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+                digest.update(nextLevel, i * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+                digest.digest(nextLevel, i * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+            }
+        } catch (DigestException e) {
+            throw new RuntimeException(e); // Cannot happen, the buffers always fit a whole hash.
+        }
+    }
+
+    /**
+     * Returns a buffer big enough for a level, reusing the thread's one if the tree isn't too big.
+     * @param index Which of the thread's two buffers to use.
+     * @param nodes Number of nodes in the level.
+     * @return Buffer of at least nodes * 32 bytes.
+     */
+    private static byte[] levelBuffer(int index, int nodes) {
+        int length = nodes * Sha256Hash.LENGTH;
+        if (nodes > MAX_REUSED_LEAVES)
+            return new byte[length];
+        byte[][] buffers = levelBuffers.get();
+        if (buffers[index].length < length)
+            buffers[index] = new byte[MAX_REUSED_LEAVES * Sha256Hash.LENGTH];
+        return buffers[index];
+    }
+}
@@ -0,0 +1,61 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Every level of a complete superblock Merkle tree, as calculated by SuperblockMerkle.
+ * Kept around so that the SPV branch of any Doge block in the superblock can be read
+ * without hashing the tree again.
+ */
+public class SuperblockMerkleTree {
+    // From the leaves up to the root, each one a sequence of 32-byte nodes in internal byte order.
+    private final List<byte[]> levels;
+
+    SuperblockMerkleTree(List<byte[]> levels) {
+        this.levels = levels;
+    }
+
+    /**
+     * @return Number of leaves, i.e. Doge blocks in the superblock.
+     */
+    public int getLeafCount() {
+        return levels.get(0).length / Sha256Hash.LENGTH;
+    }
+
+    /**
+     * @return Merkle root.
+     */
+    public Sha256Hash getRoot() {
+        return getNode(levels.size() - 1, 0);
+    }
+
+    /**
+     * Returns the siblings along the path from a leaf to the root, as expected by the relay contract.
+     * A node without a right sibling is paired with itself, so in that case it is its own sibling.
+     * @param leafIndex Position of the Doge block in the superblock.
+     * @return Siblings from the leaf level up, one per level below the root.
+     */
+    public List<Sha256Hash> getSiblings(int leafIndex) {
+        if (leafIndex < 0 || leafIndex >= getLeafCount())
+            throw new IndexOutOfBoundsException("Leaf " + leafIndex + " of " + getLeafCount());
+
+        List<Sha256Hash> siblings = new ArrayList<>(levels.size() - 1);
+        int index = leafIndex;
+        for (int level = 0; level < levels.size() - 1; level++) {
+            int nodes = levels.get(level).length / Sha256Hash.LENGTH;
+            int sibling = index ^ 1;
+            siblings.add(getNode(level, sibling < nodes ? sibling : index));
+            index /= 2;
+        }
+        return siblings;
+    }
+
+    private Sha256Hash getNode(int level, int index) {
+        byte[] node = new byte[Sha256Hash.LENGTH];
+        System.arraycopy(levels.get(level), index * Sha256Hash.LENGTH, node, 0, Sha256Hash.LENGTH);
+        return Sha256Hash.wrapReversed(node);
+    }
+}
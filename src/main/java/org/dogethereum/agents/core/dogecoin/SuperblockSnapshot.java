@@ -0,0 +1,248 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import com.google.common.io.ByteStreams;
+import lombok.extern.slf4j.Slf4j;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.store.BlockStoreException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Export and import of the main superblock chain as a single file, so that a new agent node can start from
+ * another node's chain instead of rebuilding it from the Doge headers.
+ * Format, all numbers big-endian:
+ * - MAGIC, FORMAT_VERSION (4 bytes), network ID (modified UTF-8), height of the last superblock (8 bytes);
+ * - one record per main chain superblock from the genesis superblock up: length (4 bytes) followed by
+ *   the superblock in storage format;
+ * - SHA-256 hash of everything before it.
+ * Indexes aren't part of the file: they're rebuilt from the records as they're written, in the same batches.
+ * Merkle roots aren't trusted either: each record's root is recalculated from its Doge block hashes on import.
+ */
+@Slf4j(topic = "SuperblockSnapshot")
+public class SuperblockSnapshot {
+    private static final byte[] MAGIC = "DOGESBSNAP".getBytes();
+    private static final int FORMAT_VERSION = 1;
+
+    // Superblocks written to the store in a single batch while importing.
+    private static final int IMPORT_BATCH_SIZE = 1000;
+
+    private SuperblockSnapshot() {}
+
+    /**
+     * Writes the main chain from the genesis superblock up to a given height.
+     * @param store Store the chain is read from. The range is read as of the start of the export.
+     * @param networkId ID of the Doge network the chain belongs to.
+     * @param height Height of the last superblock to export. Capped at the chain head's.
+     * @param outputStream Where the snapshot is written. Not closed.
+     * @return Height of the last exported superblock.
+     * @throws IOException if the chain has been pruned or it's not connected.
+     * @throws BlockStoreException
+     */
+    public static long export(SuperblockStore store, String networkId, long height, OutputStream outputStream)
+            throws IOException, BlockStoreException {
+        long lastHeight = Math.min(height, store.getChainHeight());
+        if (store.getPrunedHeight() > 0)
+            throw new IOException("The superblock chain is pruned below height " + store.getPrunedHeight() +
+                    " and can't be exported.");
+
+        MessageDigest digest = Sha256Hash.newDigest();
+        DataOutputStream out = new DataOutputStream(
+                new DigestOutputStream(new BufferedOutputStream(outputStream), digest));
+        out.write(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(networkId);
+        out.writeLong(lastHeight);
+
+        Keccak256Hash parentId = null;
+        long h = 0;
+        try (Stream<Superblock> superblocks = store.getMainChain(0, lastHeight)) {
+            for (Superblock superblock : (Iterable<Superblock>) superblocks::iterator) {
+                if (superblock.getSuperblockHeight() != h ||
+                        (parentId != null && !parentId.equals(superblock.getParentId())))
+                    throw new IOException("Main chain is broken at superblock height " + h + ".");
+                ByteBuffer buffer =
+                        SuperblockEncoder.getThreadBuffer(SuperblockEncoder.getStorageLength(superblock));
+                SuperblockEncoder.encodeForStorage(superblock, buffer);
+                out.writeInt(buffer.position());
+                out.write(buffer.array(), 0, buffer.position());
+                parentId = superblock.getSuperblockId();
+                h++;
+            }
+        }
+        if (h != lastHeight + 1)
+            throw new IOException("Main chain is broken at superblock height " + h + ".");
+
+        out.flush();
+        // The checksum itself isn't hashed.
+        outputStream.write(digest.digest());
+        outputStream.flush();
+        return lastHeight;
+    }
+
+    /**
+     * Checks a snapshot file's checksum without importing it.
+     * @param file Snapshot file.
+     * @return True if the checksum matches the contents.
+     * @throws IOException
+     */
+    public static boolean verify(File file) throws IOException {
+        long contentLength = file.length() - Sha256Hash.LENGTH;
+        if (contentLength < 0)
+            return false;
+        MessageDigest digest = Sha256Hash.newDigest();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            ByteStreams.copy(ByteStreams.limit(new DigestInputStream(in, digest), contentLength),
+                    ByteStreams.nullOutputStream());
+            byte[] checksum = new byte[Sha256Hash.LENGTH];
+            in.readFully(checksum);
+            return Arrays.equals(checksum, digest.digest());
+        }
+    }
+
+    /**
+     * Writes the superblocks of a snapshot on top of a fresh store, IMPORT_BATCH_SIZE superblocks per write,
+     * each write moving the chain head to its last superblock.
+     * The checksum is checked before anything is written, and again while the superblocks are read.
+     * Superblock IDs are recalculated and every superblock must be the child of the previous one,
+     * starting from the store's own genesis superblock. If anything is wrong with the snapshot after some
+     * superblocks were written, the store is reset, so the import can be retried with another snapshot.
+     * @param store Store holding nothing but the genesis superblock.
+     * @param networkId ID of the Doge network the store belongs to.
+     * @param file Snapshot file.
+     * @return Height of the new chain head.
+     * @throws IOException if the snapshot is malformed, belongs to another network or chain,
+     *         or its checksum doesn't match.
+     * @throws BlockStoreException
+     */
+    public static long importInto(SuperblockStore store, String networkId, File file)
+            throws IOException, BlockStoreException {
+        return importInto(store, networkId, file, IMPORT_BATCH_SIZE);
+    }
+
+    /**
+     * Writes the superblocks of a snapshot on top of a fresh store.
+     * @param store Store holding nothing but the genesis superblock.
+     * @param networkId ID of the Doge network the store belongs to.
+     * @param file Snapshot file.
+     * @param batchSize Number of superblocks written at once.
+     * @return Height of the new chain head.
+     * @throws IOException
+     * @throws BlockStoreException
+     */
+    static long importInto(SuperblockStore store, String networkId, File file, int batchSize)
+            throws IOException, BlockStoreException {
+        if (store.getChainHeight() != 0)
+            throw new IOException("Snapshots can only be imported into an empty superblock store.");
+        if (!verify(file))
+            throw new IOException("Superblock snapshot checksum doesn't match.");
+
+        try (InputStream inputStream = new FileInputStream(file)) {
+            return importSuperblocks(store, networkId, inputStream, batchSize);
+        } catch (IOException | BlockStoreException | RuntimeException e) {
+            log.error("Superblock snapshot import failed, resetting the superblock store.", e);
+            try {
+                store.reset();
+            } catch (BlockStoreException resetException) {
+                e.addSuppressed(resetException);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a snapshot and writes its superblocks, batchSize superblocks per write.
+     * @param store Store holding nothing but the genesis superblock.
+     * @param networkId ID of the Doge network the store belongs to.
+     * @param inputStream Snapshot. Read to the end, not closed.
+     * @param batchSize Number of superblocks written at once.
+     * @return Height of the new chain head.
+     * @throws IOException
+     * @throws BlockStoreException
+     */
+    private static long importSuperblocks(SuperblockStore store, String networkId, InputStream inputStream,
+                                          int batchSize) throws IOException, BlockStoreException {
+        MessageDigest digest = Sha256Hash.newDigest();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        DataInputStream hashedIn = new DataInputStream(new DigestInputStream(in, digest));
+        byte[] magic = new byte[MAGIC.length];
+        hashedIn.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new IOException("Not a superblock snapshot.");
+        int formatVersion = hashedIn.readInt();
+        if (formatVersion != FORMAT_VERSION)
+            throw new IOException("Unsupported superblock snapshot version " + formatVersion + ".");
+        String snapshotNetworkId = hashedIn.readUTF();
+        if (!snapshotNetworkId.equals(networkId))
+            throw new IOException("Snapshot is for network " + snapshotNetworkId + ", not " + networkId + ".");
+        long lastHeight = hashedIn.readLong();
+
+        Superblock genesis = readSuperblock(hashedIn, true);
+        if (!genesis.getSuperblockId().equals(store.getChainHeadId()))
+            throw new IOException("Snapshot starts at superblock " + genesis.getSuperblockId() +
+                    ", not at the store's genesis superblock " + store.getChainHeadId() + ".");
+
+        Keccak256Hash parentId = genesis.getSuperblockId();
+        List<Superblock> batch = new ArrayList<>(batchSize);
+        for (long h = 1; h <= lastHeight; h++) {
+            Superblock superblock = readSuperblock(hashedIn, false);
+            if (superblock.getSuperblockHeight() != h || !superblock.getParentId().equals(parentId))
+                throw new IOException("Snapshot superblock at height " + h + " doesn't follow the previous one.");
+            parentId = superblock.getSuperblockId();
+            batch.add(superblock);
+            if (batch.size() >= batchSize || h == lastHeight) {
+                store.putAll(batch, batch.get(batch.size() - 1));
+                log.info("Imported superblocks up to height {}", h);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+
+        // The file might have changed since it was verified.
+        byte[] checksum = new byte[Sha256Hash.LENGTH];
+        in.readFully(checksum);
+        if (!Arrays.equals(checksum, digest.digest()) || in.read() != -1)
+            throw new IOException("Superblock snapshot checksum doesn't match.");
+        return lastHeight;
+    }
+
+    /**
+     * Reads one superblock record and checks that its Merkle root and last Doge block hash
+     * match its Doge block hashes, since the ID only covers the former two.
+     * @param in Snapshot, positioned at the start of a record.
+     * @param genesis True if the record is the genesis superblock's. Genesis superblocks are configured
+     *                without their Doge block hashes, so only their ID can be checked, against the store's.
+     * @return Superblock.
+     * @throws IOException if the record is malformed or its fields don't match its Doge block hashes.
+     */
+    private static Superblock readSuperblock(DataInputStream in, boolean genesis) throws IOException {
+        int length = in.readInt();
+        if (length < Superblock.DOGE_BLOCK_HASHES_PAYLOAD_OFFSET)
+            throw new IOException("Malformed superblock record of " + length + " bytes.");
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        // Pruned superblocks are never exported, so every other record has all of its hashes.
+        long numberOfHashes = Utils.readUint32(payload, Superblock.NUMBER_OF_HASHES_PAYLOAD_OFFSET);
+        if ((numberOfHashes == 0 && !genesis) ||
+                length != Superblock.DOGE_BLOCK_HASHES_PAYLOAD_OFFSET + numberOfHashes * Superblock.HASH_BYTES_LENGTH)
+            throw new IOException("Malformed superblock record of " + length + " bytes.");
+        Superblock superblock = new Superblock(payload);
+        List<Sha256Hash> dogeBlockHashes = superblock.getDogeBlockHashes();
+        if (dogeBlockHashes.isEmpty())
+            return superblock;
+        if (!superblock.getMerkleRoot().equals(SuperblockMerkle.computeRoot(dogeBlockHashes)))
+            throw new IOException("Merkle root of snapshot superblock at height " +
+                    superblock.getSuperblockHeight() + " doesn't match its Doge block hashes.");
+        if (!superblock.getLastDogeBlockHash().equals(dogeBlockHashes.get(dogeBlockHashes.size() - 1)))
+            throw new IOException("Last Doge block hash of snapshot superblock at height " +
+                    superblock.getSuperblockHeight() + " isn't the last of its Doge block hashes.");
+        return superblock;
+    }
+}
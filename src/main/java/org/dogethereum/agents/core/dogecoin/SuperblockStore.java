@@ -0,0 +1,201 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import com.google.common.cache.CacheStats;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.store.BlockStoreException;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Storage for a superblock chain, along with the indexes used to look it up.
+ * SuperblockChain only talks to this interface, so chains can be kept in LevelDB (SuperblockLevelDBBlockStore)
+ * or entirely in memory (InMemorySuperblockStore), e.g. for tests and benchmarks.
+ */
+public interface SuperblockStore {
+
+    /* ---- WRITING ---- */
+
+    /**
+     * Writes a superblock, along with the index entries for its Doge blocks and parent.
+     * @param block Superblock to be written.
+     * @throws IOException
+     */
+    void put(Superblock block) throws IOException;
+
+    /**
+     * Writes a run of superblocks, their index entries and optionally a new chain head atomically.
+     * Superblocks that are already stored are left as they are, so pruned ones stay pruned.
+     * @param superblocks Superblocks to be written, sorted so that parents come before their children.
+     * @param newChainHead New tip of the superblock chain. It can be one of the superblocks being written
+     *                     or an already stored one. If null, the chain head isn't changed.
+     * @throws IOException
+     */
+    void putAll(List<Superblock> superblocks, Superblock newChainHead) throws IOException;
+
+    /**
+     * Sets tip of superblock chain and updates the main chain indexes.
+     * Only the entries above the fork point between the old and the new main chain are rewritten,
+     * so the head can also be rolled back to one of its ancestors or moved to another branch.
+     * @param chainHead New tip of the superblock chain, usually the superblock with the highest chain work.
+     *                  Must already be stored.
+     * @throws BlockStoreException
+     * @throws IOException
+     */
+    void setChainHead(Superblock chainHead) throws BlockStoreException, IOException;
+
+
+    /* ---- READING ---- */
+
+    /**
+     * Retrieves a superblock.
+     * Main chain superblocks below the pruned height come back without their Doge block hashes.
+     * @param superblockId Keccak-256 hash of superblock.
+     * @return Superblock identified by hash, or null if it's not stored.
+     * @throws IOException
+     */
+    Superblock get(Keccak256Hash superblockId) throws IOException;
+
+    /**
+     * Retrieves the main chain superblock at a given height.
+     * @param height Superblock height.
+     * @return Superblock at that height in the main chain if the chain is at least that high, null otherwise.
+     * @throws IOException
+     */
+    Superblock getByHeight(long height) throws IOException;
+
+    /**
+     * Looks up the ID of the main chain superblock at a given height.
+     * @param height Superblock height.
+     * @return ID of the superblock at that height in the main chain if the chain is at least that high,
+     *         null otherwise.
+     */
+    Keccak256Hash getMainChainSuperblockId(long height);
+
+    /**
+     * Streams the IDs of a range of the main chain, lowest first, as of the time of the call.
+     * The stream must be closed, e.g. with try-with-resources.
+     * @param fromHeight Height of the first superblock.
+     * @param toHeight Height of the last superblock. Capped at the chain head's.
+     * @return IDs of the main chain superblocks in the range.
+     */
+    Stream<Keccak256Hash> getMainChainIds(long fromHeight, long toHeight);
+
+    /**
+     * Streams a range of the main chain, lowest first, as of the time of the call.
+     * The stream must be closed, e.g. with try-with-resources.
+     * @param fromHeight Height of the first superblock.
+     * @param toHeight Height of the last superblock. Capped at the chain head's.
+     * @return Main chain superblocks in the range.
+     */
+    Stream<Superblock> getMainChain(long fromHeight, long toHeight);
+
+    /**
+     * Looks up the child of a superblock in the main chain.
+     * @param superblockId Superblock ID.
+     * @return ID of the superblock's child in the main chain if the superblock is in the main chain
+     *         and isn't its head, null otherwise.
+     */
+    Keccak256Hash getMainChainChildId(Keccak256Hash superblockId);
+
+    /**
+     * Lists every stored child of a superblock, whether it's in the main chain or not.
+     * @param superblockId Superblock ID.
+     * @return IDs of all the stored superblocks whose parent is the given superblock.
+     * @throws IOException
+     */
+    List<Keccak256Hash> getChildrenIds(Keccak256Hash superblockId) throws IOException;
+
+    /**
+     * Looks up which superblock contains a given Doge block, and where.
+     * @param dogeBlockHash Doge block hash.
+     * @return Superblock ID, height and leaf index of the block if it's part of a stored superblock,
+     *         null otherwise. If the block is in the main chain, the superblock is the main chain one.
+     */
+    DogeBlockLocation getDogeBlockLocation(Sha256Hash dogeBlockHash);
+
+    /**
+     * Looks up which main chain superblock contains a given Doge block, and where.
+     * The lookup is atomic with respect to writes, so it never mixes two versions of the main chain.
+     * @param dogeBlockHash Doge block hash.
+     * @return Superblock ID, height and leaf index of the block if it's part of a main chain superblock,
+     *         null otherwise.
+     * @throws IOException
+     */
+    DogeBlockLocation getMainChainDogeBlockLocation(Sha256Hash dogeBlockHash) throws IOException;
+
+    /**
+     * Lists the ends of every known branch of the superblock tree, the main chain head included.
+     * Tips are tracked as superblocks are written, so this doesn't scan the store;
+     * only the side branches themselves are walked to find their fork points.
+     * @return Every stored superblock without stored children.
+     * @throws IOException
+     */
+    List<SuperblockTip> getTips() throws IOException;
+
+
+    /* ---- CHAIN HEAD ---- */
+
+    /**
+     * @return Highest stored superblock. Not necessarily approved in the contracts.
+     * @throws BlockStoreException
+     * @throws IOException
+     */
+    Superblock getChainHead() throws BlockStoreException, IOException;
+
+    /**
+     * @return Highest stored superblock's hash.
+     * @throws BlockStoreException
+     */
+    Keccak256Hash getChainHeadId() throws BlockStoreException;
+
+    /**
+     * @return Chain head's height.
+     * @throws BlockStoreException
+     */
+    long getChainHeight() throws BlockStoreException;
+
+    /**
+     * @return Chain head's accumulated work.
+     * @throws BlockStoreException
+     * @throws IOException
+     */
+    BigInteger getChainHeadWork() throws BlockStoreException, IOException;
+
+
+    /* ---- MAINTENANCE ---- */
+
+    /**
+     * @return Statistics of the store's superblock cache. All zero if the store doesn't cache superblocks.
+     */
+    CacheStats getCacheStats();
+
+    /**
+     * Drops the Doge block hashes of the main chain superblocks below a given height.
+     * Every other field is kept, and so are the Doge block index entries, so the chain can still be walked
+     * and Doge blocks can still be located; only their Merkle branches can't be built anymore.
+     * @param height Height of the first main chain superblock that is kept whole. Capped at the chain head's.
+     * @return Number of superblocks pruned.
+     * @throws IOException
+     */
+    long pruneBelow(long height) throws IOException;
+
+    /**
+     * @return Height below which main chain superblocks have been pruned, 0 if none were.
+     */
+    long getPrunedHeight();
+
+    /**
+     * Erases the contents of the store, leaving nothing but the genesis superblock.
+     * @throws BlockStoreException
+     */
+    void reset() throws BlockStoreException;
+
+    /**
+     * Releases the resources held by the store.
+     * @throws BlockStoreException
+     */
+    void close() throws BlockStoreException;
+}
@@ -0,0 +1,73 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import java.math.BigInteger;
+
+/**
+ * Superblock without stored children, i.e. the end of a branch of the superblock tree,
+ * along with the point where its branch leaves the main chain.
+ */
+public class SuperblockTip {
+    private final Keccak256Hash superblockId;
+    private final long superblockHeight;
+    private final BigInteger chainWork;
+    private final Keccak256Hash forkPointId;
+    private final long forkPointHeight;
+
+    public SuperblockTip(Keccak256Hash superblockId, long superblockHeight, BigInteger chainWork,
+                         Keccak256Hash forkPointId, long forkPointHeight) {
+        this.superblockId = superblockId;
+        this.superblockHeight = superblockHeight;
+        this.chainWork = chainWork;
+        this.forkPointId = forkPointId;
+        this.forkPointHeight = forkPointHeight;
+    }
+
+    /**
+     * @return ID of the superblock at the end of the branch.
+     */
+    public Keccak256Hash getSuperblockId() {
+        return superblockId;
+    }
+
+    /**
+     * @return Height of the superblock at the end of the branch.
+     */
+    public long getSuperblockHeight() {
+        return superblockHeight;
+    }
+
+    /**
+     * @return Accumulated work of the superblock at the end of the branch.
+     */
+    public BigInteger getChainWork() {
+        return chainWork;
+    }
+
+    /**
+     * @return ID of the newest main chain superblock the branch descends from.
+     *         Same as the tip's own ID if the tip is the main chain head.
+     */
+    public Keccak256Hash getForkPointId() {
+        return forkPointId;
+    }
+
+    /**
+     * @return Height of the fork point.
+     */
+    public long getForkPointHeight() {
+        return forkPointHeight;
+    }
+
+    /**
+     * @return True if the tip is the head of the main chain.
+     */
+    public boolean isMainChain() {
+        return superblockId.equals(forkPointId);
+    }
+
+    @Override
+    public String toString() {
+        return "SuperblockTip{" + superblockId + " height " + superblockHeight + " work " + chainWork +
+                " fork point " + forkPointId + " height " + forkPointHeight + "}";
+    }
+}
@@ -112,6 +112,41 @@ public class SuperblockUtils {
         return calendar.getTime();
     }
 
+    /**
+     * Calculates the start time of the superblock time window that a block belongs to.
+     * @param firstBlockTimestamp Timestamp of the first block in a superblock.
+     * @param superblockDuration Length of a superblock time window, in seconds.
+     * @return Superblock start time.
+     */
+    public static Date getSuperblockStartTime(Date firstBlockTimestamp, int superblockDuration) {
+        Calendar startTime = Calendar.getInstance();
+        startTime.setTime(firstBlockTimestamp);
+        startTime.set(Calendar.HOUR, 0);
+        startTime.set(Calendar.MINUTE, 0);
+        startTime.set(Calendar.SECOND, 0);
+        startTime.set(Calendar.MILLISECOND, 0);
+        Calendar nextStartTime = (Calendar) startTime.clone();
+        nextStartTime.add(Calendar.SECOND, superblockDuration);
+        while (!nextStartTime.getTime().after(firstBlockTimestamp)) {
+            startTime.add(Calendar.SECOND, superblockDuration);
+            nextStartTime.add(Calendar.SECOND, superblockDuration);
+        }
+        return startTime.getTime();
+    }
+
+    /**
+     * Calculates the end time of a superblock time window.
+     * @param startTime Superblock start time.
+     * @param superblockDuration Length of a superblock time window, in seconds.
+     * @return Superblock end time.
+     */
+    public static Date getSuperblockEndTime(Date startTime, int superblockDuration) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(startTime);
+        calendar.add(Calendar.SECOND, superblockDuration);
+        return calendar.getTime();
+    }
+
     /**
      * Copied from bitcoinj's Block.writeHeader().
      * @param block Dogecoin block.
@@ -0,0 +1,155 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import static org.dogethereum.agents.core.dogecoin.Superblock.*;
+
+/**
+ * Read-only view of a superblock serialized in storage format.
+ * Unlike Superblock, nothing is decoded until it's accessed, and Doge block hashes are read one at a time,
+ * so walking the chain through views only allocates the fields that are actually used.
+ * The payload is not copied, so it must not be modified while the view is in use.
+ */
+public class SuperblockView {
+
+    private final Keccak256Hash superblockId;
+    private final byte[] payload;
+
+    /**
+     * Wraps a serialized superblock.
+     * @param superblockId Superblock ID, i.e. the key the payload was stored under.
+     * @param payload Superblock serialized by Superblock.serializeForStorage().
+     */
+    public SuperblockView(Keccak256Hash superblockId, byte[] payload) {
+        this.superblockId = superblockId;
+        this.payload = payload;
+    }
+
+
+    /* ---- GETTERS ---- */
+
+    public Keccak256Hash getSuperblockId() {
+        return superblockId;
+    }
+
+    public Sha256Hash getMerkleRoot() {
+        return Sha256Hash.wrapReversed(SuperblockUtils.readBytes(
+                payload, MERKLE_ROOT_PAYLOAD_OFFSET, HASH_BYTES_LENGTH));
+    }
+
+    public BigInteger getChainWork() {
+        return new BigInteger(Utils.reverseBytes(SuperblockUtils.readBytes(
+                payload, CHAIN_WORK_PAYLOAD_OFFSET, BIG_INTEGER_LENGTH)));
+    }
+
+    public long getLastDogeBlockTime() {
+        return Utils.readUint32(payload, LAST_BLOCK_TIME_PAYLOAD_OFFSET);
+    }
+
+    public long getPreviousToLastDogeBlockTime() {
+        return Utils.readUint32(payload, PREVIOUS_TO_LAST_BLOCK_TIME_PAYLOAD_OFFSET);
+    }
+
+    public Sha256Hash getLastDogeBlockHash() {
+        return Sha256Hash.wrapReversed(SuperblockUtils.readBytes(
+                payload, LAST_BLOCK_HASH_PAYLOAD_OFFSET, HASH_BYTES_LENGTH));
+    }
+
+    public long getLastDogeBlockBits() {
+        return Utils.readUint32(payload, LAST_BLOCK_BITS_PAYLOAD_OFFSET);
+    }
+
+    public Keccak256Hash getParentId() {
+        return Keccak256Hash.wrapReversed(SuperblockUtils.readBytes(
+                payload, PARENT_ID_PAYLOAD_OFFSET, HASH_BYTES_LENGTH));
+    }
+
+    public long getSuperblockHeight() {
+        return Utils.readUint32(payload, SUPERBLOCK_HEIGHT_PAYLOAD_OFFSET);
+    }
+
+    /**
+     * @return Number of Doge blocks in the superblock, or 0 if it was pruned.
+     */
+    public int getDogeBlockHashCount() {
+        return (int) Utils.readUint32(payload, NUMBER_OF_HASHES_PAYLOAD_OFFSET);
+    }
+
+    /**
+     * Reads a single Doge block hash.
+     * @param index Position of the block within the superblock.
+     * @return Doge block hash.
+     */
+    public Sha256Hash getDogeBlockHash(int index) {
+        return Sha256Hash.wrapReversed(SuperblockUtils.readBytes(
+                payload, dogeBlockHashOffset(index), HASH_BYTES_LENGTH));
+    }
+
+    /**
+     * Copies a single Doge block hash into an array in big-endian format, i.e. the same as Sha256Hash.getBytes().
+     * @param index Position of the block within the superblock.
+     * @param destination Array where the hash is written. Modified by the function.
+     * @param offset Position of destination where the hash starts.
+     */
+    public void copyDogeBlockHash(int index, byte[] destination, int offset) {
+        int source = dogeBlockHashOffset(index);
+        for (int i = 0; i < HASH_BYTES_LENGTH; i++)
+            destination[offset + i] = payload[source + HASH_BYTES_LENGTH - 1 - i];
+    }
+
+    /**
+     * Checks whether the superblock's Doge block hashes are missing from storage.
+     * Pruned superblocks keep every other field, so their IDs and chain links are unaffected.
+     * Genesis superblocks configured from their header fields have no hashes either, so this alone
+     * doesn't tell them apart from pruned ones; compare the height with the store's pruned height for that.
+     * @return True if the superblock has no Doge block hashes, i.e. it was pruned or it's such a genesis.
+     */
+    public boolean isPruned() {
+        return getDogeBlockHashCount() == 0;
+    }
+
+    /**
+     * Builds the storage form of this superblock without its Doge block hashes.
+     * @return View of a new payload with the same fields and no Doge block hashes.
+     */
+    public SuperblockView pruned() {
+        byte[] prunedPayload = Arrays.copyOf(payload, DOGE_BLOCK_HASHES_PAYLOAD_OFFSET);
+        Utils.uint32ToByteArrayLE(0, prunedPayload, NUMBER_OF_HASHES_PAYLOAD_OFFSET);
+        return new SuperblockView(superblockId, prunedPayload);
+    }
+
+    /**
+     * Returns the serialized superblock this view is backed by, without copying it.
+     * @return Superblock in storage format.
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Fully deserializes the superblock.
+     * @return Superblock with all its fields decoded.
+     */
+    public Superblock toSuperblock() {
+        return new Superblock(payload, superblockId);
+    }
+
+    private int dogeBlockHashOffset(int index) {
+        if (index < 0 || index >= getDogeBlockHashCount())
+            throw new IndexOutOfBoundsException("Doge block index " + index);
+        return DOGE_BLOCK_HASHES_PAYLOAD_OFFSET + index * HASH_BYTES_LENGTH;
+    }
+
+    @Override
+    public String toString() {
+        return "SuperblockView{" +
+                "superblockId=" + superblockId +
+                ", parentId=" + getParentId() +
+                ", superblockHeight=" + getSuperblockHeight() +
+                '}';
+    }
+}
@@ -164,6 +164,15 @@ public class EthWrapper implements SuperblockConstantProvider {
         verifySuperblockCost = claimManager.verifySuperblockCost().send();
     }
 
+    /**
+     * Constructor for subclasses that don't talk to an Ethereum node, e.g. test doubles.
+     * No contracts are loaded, so every method that calls them has to be overridden.
+     * @param config Agent configuration.
+     */
+    protected EthWrapper(SystemProperties config) {
+        this.config = config;
+    }
+
     /**
      * Returns the deployed contract address from a Truffle JSON file.
      *
@@ -1345,12 +1354,14 @@ public class EthWrapper implements SuperblockConstantProvider {
      * @param block Dogecoin block that the transaction is in.
      * @param superblock Superblock that the Dogecoin block is in.
      * @param txPMT Partial Merkle tree for constructing an SPV proof of the transaction's existence in the Doge block.
-     * @param superblockPMT Partial Merkle tree for constructing an SPV proof
-     *                      of the Doge block's existence in the superblock.
+     * @param dogeBlockLeafIndex Position of the Doge block in the superblock.
+     * @param dogeBlockSiblingsSha256Hash Merkle siblings of the Doge block, from the leaves up, for constructing
+     *                                    an SPV proof of its existence in the superblock.
      * @throws Exception
      */
     public void sendRelayTx(org.bitcoinj.core.Transaction tx, byte[] operatorPublicKeyHash, AltcoinBlock block,
-                            Superblock superblock, PartialMerkleTree txPMT, PartialMerkleTree superblockPMT)
+                            Superblock superblock, PartialMerkleTree txPMT, int dogeBlockLeafIndex,
+                            List<Sha256Hash> dogeBlockSiblingsSha256Hash)
             throws Exception {
         byte[] dogeBlockHeader = Arrays.copyOfRange(block.bitcoinSerialize(), 0, 80);
         Sha256Hash dogeBlockHash = block.getHash();
@@ -1368,8 +1379,7 @@ public class EthWrapper implements SuperblockConstantProvider {
         BigInteger dogeBlockHashBigInteger = dogeBlockHash.toBigInteger();
 
         // Construct SPV proof for block
-        BigInteger dogeBlockIndex = BigInteger.valueOf(superblockPMT.getTransactionIndex(dogeBlockHash));
-        List<Sha256Hash> dogeBlockSiblingsSha256Hash = superblockPMT.getTransactionPath(dogeBlockHash);
+        BigInteger dogeBlockIndex = BigInteger.valueOf(dogeBlockLeafIndex);
         List<BigInteger> dogeBlockSiblingsBigInteger = new ArrayList<>();
         for (Sha256Hash sha256Hash : dogeBlockSiblingsSha256Hash)
             dogeBlockSiblingsBigInteger.add(sha256Hash.toBigInteger());
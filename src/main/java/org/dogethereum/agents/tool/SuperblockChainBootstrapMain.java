@@ -0,0 +1,238 @@
+package org.dogethereum.agents.tool;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.dogethereum.agents.constants.AgentConstants;
+import org.dogethereum.agents.constants.SystemProperties;
+import org.dogethereum.agents.core.dogecoin.*;
+import org.dogethereum.agents.core.eth.EthWrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Tool to build the superblock chain offline, straight from the Doge block store in the data directory.
+ * It picks up where the stored superblock chain ends, so it can be run on a fresh node
+ * or on one that fell far behind. The agent must be stopped while it runs.
+ * Doge blocks are grouped into superblock time windows by a DogeBlockWindowIterator, the same way SuperblockChain
+ * does it, and the windows are built into superblocks in batches. The Merkle roots of a batch are calculated
+ * in parallel on a fork-join pool and the batch is then written on a separate thread, both while the Doge blocks
+ * of the next batch are read.
+ * Reading waits for the previous write before handing over a new batch, so at most two batches are held at once.
+ * Superblock duration and delay are read from the contracts through EthWrapper, like the agent does,
+ * so the Ethereum node set up in the configuration must be reachable.
+ * Usage: SuperblockChainBootstrapMain
+ */
+@Slf4j(topic = "SuperblockChainBootstrapMain")
+public class SuperblockChainBootstrapMain {
+
+    // Superblocks whose Merkle roots are calculated together and which are then written in a single batch.
+    private static final int SUPERBLOCKS_PER_BATCH = 1000;
+    // Same as SuperblockChain's storing window.
+    private static final int SUPERBLOCK_STORING_WINDOW = 60;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 0) {
+            System.err.println("Usage: SuperblockChainBootstrapMain");
+            System.exit(1);
+        }
+
+        SystemProperties config = SystemProperties.CONFIG;
+        log.info("Running SuperblockChainBootstrapMain version: {}-{}",
+                config.projectVersion(), config.projectVersionModifier());
+        AgentConstants agentConstants = config.getAgentConstants();
+        NetworkParameters params = agentConstants.getDogeParams();
+        Context context = new Context(params);
+        File directory = new File(config.dataDirectory());
+
+        // Same locations as DogecoinWrapper and SuperblockChain.
+        AltcoinLevelDBBlockStore dogeStore = new AltcoinLevelDBBlockStore(context,
+                new File(directory.getAbsolutePath() + "/DogecoinWrapper/chain"));
+        try {
+            SuperblockLevelDBBlockStore superblockStore = new SuperblockLevelDBBlockStore(context,
+                    new File(directory.getAbsolutePath() + "/SuperblockChain"), params);
+            try {
+                long start = System.currentTimeMillis();
+                long stored = bootstrap(dogeStore, superblockStore, new EthWrapper(), SUPERBLOCKS_PER_BATCH);
+                log.info("Stored {} superblocks in {} s. Chain head: {}", stored,
+                        (System.currentTimeMillis() - start) / 1000, superblockStore.getChainHead());
+            } finally {
+                superblockStore.close();
+            }
+        } finally {
+            dogeStore.close();
+        }
+    }
+
+    /**
+     * Builds and stores superblocks for all the Doge blocks after the last block of the superblock chain head,
+     * with the same superblock duration and storing stop time as SuperblockChain.
+     * @param dogeStore Doge block store.
+     * @param superblockStore Superblock store.
+     * @param provider Source of the superblock duration and delay, i.e. the contracts.
+     * @param superblocksPerBatch Number of superblocks written at once.
+     * @return Number of superblocks stored.
+     * @throws Exception if superblock duration or delay cannot be retrieved from SuperblockConstantProvider.
+     */
+    static long bootstrap(AltcoinLevelDBBlockStore dogeStore, SuperblockStore superblockStore,
+                          SuperblockConstantProvider provider, int superblocksPerBatch) throws Exception {
+        int superblockDuration = provider.getSuperblockDuration().intValue();
+        int superblockDelay = provider.getSuperblockDelay().intValue();
+        log.info("Superblock duration: {} s, delay: {} s", superblockDuration, superblockDelay);
+        return bootstrap(dogeStore, superblockStore, superblockDuration,
+                SuperblockUtils.getNSecondsAgo(superblockDelay - SUPERBLOCK_STORING_WINDOW), superblocksPerBatch);
+    }
+
+    /**
+     * Builds and stores superblocks for all the Doge blocks after the last block of the superblock chain head
+     * whose time window ends before a given time.
+     * @param dogeStore Doge block store.
+     * @param superblockStore Superblock store.
+     * @param superblockDuration Length of a superblock time window, in seconds.
+     * @param storingStopTime Time before which a superblock's time window must end for it to be built.
+     * @param superblocksPerBatch Number of superblocks written at once.
+     * @return Number of superblocks stored.
+     * @throws Exception
+     */
+    static long bootstrap(AltcoinLevelDBBlockStore dogeStore, SuperblockStore superblockStore,
+                          int superblockDuration, Date storingStopTime, int superblocksPerBatch)
+            throws Exception {
+        Superblock chainHead = superblockStore.getChainHead();
+        StoredBlock lastSuperblockedBlock = dogeStore.get(chainHead.getLastDogeBlockHash());
+        if (lastSuperblockedBlock == null)
+            throw new Exception("Last block of superblock chain head " + chainHead.getSuperblockId() +
+                    " is not in the Doge block store.");
+        StoredBlock dogeChainHead = dogeStore.getChainHead();
+        if (dogeChainHead.getHeight() <= lastSuperblockedBlock.getHeight())
+            return 0;
+        log.info("Superblocking Doge blocks {} to {}", lastSuperblockedBlock.getHeight() + 1,
+                dogeChainHead.getHeight());
+
+        Iterator<DogeBlockWindow> windows = new DogeBlockWindowIterator(
+                new ForwardDogeBlockIterator(dogeStore, lastSuperblockedBlock, dogeChainHead),
+                lastSuperblockedBlock, superblockDuration, storingStopTime);
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        SuperblockWriter writer = new SuperblockWriter(superblockStore, chainHead);
+        // Superblock IDs depend on the previous ones, so batches are written one at a time, in order.
+        ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+
+        try {
+            List<DogeBlockWindow> batch = new ArrayList<>();
+            Future<?> pendingWrite = null;
+            while (windows.hasNext()) {
+                batch.add(windows.next());
+                if (batch.size() >= superblocksPerBatch || !windows.hasNext()) {
+                    pendingWrite = submitWrite(writeExecutor, pendingWrite, writer, batch,
+                            computeMerkleRoots(pool, batch));
+                    batch = new ArrayList<>();
+                }
+            }
+            awaitWrite(pendingWrite);
+        } finally {
+            writeExecutor.shutdownNow();
+        }
+        return writer.stored;
+    }
+
+    /**
+     * Hands a batch of superblocks over to the writing thread once the previous batch is written.
+     * @param writeExecutor Single thread executor where batches are written.
+     * @param previousWrite Write of the previous batch, null if there was none.
+     * @param writer Superblock writer.
+     * @param windows Superblock time windows.
+     * @param merkleRoots Task calculating the Merkle roots of the windows.
+     * @return Write of the batch.
+     * @throws Exception if the previous batch couldn't be written.
+     */
+    private static Future<?> submitWrite(ExecutorService writeExecutor, Future<?> previousWrite,
+                                         SuperblockWriter writer, List<DogeBlockWindow> windows,
+                                         ForkJoinTask<List<Sha256Hash>> merkleRoots) throws Exception {
+        awaitWrite(previousWrite);
+        return writeExecutor.submit(() -> {
+            writer.write(windows, merkleRoots.join());
+            return null;
+        });
+    }
+
+    /**
+     * Waits for a batch to be written.
+     * @param write Write of the batch, or null.
+     * @throws Exception if the batch couldn't be written.
+     */
+    private static void awaitWrite(Future<?> write) throws Exception {
+        if (write == null)
+            return;
+        try {
+            write.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Calculates the Merkle roots of a batch of superblocks in parallel.
+     * @param pool Pool where the roots are calculated.
+     * @param windows Superblock time windows.
+     * @return Task returning the Merkle roots, in the same order as the windows.
+     */
+    private static ForkJoinTask<List<Sha256Hash>> computeMerkleRoots(ForkJoinPool pool,
+                                                                    List<DogeBlockWindow> windows) {
+        return pool.submit(() -> windows.parallelStream()
+                .map(window -> SuperblockMerkle.computeRoot(window.getDogeBlockHashes()))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Chains superblocks one batch at a time and writes them.
+     * Superblock IDs include the parent ID, so this part can't be parallelised.
+     */
+    private static class SuperblockWriter {
+        private final SuperblockStore superblockStore;
+        private Keccak256Hash parentId;
+        private long superblockHeight;
+        private BigInteger bestChainWork;
+        private long stored = 0;
+
+        SuperblockWriter(SuperblockStore superblockStore, Superblock chainHead) throws IOException {
+            this.superblockStore = superblockStore;
+            this.parentId = chainHead.getSuperblockId();
+            this.superblockHeight = chainHead.getSuperblockHeight() + 1;
+            this.bestChainWork = chainHead.getChainWork();
+        }
+
+        void write(List<DogeBlockWindow> windows, List<Sha256Hash> merkleRoots) throws Exception {
+            List<Superblock> superblocks = new ArrayList<>(windows.size());
+            Superblock newChainHead = null;
+            for (int i = 0; i < windows.size(); i++) {
+                Superblock superblock = windows.get(i).toSuperblock(merkleRoots.get(i), parentId, superblockHeight);
+                superblocks.add(superblock);
+                if (superblock.getChainWork().compareTo(bestChainWork) > 0) {
+                    newChainHead = superblock;
+                    bestChainWork = superblock.getChainWork();
+                }
+                parentId = superblock.getSuperblockId();
+                superblockHeight++;
+            }
+            superblockStore.putAll(superblocks, newChainHead);
+            stored += superblocks.size();
+            log.info("Stored superblocks up to height {}", superblockHeight - 1);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.dogethereum.agents.tool;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.dogethereum.agents.constants.AgentConstants;
+import org.dogethereum.agents.constants.SystemProperties;
+import org.dogethereum.agents.core.dogecoin.SuperblockLevelDBBlockStore;
+import org.dogethereum.agents.core.dogecoin.SuperblockSnapshot;
+
+import java.io.*;
+
+/**
+ * Tool to copy the superblock chain between agent nodes.
+ * export writes the main chain of the data directory's superblock store to a snapshot file,
+ * optionally only up to a given height; import loads a snapshot into a data directory whose superblock store
+ * has nothing but the genesis superblock. The agent must be stopped while it runs.
+ * Usage: SuperblockSnapshotMain export snapshotFile [height]
+ *        SuperblockSnapshotMain import snapshotFile
+ */
+@Slf4j(topic = "SuperblockSnapshotMain")
+public class SuperblockSnapshotMain {
+
+    public static void main(String[] args) throws Exception {
+        boolean export = args.length >= 2 && args.length <= 3 && args[0].equals("export");
+        boolean importing = args.length == 2 && args[0].equals("import");
+        if (!export && !importing) {
+            System.err.println("Usage: SuperblockSnapshotMain export snapshotFile [height]");
+            System.err.println("       SuperblockSnapshotMain import snapshotFile");
+            System.exit(1);
+        }
+        File snapshotFile = new File(args[1]);
+
+        SystemProperties config = SystemProperties.CONFIG;
+        log.info("Running SuperblockSnapshotMain version: {}-{}",
+                config.projectVersion(), config.projectVersionModifier());
+        AgentConstants agentConstants = config.getAgentConstants();
+        NetworkParameters params = agentConstants.getDogeParams();
+        Context context = new Context(params);
+        File directory = new File(config.dataDirectory());
+
+        // Same location as SuperblockChain.
+        SuperblockLevelDBBlockStore superblockStore = new SuperblockLevelDBBlockStore(context,
+                new File(directory.getAbsolutePath() + "/SuperblockChain"), params);
+        try {
+            long start = System.currentTimeMillis();
+            if (export) {
+                long height = args.length == 3 ? Long.parseLong(args[2]) : Long.MAX_VALUE;
+                try (OutputStream out = new FileOutputStream(snapshotFile)) {
+                    height = SuperblockSnapshot.export(superblockStore, params.getId(), height, out);
+                }
+                log.info("Exported superblocks up to height {} to {} in {} s", height, snapshotFile,
+                        (System.currentTimeMillis() - start) / 1000);
+            } else {
+                long height = SuperblockSnapshot.importInto(superblockStore, params.getId(), snapshotFile);
+                log.info("Imported superblocks up to height {} from {} in {} s. Chain head: {}", height,
+                        snapshotFile, (System.currentTimeMillis() - start) / 1000, superblockStore.getChainHead());
+            }
+        } finally {
+            superblockStore.close();
+        }
+    }
+}
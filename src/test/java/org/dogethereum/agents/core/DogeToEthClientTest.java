@@ -0,0 +1,166 @@
+package org.dogethereum.agents.core;
+
+import static org.junit.Assert.*;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.dogethereum.agents.constants.SystemProperties;
+import org.dogethereum.agents.core.dogecoin.*;
+import org.dogethereum.agents.core.eth.EthWrapper;
+import org.dogethereum.agents.util.OperatorPublicKeyHandler;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.*;
+
+public class DogeToEthClientTest {
+    NetworkParameters params;
+    Map<Sha256Hash, StoredBlock> dogeBlocks;
+    Map<Sha256Hash, List<Proof>> proofs;
+    Set<Transaction> walletTxs;
+    RecordingEthWrapper ethWrapper;
+    InMemorySuperblockStore store;
+    DogeToEthClient client;
+
+    @Before
+    public void init() throws Exception {
+        params = UnitTestParams.get();
+        dogeBlocks = new HashMap<>();
+        proofs = new HashMap<>();
+        // Keeps the order txs are stored in, so that the pruned one is tried first.
+        walletTxs = new LinkedHashSet<>();
+        ethWrapper = new RecordingEthWrapper();
+        store = new InMemorySuperblockStore(new Superblock(Sha256Hash.ZERO_HASH, Collections.emptyList(),
+                BigInteger.ZERO, 0, 0, 0, Keccak256Hash.wrap(new byte[32]), 0));
+        DogecoinWrapper dogecoinWrapper = new DogecoinWrapper(null) {
+            @Override
+            public StoredBlock getBlock(Sha256Hash hash) {
+                return dogeBlocks.get(hash);
+            }
+
+            @Override
+            public boolean isInMainChain(StoredBlock block) {
+                return true;
+            }
+
+            @Override
+            public Set<Transaction> getTransactions(int minconfirmations, boolean includeLock,
+                                                    boolean includeUnlock) {
+                return walletTxs;
+            }
+
+            @Override
+            public Map<Sha256Hash, List<Proof>> getTransactionsToSendToEth() {
+                return proofs;
+            }
+        };
+        SuperblockChain superblockChain = new SuperblockChain(dogecoinWrapper, ethWrapper, params, store);
+        OperatorPublicKeyHandler operatorPublicKeyHandler = new OperatorPublicKeyHandler() {
+            @Override
+            public Script getOutputScript() {
+                return null;
+            }
+
+            @Override
+            public Address getAddress() {
+                return null;
+            }
+
+            @Override
+            public byte[] getPublicKeyHash() {
+                return new byte[20];
+            }
+
+            @Override
+            public long getAddressCreationTime() {
+                return 0;
+            }
+        };
+        client = new DogeToEthClient(ethWrapper, operatorPublicKeyHandler, dogecoinWrapper, superblockChain);
+    }
+
+    // Stores a Doge block with a single wallet tx, in a superblock of its own on top of the chain head.
+    private Transaction storeWalletTx(int height) throws Exception {
+        Block header = params.getGenesisBlock().cloneAsHeader();
+        header.setTime(header.getTimeSeconds() + 60 * height);
+        StoredBlock dogeBlock = new StoredBlock(new AltcoinBlock(params, header.bitcoinSerialize()),
+                BigInteger.valueOf(height), height);
+        Sha256Hash dogeBlockHash = dogeBlock.getHeader().getHash();
+        dogeBlocks.put(dogeBlockHash, dogeBlock);
+
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Coin.valueOf(height), new ECKey());
+        tx.addBlockAppearance(dogeBlockHash, 0);
+        proofs.put(tx.getHash(), Collections.singletonList(new Proof(dogeBlockHash, null)));
+        walletTxs.add(tx);
+
+        Superblock parent = store.getChainHead();
+        Superblock superblock = new Superblock(params, Collections.singletonList(dogeBlockHash),
+                dogeBlock.getChainWork(), dogeBlock.getHeader().getTimeSeconds(), parent.getLastDogeBlockTime(),
+                dogeBlock.getHeader().getDifficultyTarget(), parent.getSuperblockId(),
+                parent.getSuperblockHeight() + 1);
+        store.putAll(Collections.singletonList(superblock), superblock);
+        return tx;
+    }
+
+    @Test
+    public void testSkipsTxsInPrunedSuperblocks() throws Exception {
+        Transaction prunedTx = storeWalletTx(1);
+        Transaction secondTx = storeWalletTx(2);
+        Transaction thirdTx = storeWalletTx(3);
+        store.pruneBelow(2);
+
+        client.updateBridgeTransactions();
+
+        assertFalse(ethWrapper.relayedTxs.contains(prunedTx.getHash()));
+        assertEquals(Arrays.asList(secondTx.getHash(), thirdTx.getHash()), ethWrapper.relayedTxs);
+    }
+
+    // Approves every superblock, and records relayed txs instead of sending them.
+    private static class RecordingEthWrapper extends EthWrapper {
+        final List<Sha256Hash> relayedTxs = new ArrayList<>();
+
+        RecordingEthWrapper() {
+            super(SystemProperties.CONFIG);
+        }
+
+        @Override
+        public BigInteger getSuperblockDuration() {
+            return BigInteger.valueOf(3600);
+        }
+
+        @Override
+        public BigInteger getSuperblockDelay() {
+            return BigInteger.valueOf(3600);
+        }
+
+        @Override
+        public BigInteger getSuperblockTimeout() {
+            return BigInteger.valueOf(300);
+        }
+
+        @Override
+        public boolean arePendingTransactionsForRelayTxsAddress() {
+            return false;
+        }
+
+        @Override
+        public boolean wasDogeTxProcessed(Sha256Hash txHash) {
+            return relayedTxs.contains(txHash);
+        }
+
+        @Override
+        public boolean isSuperblockApproved(Keccak256Hash superblockId) {
+            return true;
+        }
+
+        @Override
+        public void sendRelayTx(Transaction tx, byte[] operatorPublicKeyHash, AltcoinBlock block,
+                                Superblock superblock, PartialMerkleTree txPMT, int dogeBlockLeafIndex,
+                                List<Sha256Hash> dogeBlockSiblingsSha256Hash) {
+            relayedTxs.add(tx.getHash());
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import static org.junit.Assert.*;
+
+import org.bitcoinj.core.*;
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.Options;
+import org.libdohj.params.DogecoinMainNetParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Block storage with Dogecoin params, for merged mined headers and stores written before AuxPoW was split
+ * from the block records.
+ */
+public class AltcoinLevelDBBlockStoreAuxPoWTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Dogecoin block version with the chain ID and the AuxPoW flag set.
+    private static final long AUXPOW_BLOCK_VERSION = 0x00620102;
+
+    NetworkParameters params;
+    Context context;
+    File directory;
+    AltcoinLevelDBBlockStore store;
+
+    @Before
+    public void init() throws Exception {
+        params = DogecoinMainNetParams.get();
+        context = new Context(params);
+        directory = folder.newFolder();
+        store = new AltcoinLevelDBBlockStore(context, directory);
+    }
+
+    @After
+    public void close() throws Exception {
+        store.close();
+    }
+
+    /**
+     * Builds the serialised header of a merged mined block: 80-byte header, AuxPoW
+     * (parent coinbase, parent block hash, coinbase and chain Merkle branches, parent header)
+     * and the zero transaction count.
+     */
+    private byte[] auxPowHeader(int nonce) throws Exception {
+        byte[] genesisHeader = Arrays.copyOf(params.getGenesisBlock().cloneAsHeader().bitcoinSerialize(),
+                Block.HEADER_SIZE);
+        byte[] header = genesisHeader.clone();
+        Utils.uint32ToByteArrayLE(AUXPOW_BLOCK_VERSION, header, 0);
+        Utils.uint32ToByteArrayLE(nonce, header, 76);
+
+        Transaction coinbase = new Transaction(params);
+        coinbase.addInput(new TransactionInput(params, coinbase, new byte[]{0x03, 0x01, 0x02, 0x03}));
+        coinbase.addOutput(Coin.COIN, new ECKey());
+        byte[] parentHeader = genesisHeader.clone();
+        Utils.uint32ToByteArrayLE(nonce + 1, parentHeader, 76);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header);
+        out.write(coinbase.bitcoinSerialize());
+        out.write(Sha256Hash.twiceOf(parentHeader).getReversedBytes());
+        // Empty coinbase branch and chain branch, each with its side mask.
+        out.write(new byte[]{0, 0, 0, 0, 0});
+        out.write(new byte[]{0, 0, 0, 0, 0});
+        out.write(parentHeader);
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    private StoredBlock storedBlock(byte[] headerBytes, int height) {
+        Block block = params.getDefaultSerializer().makeBlock(headerBytes);
+        return new StoredBlock(block, BigInteger.valueOf(height), height);
+    }
+
+    @Test
+    public void testAuxPoWRoundTrip() throws Exception {
+        byte[] headerBytes = auxPowHeader(1);
+        StoredBlock block = storedBlock(headerBytes, 1);
+        assertNotNull(((AltcoinBlock) block.getHeader()).getAuxPoW());
+        store.put(block);
+        store.close();
+        store = new AltcoinLevelDBBlockStore(context, directory);
+
+        Sha256Hash hash = block.getHeader().getHash();
+        StoredBlock full = store.getWithAuxPoW(hash);
+        assertEquals(block, full);
+        assertNotNull(((AltcoinBlock) full.getHeader()).getAuxPoW());
+        assertArrayEquals(headerBytes, full.getHeader().bitcoinSerialize());
+
+        StoredBlock header = store.get(hash);
+        assertEquals(block, header);
+        assertNull(((AltcoinBlock) header.getHeader()).getAuxPoW());
+        assertEquals(block.getHeader().getTimeSeconds(), header.getHeader().getTimeSeconds());
+        assertEquals(block.getHeader().getDifficultyTarget(), header.getHeader().getDifficultyTarget());
+        assertEquals(block.getHeader().getPrevBlockHash(), header.getHeader().getPrevBlockHash());
+    }
+
+    @Test
+    public void testSplitsMergedRecordsOfOlderStores() throws Exception {
+        byte[] auxPowBytes = auxPowHeader(2);
+        StoredBlock auxPowBlock = storedBlock(auxPowBytes, 2);
+        byte[] plainBytes = Arrays.copyOf(params.getGenesisBlock().cloneAsHeader().bitcoinSerialize(),
+                Block.HEADER_SIZE + 1);
+        Utils.uint32ToByteArrayLE(7, plainBytes, 76);
+        StoredBlock plainBlock = storedBlock(plainBytes, 3);
+        store.close();
+
+        // Write both blocks the way the store did before records were split.
+        DB db = JniDBFactory.factory.open(directory, new Options());
+        try {
+            db.put(auxPowBlock.getHeader().getHash().getBytes(), mergedRecord(auxPowBlock, auxPowBytes));
+            db.put(plainBlock.getHeader().getHash().getBytes(), mergedRecord(plainBlock, plainBytes));
+            db.delete("blockformatversion".getBytes());
+        } finally {
+            db.close();
+        }
+
+        store = new AltcoinLevelDBBlockStore(context, directory);
+        assertArrayEquals(auxPowBytes,
+                store.getWithAuxPoW(auxPowBlock.getHeader().getHash()).getHeader().bitcoinSerialize());
+        assertArrayEquals(plainBytes,
+                store.getWithAuxPoW(plainBlock.getHeader().getHash()).getHeader().bitcoinSerialize());
+        assertEquals(auxPowBlock, store.get(auxPowBlock.getHeader().getHash()));
+        assertEquals(plainBlock, store.get(plainBlock.getHeader().getHash()));
+        store.close();
+
+        db = JniDBFactory.factory.open(directory, new Options());
+        try {
+            assertEquals(AltcoinLevelDBBlockStore.RECORD_SIZE,
+                    db.get(auxPowBlock.getHeader().getHash().getBytes()).length);
+            assertEquals(AltcoinLevelDBBlockStore.RECORD_SIZE,
+                    db.get(plainBlock.getHeader().getHash().getBytes()).length);
+            assertNotNull(db.get(auxPowKey(auxPowBlock)));
+            // Headers without AuxPoW don't get an AuxPoW entry.
+            assertNull(db.get(auxPowKey(plainBlock)));
+            assertNotNull(db.get("blockformatversion".getBytes()));
+        } finally {
+            db.close();
+        }
+        store = new AltcoinLevelDBBlockStore(context, directory);
+    }
+
+    private static byte[] mergedRecord(StoredBlock block, byte[] headerBytes) {
+        byte[] chainWork = block.getChainWork().toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.CHAIN_WORK_BYTES + 4 + headerBytes.length);
+        buffer.position(StoredBlock.CHAIN_WORK_BYTES - chainWork.length);
+        buffer.put(chainWork).putInt(block.getHeight()).put(headerBytes);
+        return buffer.array();
+    }
+
+    private static byte[] auxPowKey(StoredBlock block) {
+        return ByteBuffer.allocate(1 + Sha256Hash.LENGTH).put((byte) 'a')
+                .put(block.getHeader().getHash().getBytes()).array();
+    }
+}
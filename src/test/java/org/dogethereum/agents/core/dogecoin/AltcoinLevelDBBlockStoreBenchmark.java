@@ -0,0 +1,82 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.dogethereum.agents.util.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares writing headers to AltcoinLevelDBBlockStore one put and chain head update at a time,
+ * as bitcoinj does during the initial sync, with coalescing them in batches of coalescedBlocks blocks.
+ * Each invocation syncs HEADER_COUNT headers into a fresh store.
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *           -Dexec.mainClass=org.dogethereum.agents.core.dogecoin.AltcoinLevelDBBlockStoreBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class AltcoinLevelDBBlockStoreBenchmark {
+    private static final int HEADER_COUNT = 5000;
+
+    // 0 means no coalescing.
+    @Param({"0", "500", "2000"})
+    int coalescedBlocks;
+
+    Context context;
+    List<StoredBlock> headers;
+    File directory;
+    AltcoinLevelDBBlockStore store;
+
+    @Setup(Level.Trial)
+    public void setupHeaders() {
+        NetworkParameters params = UnitTestParams.get();
+        context = new Context(params);
+        headers = new ArrayList<>(HEADER_COUNT);
+        Address coinbaseTo = new ECKey().toAddress(params);
+        Block genesis = params.getGenesisBlock().cloneAsHeader();
+        StoredBlock parent = new StoredBlock(genesis, genesis.getWork(), 0);
+        for (int i = 0; i < HEADER_COUNT; i++) {
+            parent = parent.build(parent.getHeader().createNextBlock(coinbaseTo).cloneAsHeader());
+            headers.add(parent);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void openStore() throws Exception {
+        directory = Files.createTempDirectory("AltcoinLevelDBBlockStoreBenchmark").toFile();
+        store = new AltcoinLevelDBBlockStore(context, directory);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteStore() throws Exception {
+        store.close();
+        FileUtils.recursiveDelete(directory.getAbsolutePath());
+    }
+
+    @Benchmark
+    public StoredBlock sync() throws Exception {
+        if (coalescedBlocks > 0)
+            store.startWriteCoalescing(coalescedBlocks, Long.MAX_VALUE);
+        for (StoredBlock header : headers) {
+            store.put(header);
+            store.setChainHead(header);
+        }
+        store.stopWriteCoalescing();
+        return store.getChainHead();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(AltcoinLevelDBBlockStoreBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,294 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import static org.junit.Assert.*;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.dogethereum.agents.util.AgentUtils;
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBFactory;
+import org.iq80.leveldb.Options;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class AltcoinLevelDBBlockStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    NetworkParameters params;
+    Context context;
+    File directory;
+    AltcoinLevelDBBlockStore store;
+
+    @Before
+    public void init() throws Exception {
+        params = UnitTestParams.get();
+        context = new Context(params);
+        directory = folder.newFolder();
+        store = new AltcoinLevelDBBlockStore(context, directory);
+    }
+
+    @After
+    public void close() throws Exception {
+        store.close();
+    }
+
+    // Stores a run of blocks on top of parent, moving the chain head along, and returns them.
+    private List<StoredBlock> extend(StoredBlock parent, int length) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<>();
+        Address coinbaseTo = new ECKey().toAddress(params);
+        for (int i = 0; i < length; i++) {
+            Block header = parent.getHeader().createNextBlock(coinbaseTo).cloneAsHeader();
+            parent = parent.build(header);
+            store.put(parent);
+            store.setChainHead(parent);
+            blocks.add(parent);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void testHeightIndexFollowsChainHead() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> chain = extend(genesis, 10);
+
+        assertEquals(genesis.getHeader().getHash(), store.getMainChainBlockHash(0));
+        for (StoredBlock block : chain) {
+            assertEquals(block.getHeader().getHash(), store.getMainChainBlockHash(block.getHeight()));
+            assertTrue(store.isInMainChain(block));
+            assertEquals(block, AgentUtils.getStoredBlockAtHeight(store, block.getHeight()));
+        }
+        assertNull(store.getMainChainBlockHash(11));
+        assertNull(AgentUtils.getStoredBlockAtHeight(store, 11));
+    }
+
+    @Test
+    public void testHeightIndexFollowsReorg() throws Exception {
+        List<StoredBlock> chain = extend(store.getChainHead(), 10);
+        List<StoredBlock> fork = extend(chain.get(4), 7);
+
+        for (int i = 0; i < 5; i++)
+            assertTrue(store.isInMainChain(chain.get(i)));
+        for (int i = 5; i < 10; i++)
+            assertFalse(store.isInMainChain(chain.get(i)));
+        for (StoredBlock block : fork)
+            assertEquals(block, store.getMainChainBlock(block.getHeight()));
+
+        // Roll back to a shorter chain: entries above the head are dropped.
+        store.setChainHead(chain.get(9));
+        for (StoredBlock block : chain)
+            assertTrue(store.isInMainChain(block));
+        assertNull(store.getMainChainBlockHash(11));
+        for (StoredBlock block : fork)
+            assertFalse(store.isInMainChain(block));
+    }
+
+    @Test
+    public void testHeightIndexSurvivesReopening() throws Exception {
+        List<StoredBlock> chain = extend(store.getChainHead(), 10);
+        store.close();
+        store = new AltcoinLevelDBBlockStore(context, directory);
+
+        for (StoredBlock block : chain)
+            assertTrue(store.isInMainChain(block));
+        assertNull(store.getMainChainBlockHash(11));
+    }
+
+    @Test
+    public void testCacheServesRecentBlocks() throws Exception {
+        List<StoredBlock> chain = extend(store.getChainHead(), 10);
+        store.close();
+        store = new AltcoinLevelDBBlockStore(context, directory);
+
+        StoredBlock block = chain.get(5);
+        StoredBlock read = store.get(block.getHeader().getHash());
+        assertEquals(block, read);
+        assertSame(read, store.get(block.getHeader().getHash()));
+        assertEquals(1, store.getCacheStats().hitCount());
+    }
+
+    @Test
+    public void testDisabledCache() throws Exception {
+        store.close();
+        store = new AltcoinLevelDBBlockStore(context, directory, JniDBFactory.factory, 0);
+        List<StoredBlock> chain = extend(store.getChainHead(), 3);
+
+        for (StoredBlock block : chain)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        assertEquals(0, store.getCacheStats().hitCount());
+    }
+
+    @Test
+    public void testHeaderOnlyAndFullReads() throws Exception {
+        List<StoredBlock> chain = extend(store.getChainHead(), 3);
+        store.close();
+        store = new AltcoinLevelDBBlockStore(context, directory);
+
+        for (StoredBlock block : chain) {
+            Sha256Hash hash = block.getHeader().getHash();
+            StoredBlock header = store.get(hash);
+            assertEquals(block, header);
+            assertEquals(block.getHeader().getPrevBlockHash(), header.getHeader().getPrevBlockHash());
+            StoredBlock full = store.getWithAuxPoW(hash);
+            assertEquals(block, full);
+            // Headers without AuxPoW come back with the zero transaction count, as in the original store.
+            byte[] fullBytes = full.getHeader().bitcoinSerialize();
+            assertArrayEquals(Arrays.copyOf(block.getHeader().bitcoinSerialize(), Block.HEADER_SIZE + 1), fullBytes);
+        }
+        assertNull(store.getWithAuxPoW(Sha256Hash.ZERO_HASH));
+    }
+
+    @Test
+    public void testReadsWhileWriting() throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    while (writing.get()) {
+                        StoredBlock chainHead = store.getChainHead();
+                        for (int height = chainHead.getHeight(); height >= 0; height--) {
+                            StoredBlock block = store.getMainChainBlock(height);
+                            assertNotNull(block);
+                            assertEquals(height, block.getHeight());
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        List<StoredBlock> chain = extend(store.getChainHead(), 200);
+        writing.set(false);
+        for (Thread reader : readers)
+            reader.join();
+
+        assertNull(failure.get());
+        assertEquals(chain.get(199), store.getChainHead());
+    }
+
+    @Test
+    public void testWriteCoalescing() throws Exception {
+        store.startWriteCoalescing(4, Long.MAX_VALUE);
+        List<StoredBlock> chain = extend(store.getChainHead(), 10);
+        List<StoredBlock> fork = extend(chain.get(7), 3);
+
+        // Pending blocks are readable before they're committed.
+        assertEquals(fork.get(2), store.getChainHead());
+        for (StoredBlock block : fork)
+            assertTrue(store.isInMainChain(block));
+        assertFalse(store.isInMainChain(chain.get(9)));
+        assertNull(store.getMainChainBlockHash(12));
+
+        // Closing commits whatever is still pending.
+        store.close();
+        store = new AltcoinLevelDBBlockStore(context, directory);
+        assertEquals(fork.get(2), store.getChainHead());
+        for (int i = 0; i < 8; i++)
+            assertTrue(store.isInMainChain(chain.get(i)));
+        for (StoredBlock block : fork)
+            assertEquals(block, store.getMainChainBlock(block.getHeight()));
+        assertEquals(chain.get(9), store.get(chain.get(9).getHeader().getHash()));
+    }
+
+    @Test
+    public void testWriteCoalescingCommitsOldWritesWithoutNewOnes() throws Exception {
+        AtomicInteger writes = new AtomicInteger();
+        store.close();
+        store = new AltcoinLevelDBBlockStore(context, directory, new WriteCountingDBFactory(writes),
+                AltcoinLevelDBBlockStore.DEFAULT_CACHE_MAX_BYTES);
+        store.startWriteCoalescing(1000, 200);
+        int writesBefore = writes.get();
+        StoredBlock block = extend(store.getChainHead(), 1).get(0);
+        assertEquals(writesBefore, writes.get());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writes.get() == writesBefore && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(writesBefore + 1, writes.get());
+        assertEquals(block, store.getChainHead());
+    }
+
+    @Test
+    public void testForwardIteratorReadsMainChainByHeight() throws Exception {
+        List<StoredBlock> chain = extend(store.getChainHead(), 10);
+        ForwardDogeBlockIterator blocks = new ForwardDogeBlockIterator(store, chain.get(2), chain.get(9));
+        for (int i = 3; i < 10; i++)
+            assertEquals(chain.get(i), blocks.next());
+        assertFalse(blocks.hasNext());
+    }
+
+    @Test
+    public void testForwardIteratorDetectsReorg() throws Exception {
+        List<StoredBlock> chain = extend(store.getChainHead(), 10);
+        ForwardDogeBlockIterator blocks = new ForwardDogeBlockIterator(store, chain.get(2), chain.get(9));
+        assertEquals(chain.get(3), blocks.next());
+        // The block already returned at height 4 leaves the main chain.
+        extend(chain.get(2), 8);
+        try {
+            blocks.next();
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("changed"));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testForwardIteratorRejectsSideBranch() throws Exception {
+        List<StoredBlock> chain = extend(store.getChainHead(), 10);
+        extend(chain.get(4), 6);
+        new ForwardDogeBlockIterator(store, chain.get(2), chain.get(9));
+    }
+
+    // Opens LevelDB databases that count their batch writes.
+    private static class WriteCountingDBFactory implements DBFactory {
+        private final AtomicInteger writes;
+
+        WriteCountingDBFactory(AtomicInteger writes) {
+            this.writes = writes;
+        }
+
+        @Override
+        public DB open(File path, Options options) throws IOException {
+            DB db = JniDBFactory.factory.open(path, options);
+            return (DB) Proxy.newProxyInstance(DB.class.getClassLoader(), new Class<?>[]{DB.class},
+                    (proxy, method, args) -> {
+                        if (method.getName().equals("write"))
+                            writes.incrementAndGet();
+                        try {
+                            return method.invoke(db, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+        }
+
+        @Override
+        public void destroy(File path, Options options) throws IOException {
+            JniDBFactory.factory.destroy(path, options);
+        }
+
+        @Override
+        public void repair(File path, Options options) throws IOException {
+            JniDBFactory.factory.repair(path, options);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package org.dogethereum.agents.core.dogecoin;
+
+public class InMemorySuperblockStoreTest extends SuperblockStoreTest {
+    @Override
+    protected SuperblockStore createStore() throws Exception {
+        return new InMemorySuperblockStore(superblock(Keccak256Hash.of(new byte[32]), 0, 0, 0));
+    }
+}
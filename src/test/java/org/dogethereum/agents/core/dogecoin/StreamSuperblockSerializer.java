@@ -0,0 +1,56 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * The stream based superblock serialisation that SuperblockEncoder replaced,
+ * kept as a reference for tests and benchmarks.
+ */
+class StreamSuperblockSerializer {
+
+    static byte[] serializeLE(Superblock superblock) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeLE(superblock, stream);
+        return stream.toByteArray();
+    }
+
+    static byte[] serializeBE(Superblock superblock) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(superblock.getMerkleRoot().getBytes());
+        stream.write(SuperblockUtils.toBytes32(superblock.getChainWork()));
+        stream.write(SuperblockUtils.toBytes32(superblock.getLastDogeBlockTime()));
+        stream.write(SuperblockUtils.toBytes32(superblock.getPreviousToLastDogeBlockTime()));
+        stream.write(superblock.getLastDogeBlockHash().getBytes());
+        stream.write(SuperblockUtils.toUint32(superblock.getLastDogeBlockBits()));
+        stream.write(superblock.getParentId().getBytes());
+        return stream.toByteArray();
+    }
+
+    static byte[] serializeForStorage(Superblock superblock) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeLE(superblock, stream);
+        Utils.uint32ToByteStreamLE(superblock.getSuperblockHeight(), stream);
+        Utils.uint32ToByteStreamLE(superblock.getDogeBlockHashes().size(), stream);
+        for (Sha256Hash hash : superblock.getDogeBlockHashes())
+            stream.write(hash.getReversedBytes());
+        return stream.toByteArray();
+    }
+
+    static Keccak256Hash calculateId(Superblock superblock) throws IOException {
+        return Keccak256Hash.of(serializeBE(superblock));
+    }
+
+    private static void writeLE(Superblock superblock, ByteArrayOutputStream stream) throws IOException {
+        stream.write(superblock.getMerkleRoot().getReversedBytes());
+        stream.write(Utils.reverseBytes(SuperblockUtils.toBytes32(superblock.getChainWork())));
+        stream.write(Utils.reverseBytes(SuperblockUtils.toBytes32(superblock.getLastDogeBlockTime())));
+        stream.write(Utils.reverseBytes(SuperblockUtils.toBytes32(superblock.getPreviousToLastDogeBlockTime())));
+        stream.write(superblock.getLastDogeBlockHash().getReversedBytes());
+        stream.write(Utils.reverseBytes(SuperblockUtils.toUint32(superblock.getLastDogeBlockBits())));
+        stream.write(superblock.getParentId().getReversedBytes());
+    }
+}
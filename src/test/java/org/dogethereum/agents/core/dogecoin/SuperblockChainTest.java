@@ -2,21 +2,113 @@ package org.dogethereum.agents.core.dogecoin;
 
 import static org.junit.Assert.*;
 
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStoreException;
+import org.junit.After;
 import org.junit.Before;
-import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.IOException;
+import java.math.BigInteger;
 import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.*;
 
 public class SuperblockChainTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int SUPERBLOCK_DURATION = 600;
+    // Start of a superblock time window well in the past, so that every window after it is closed.
+    private static final long FIRST_BLOCK_TIME = SuperblockUtils.getSuperblockStartTime(
+            new Date(1500000000000L), SUPERBLOCK_DURATION).getTime() / 1000;
+
     SuperblockChain sb;
     SimpleDateFormat format;
 
+    NetworkParameters params;
+    AltcoinLevelDBBlockStore dogeStore;
+    Superblock genesis;
+    InMemorySuperblockStore store;
+    SuperblockChain chain;
+
     @Before
     public void init() throws Exception {
         sb = new SuperblockChain();
         format = new SimpleDateFormat("HH:mm:ss.SSS");
+
+        params = UnitTestParams.get();
+        dogeStore = new AltcoinLevelDBBlockStore(new Context(params), folder.newFolder());
+        genesis = genesisSuperblock(dogeStore.getChainHead());
+        store = new InMemorySuperblockStore(genesis);
+        chain = superblockChain(store, SUPERBLOCK_DURATION);
+    }
+
+    @After
+    public void close() throws Exception {
+        dogeStore.close();
+    }
+
+    private Superblock genesisSuperblock(StoredBlock dogeBlock) {
+        return new Superblock(params, Collections.singletonList(dogeBlock.getHeader().getHash()),
+                dogeBlock.getChainWork(), dogeBlock.getHeader().getTimeSeconds(), 0,
+                dogeBlock.getHeader().getDifficultyTarget(), Keccak256Hash.wrap(new byte[32]), 0);
+    }
+
+    private SuperblockChain superblockChain(SuperblockStore superblockStore, int superblockDelay) throws Exception {
+        DogecoinWrapper dogecoinWrapper = new DogecoinWrapper(null) {
+            @Override
+            public StoredBlock getBlock(Sha256Hash hash) throws BlockStoreException {
+                return dogeStore.get(hash);
+            }
+
+            @Override
+            public AltcoinLevelDBBlockStore getBlockStore() {
+                return dogeStore;
+            }
+        };
+        return new SuperblockChain(dogecoinWrapper, new FixedConstantProvider(superblockDelay), params,
+                superblockStore);
+    }
+
+    // Stores blocks a minute apart on top of parent, moving the Doge chain head along, so that there are
+    // ten per superblock. Blocks at the same height get the same time, whatever branch they're in.
+    private List<StoredBlock> extend(StoredBlock parent, int length) throws Exception {
+        return extend(parent, length, FIRST_BLOCK_TIME + 60 * parent.getHeight(), 60);
+    }
+
+    private List<StoredBlock> extend(StoredBlock parent, int length, long firstBlockTime, int spacing)
+            throws Exception {
+        List<StoredBlock> blocks = new ArrayList<>();
+        Address coinbaseTo = new ECKey().toAddress(params);
+        for (int i = 0; i < length; i++) {
+            Block header = parent.getHeader().createNextBlock(coinbaseTo).cloneAsHeader();
+            header.setTime(firstBlockTime + (long) spacing * i);
+            parent = parent.build(header);
+            dogeStore.put(parent);
+            dogeStore.setChainHead(parent);
+            blocks.add(parent);
+        }
+        return blocks;
+    }
+
+    // Superblock delay that makes the chain stop building superblocks at a given time.
+    private static int delayForStoringStopTime(long storingStopTime) {
+        return (int) (System.currentTimeMillis() / 1000 - storingStopTime) + 60;
+    }
+
+    private static Sha256Hash hash(StoredBlock block) {
+        return block.getHeader().getHash();
+    }
+
+    private SuperblockTip tip(Keccak256Hash superblockId) throws Exception {
+        for (SuperblockTip tip : store.getTips()) {
+            if (tip.getSuperblockId().equals(superblockId))
+                return tip;
+        }
+        return null;
     }
 
     @Test
@@ -91,4 +183,251 @@ public class SuperblockChainTest {
         assertEquals(expectedEndTime, endTime);
     }
 
+    @Test
+    public void testStoreSuperblocksWritesInBatches() throws Exception {
+        RecordingSuperblockStore recordingStore = new RecordingSuperblockStore(genesis);
+        chain = superblockChain(recordingStore, SUPERBLOCK_DURATION);
+
+        // Exactly one batch, so nothing is left for a final write.
+        extend(dogeStore.getChainHead(), 10 * SuperblockChain.SUPERBLOCK_WRITE_BATCH_SIZE);
+        chain.storeSuperblocks(dogeStore.getChainHead());
+        assertEquals(Collections.singletonList(SuperblockChain.SUPERBLOCK_WRITE_BATCH_SIZE),
+                recordingStore.writeSizes);
+
+        // One more batch and two superblocks, the last of them ending halfway through its time window.
+        extend(dogeStore.getChainHead(), 10 * SuperblockChain.SUPERBLOCK_WRITE_BATCH_SIZE + 15);
+        chain.storeSuperblocks(dogeStore.getChainHead());
+        assertEquals(Arrays.asList(SuperblockChain.SUPERBLOCK_WRITE_BATCH_SIZE,
+                SuperblockChain.SUPERBLOCK_WRITE_BATCH_SIZE, 2), recordingStore.writeSizes);
+
+        // Every write moves the chain head to its last superblock, so it never points to unwritten ones.
+        long batchSize = SuperblockChain.SUPERBLOCK_WRITE_BATCH_SIZE;
+        assertEquals(Arrays.asList(batchSize, 2 * batchSize, 2 * batchSize + 2), recordingStore.chainHeadHeights);
+        assertEquals(hash(dogeStore.getChainHead()), chain.getChainHead().getLastDogeBlockHash());
+        assertEquals(5, chain.getChainHead().getDogeBlockHashes().size());
+    }
+
+    @Test
+    public void testStoreSuperblocksLeavesOpenTimeWindows() throws Exception {
+        List<StoredBlock> dogeChain = extend(dogeStore.getChainHead(), 50);
+
+        // The storing stop time falls halfway through the fourth time window, so only three superblocks are built.
+        chain = superblockChain(store, delayForStoringStopTime(FIRST_BLOCK_TIME + 3 * SUPERBLOCK_DURATION + 300));
+        chain.storeSuperblocks(dogeStore.getChainHead());
+        assertEquals(3, chain.getChainHeight());
+        assertEquals(hash(dogeChain.get(29)), chain.getChainHead().getLastDogeBlockHash());
+
+        // Once the windows are closed, their blocks are built into superblocks.
+        chain = superblockChain(store, delayForStoringStopTime(FIRST_BLOCK_TIME + 5 * SUPERBLOCK_DURATION + 300));
+        chain.storeSuperblocks(dogeStore.getChainHead());
+        assertEquals(5, chain.getChainHeight());
+        Superblock fourth = chain.getSuperblockByHeight(4);
+        assertEquals(hash(dogeChain.get(30)), fourth.getDogeBlockHashes().get(0));
+        assertEquals(10, fourth.getDogeBlockHashes().size());
+        assertEquals(hash(dogeChain.get(49)), chain.getChainHead().getLastDogeBlockHash());
+    }
+
+    @Test
+    public void testStoreSuperblocksResumesFromStoredChainHead() throws Exception {
+        List<StoredBlock> dogeChain = extend(dogeStore.getChainHead(), 30);
+        chain.storeSuperblocks(dogeStore.getChainHead());
+        extend(dogeChain.get(29), 20);
+
+        // A new chain only has the store's chain head to tell where it left off.
+        SuperblockChain resumedChain = superblockChain(store, SUPERBLOCK_DURATION);
+        resumedChain.storeSuperblocks(dogeStore.getChainHead());
+        InMemorySuperblockStore expectedStore = new InMemorySuperblockStore(genesis);
+        superblockChain(expectedStore, SUPERBLOCK_DURATION).storeSuperblocks(dogeStore.getChainHead());
+
+        assertEquals(5, store.getChainHeight());
+        for (long height = 0; height <= 5; height++)
+            assertEquals(expectedStore.getMainChainSuperblockId(height), store.getMainChainSuperblockId(height));
+
+        // A chain head that ends halfway through a time window is followed by the rest of the window's blocks.
+        List<StoredBlock> moreBlocks = extend(dogeStore.getChainHead(), 5);
+        resumedChain.storeSuperblocks(dogeStore.getChainHead());
+        List<StoredBlock> restOfWindow = extend(moreBlocks.get(4), 10);
+        superblockChain(store, SUPERBLOCK_DURATION).storeSuperblocks(dogeStore.getChainHead());
+        assertEquals(8, store.getChainHeight());
+        Superblock sixth = store.getByHeight(6);
+        Superblock seventh = store.getByHeight(7);
+        assertEquals(hash(moreBlocks.get(4)), sixth.getLastDogeBlockHash());
+        assertEquals(sixth.getSuperblockId(), seventh.getParentId());
+        assertEquals(hash(restOfWindow.get(0)), seventh.getDogeBlockHashes().get(0));
+        assertEquals(5, seventh.getDogeBlockHashes().size());
+    }
+
+    @Test
+    public void testDogeReorgWithinSuperblockMovesHeadToParent() throws Exception {
+        // Doge blocks 1 to 35 make superblocks 1 to 4, the last of them with blocks 31 to 35 only.
+        List<StoredBlock> dogeChain = extend(dogeStore.getChainHead(), 35);
+        chain.storeSuperblocks(dogeStore.getChainHead());
+        assertEquals(4, chain.getChainHeight());
+        Superblock oldSecond = chain.getSuperblockByHeight(2);
+        Superblock oldThird = chain.getSuperblockByHeight(3);
+        Superblock oldFourth = chain.getChainHead();
+
+        // Blocks 26 to 35 are reorganised away, so the third superblock leaves the main chain too.
+        List<StoredBlock> fork = extend(dogeChain.get(24), 15);
+        chain.storeSuperblocks(dogeStore.getChainHead());
+
+        assertEquals(4, chain.getChainHeight());
+        assertEquals(oldSecond.getSuperblockId(), chain.getSuperblockByHeight(2).getSuperblockId());
+        Superblock newThird = chain.getSuperblockByHeight(3);
+        assertNotEquals(oldThird.getSuperblockId(), newThird.getSuperblockId());
+        assertEquals(oldSecond.getSuperblockId(), newThird.getParentId());
+        assertEquals(hash(dogeChain.get(20)), newThird.getDogeBlockHashes().get(0));
+        assertEquals(hash(dogeChain.get(24)), newThird.getDogeBlockHashes().get(4));
+        assertEquals(hash(fork.get(0)), newThird.getDogeBlockHashes().get(5));
+        assertEquals(hash(fork.get(14)), chain.getChainHead().getLastDogeBlockHash());
+        assertNull(chain.getMainChainDogeBlockLocation(hash(dogeChain.get(25))));
+
+        // The abandoned branch stays stored as a tip.
+        SuperblockTip oldTip = tip(oldFourth.getSuperblockId());
+        assertFalse(oldTip.isMainChain());
+        assertEquals(oldSecond.getSuperblockId(), oldTip.getForkPointId());
+    }
+
+    @Test
+    public void testDogeReorgAtSuperblockBoundaryKeepsSuperblock() throws Exception {
+        List<StoredBlock> dogeChain = extend(dogeStore.getChainHead(), 35);
+        chain.storeSuperblocks(dogeStore.getChainHead());
+        Superblock oldThird = chain.getSuperblockByHeight(3);
+        Superblock oldFourth = chain.getChainHead();
+
+        // Block 30 is the last one of the third superblock, so only the fourth one is affected.
+        List<StoredBlock> fork = extend(dogeChain.get(29), 10);
+        chain.storeSuperblocks(dogeStore.getChainHead());
+
+        assertEquals(4, chain.getChainHeight());
+        assertEquals(oldThird.getSuperblockId(), chain.getSuperblockByHeight(3).getSuperblockId());
+        Superblock newFourth = chain.getChainHead();
+        assertNotEquals(oldFourth.getSuperblockId(), newFourth.getSuperblockId());
+        assertEquals(oldThird.getSuperblockId(), newFourth.getParentId());
+        assertEquals(hash(fork.get(0)), newFourth.getDogeBlockHashes().get(0));
+        assertEquals(10, newFourth.getDogeBlockHashes().size());
+        assertEquals(oldThird.getSuperblockId(), tip(oldFourth.getSuperblockId()).getForkPointId());
+    }
+
+    @Test
+    public void testDogeReorgPicksUpStoredBranch() throws Exception {
+        List<StoredBlock> dogeChain = extend(dogeStore.getChainHead(), 35);
+        chain.storeSuperblocks(dogeStore.getChainHead());
+        Superblock oldThird = chain.getSuperblockByHeight(3);
+        Superblock oldFourth = chain.getChainHead();
+        extend(dogeChain.get(24), 15);
+        chain.storeSuperblocks(dogeStore.getChainHead());
+        Superblock forkFourth = chain.getChainHead();
+        assertNotEquals(oldFourth.getSuperblockId(), forkFourth.getSuperblockId());
+
+        // The original Doge branch comes back with more work than the fork, and its superblocks are still valid.
+        List<StoredBlock> comeback = extend(dogeChain.get(34), 10);
+        chain.storeSuperblocks(dogeStore.getChainHead());
+
+        assertEquals(6, chain.getChainHeight());
+        assertEquals(oldThird.getSuperblockId(), chain.getSuperblockByHeight(3).getSuperblockId());
+        assertEquals(oldFourth.getSuperblockId(), chain.getSuperblockByHeight(4).getSuperblockId());
+        Superblock fifth = chain.getSuperblockByHeight(5);
+        assertEquals(oldFourth.getSuperblockId(), fifth.getParentId());
+        assertEquals(hash(comeback.get(0)), fifth.getDogeBlockHashes().get(0));
+        assertEquals(hash(comeback.get(9)), chain.getChainHead().getLastDogeBlockHash());
+        assertFalse(tip(forkFourth.getSuperblockId()).isMainChain());
+    }
+
+    @Test
+    public void testDogeReorgBelowGenesisSuperblockFails() throws Exception {
+        // The superblock chain starts at Doge block 5.
+        List<StoredBlock> dogeChain = extend(dogeStore.getChainHead(), 5);
+        store = new InMemorySuperblockStore(genesisSuperblock(dogeChain.get(4)));
+        chain = superblockChain(store, SUPERBLOCK_DURATION);
+        extend(dogeChain.get(4), 15);
+        chain.storeSuperblocks(dogeStore.getChainHead());
+        Keccak256Hash chainHeadId = store.getChainHeadId();
+
+        extend(dogeChain.get(2), 25);
+        try {
+            chain.storeSuperblocks(dogeStore.getChainHead());
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("before the superblock chain"));
+        }
+        assertEquals(chainHeadId, store.getChainHeadId());
+    }
+
+    @Test
+    public void testDogeReorgBelowPrunedHeightFails() throws Exception {
+        List<StoredBlock> dogeChain = extend(dogeStore.getChainHead(), 35);
+        chain.storeSuperblocks(dogeStore.getChainHead());
+        Keccak256Hash chainHeadId = store.getChainHeadId();
+        store.pruneBelow(3);
+
+        // Block 15 is in the second superblock, whose Doge block hashes were dropped.
+        extend(dogeChain.get(14), 25);
+        try {
+            chain.storeSuperblocks(dogeStore.getChainHead());
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("below the pruned height 3"));
+        }
+        assertEquals(chainHeadId, store.getChainHeadId());
+    }
+
+    @Test
+    public void testDogeReorgAbovePrunedHeight() throws Exception {
+        List<StoredBlock> dogeChain = extend(dogeStore.getChainHead(), 35);
+        chain.storeSuperblocks(dogeStore.getChainHead());
+        Superblock oldSecond = chain.getSuperblockByHeight(2);
+        store.pruneBelow(3);
+
+        // The third superblock is whole, so the head can still move to its pruned parent.
+        List<StoredBlock> fork = extend(dogeChain.get(24), 15);
+        chain.storeSuperblocks(dogeStore.getChainHead());
+
+        assertEquals(4, chain.getChainHeight());
+        assertEquals(oldSecond.getSuperblockId(), chain.getSuperblockByHeight(3).getParentId());
+        assertEquals(hash(fork.get(14)), chain.getChainHead().getLastDogeBlockHash());
+    }
+
+    // Records the writes made to the store.
+    private static class RecordingSuperblockStore extends InMemorySuperblockStore {
+        final List<Integer> writeSizes = new ArrayList<>();
+        final List<Long> chainHeadHeights = new ArrayList<>();
+
+        RecordingSuperblockStore(Superblock genesisSuperblock) throws IOException {
+            super(genesisSuperblock);
+        }
+
+        @Override
+        public synchronized void putAll(List<Superblock> superblocks, Superblock newChainHead) throws IOException {
+            super.putAll(superblocks, newChainHead);
+            // Null while the genesis superblock is stored by the constructor.
+            if (writeSizes != null && !superblocks.isEmpty()) {
+                writeSizes.add(superblocks.size());
+                chainHeadHeights.add(newChainHead != null ? newChainHead.getSuperblockHeight() : null);
+            }
+        }
+    }
+
+    private static class FixedConstantProvider implements SuperblockConstantProvider {
+        private final int superblockDelay;
+
+        FixedConstantProvider(int superblockDelay) {
+            this.superblockDelay = superblockDelay;
+        }
+
+        @Override
+        public BigInteger getSuperblockDuration() {
+            return BigInteger.valueOf(SUPERBLOCK_DURATION);
+        }
+
+        @Override
+        public BigInteger getSuperblockDelay() {
+            return BigInteger.valueOf(superblockDelay);
+        }
+
+        @Override
+        public BigInteger getSuperblockTimeout() {
+            return BigInteger.valueOf(300);
+        }
+    }
 }
@@ -0,0 +1,79 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares SuperblockEncoder with the stream based serialisation it replaced,
+ * for superblock ID calculation and for the storage form of a superblock with 60 Doge blocks.
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *           -Dexec.mainClass=org.dogethereum.agents.core.dogecoin.SuperblockEncoderBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SuperblockEncoderBenchmark {
+    Superblock superblock;
+    ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (int i = 0; i < 60; i++)
+            hashes.add(Sha256Hash.of(ByteBuffer.allocate(4).putInt(i).array()));
+        superblock = new Superblock(SuperblockMerkle.computeRoot(hashes), hashes,
+                new BigInteger("2ab4c3d5e6f70000ff", 16), 1522097077L, 1522097017L, 0x1a01cd2dL,
+                Keccak256Hash.of(new byte[]{1, 2, 3}), 123456);
+        buffer = ByteBuffer.allocate(SuperblockEncoder.getStorageLength(superblock));
+    }
+
+    @Benchmark
+    public byte[] streamBigEndian() throws IOException {
+        return StreamSuperblockSerializer.serializeBE(superblock);
+    }
+
+    @Benchmark
+    public ByteBuffer encoderBigEndian() {
+        buffer.clear();
+        SuperblockEncoder.encodeBE(superblock, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public Keccak256Hash streamId() throws IOException {
+        return StreamSuperblockSerializer.calculateId(superblock);
+    }
+
+    @Benchmark
+    public Keccak256Hash encoderId() {
+        return SuperblockEncoder.calculateId(superblock);
+    }
+
+    @Benchmark
+    public byte[] streamStorage() throws IOException {
+        return StreamSuperblockSerializer.serializeForStorage(superblock);
+    }
+
+    @Benchmark
+    public ByteBuffer encoderStorage() {
+        buffer.clear();
+        SuperblockEncoder.encodeForStorage(superblock, buffer);
+        return buffer;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(SuperblockEncoderBenchmark.class.getSimpleName()).build()).run();
+    }
+}
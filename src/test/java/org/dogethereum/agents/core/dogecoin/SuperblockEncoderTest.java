@@ -0,0 +1,73 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import static org.junit.Assert.*;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SuperblockEncoderTest {
+
+    private Superblock superblock(int numberOfHashes, BigInteger chainWork) {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (int i = 0; i < numberOfHashes; i++)
+            hashes.add(Sha256Hash.of(ByteBuffer.allocate(4).putInt(i).array()));
+        return new Superblock(SuperblockMerkle.computeRoot(hashes), hashes, chainWork,
+                1522097077L, 1522097017L, 0x1a01cd2dL,
+                Keccak256Hash.of(new byte[]{1, 2, 3}), 123456);
+    }
+
+    private List<Superblock> superblocks() {
+        List<Superblock> superblocks = new ArrayList<>();
+        superblocks.add(superblock(1, BigInteger.ZERO));
+        superblocks.add(superblock(60, new BigInteger("2ab4c3d5e6f70000ff", 16)));
+        superblocks.add(superblock(61, BigInteger.ONE.shiftLeft(200).add(BigInteger.valueOf(0x80))));
+        superblocks.add(superblock(3000, BigInteger.ONE.shiftLeft(250).subtract(BigInteger.ONE)));
+        return superblocks;
+    }
+
+    @Test
+    public void testBigEndianMatchesStreams() throws Exception {
+        for (Superblock superblock : superblocks()) {
+            ByteBuffer buffer = ByteBuffer.allocate(SuperblockEncoder.HEADER_LENGTH);
+            SuperblockEncoder.encodeBE(superblock, buffer);
+            assertArrayEquals(StreamSuperblockSerializer.serializeBE(superblock), buffer.array());
+            assertEquals(StreamSuperblockSerializer.calculateId(superblock), SuperblockEncoder.calculateId(superblock));
+        }
+    }
+
+    @Test
+    public void testLittleEndianMatchesStreams() throws Exception {
+        for (Superblock superblock : superblocks()) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            superblock.serializeLE(stream);
+            assertArrayEquals(StreamSuperblockSerializer.serializeLE(superblock), stream.toByteArray());
+        }
+    }
+
+    @Test
+    public void testStorageMatchesStreams() throws Exception {
+        for (Superblock superblock : superblocks()) {
+            byte[] payload = SuperblockEncoder.encodeForStorage(superblock);
+            assertArrayEquals(StreamSuperblockSerializer.serializeForStorage(superblock), payload);
+            assertEquals(superblock.getDogeBlockHashes(), new Superblock(payload).getDogeBlockHashes());
+        }
+    }
+
+    @Test
+    public void testWritesAtBufferPosition() throws Exception {
+        Superblock superblock = superblock(5, BigInteger.TEN);
+        ByteBuffer buffer = ByteBuffer.allocate(7 + SuperblockEncoder.getStorageLength(superblock));
+        buffer.position(7);
+        SuperblockEncoder.encodeForStorage(superblock, buffer);
+        assertEquals(buffer.capacity(), buffer.position());
+        byte[] payload = new byte[buffer.capacity() - 7];
+        System.arraycopy(buffer.array(), 7, payload, 0, payload.length);
+        assertArrayEquals(StreamSuperblockSerializer.serializeForStorage(superblock), payload);
+    }
+}
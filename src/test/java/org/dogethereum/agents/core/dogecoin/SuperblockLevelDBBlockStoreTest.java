@@ -0,0 +1,274 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import static org.junit.Assert.*;
+
+import com.google.common.cache.CacheStats;
+import org.bitcoinj.core.Context;
+import org.dogethereum.agents.constants.SystemProperties;
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBFactory;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.Options;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SuperblockLevelDBBlockStoreTest extends SuperblockStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Context context;
+    File directory;
+
+    @BeforeClass
+    public static void setUpConstants() {
+        SystemProperties.CONFIG.overrideParams("constants", "integration");
+    }
+
+    @Override
+    protected SuperblockStore createStore() throws Exception {
+        params = SystemProperties.CONFIG.getAgentConstants().getDogeParams();
+        context = new Context(params);
+        directory = folder.newFolder();
+        return new SuperblockLevelDBBlockStore(context, directory, params);
+    }
+
+    @Override
+    protected SuperblockStore reopen(SuperblockStore store) throws Exception {
+        store.close();
+        return new SuperblockLevelDBBlockStore(context, directory, params);
+    }
+
+    @Test
+    public void testCacheServesRecentSuperblocks() throws Exception {
+        Superblock first = superblock(genesis.getSuperblockId(), 1, 10, 10);
+        Superblock second = superblock(first.getSuperblockId(), 2, 20, 20);
+        store.putAll(Arrays.asList(first, second), second);
+        reopen();
+
+        CacheStats before = store.getCacheStats();
+        Superblock read = store.get(first.getSuperblockId());
+        assertEquals(first.getSuperblockId(), read.getSuperblockId());
+        assertEquals(first.getDogeBlockHashes(), read.getDogeBlockHashes());
+        assertSame(read, store.get(first.getSuperblockId()));
+        assertSame(read, store.getByHeight(1));
+        CacheStats stats = store.getCacheStats().minus(before);
+        assertEquals(1, stats.missCount());
+        assertEquals(2, stats.hitCount());
+    }
+
+    @Test
+    public void testCacheFollowsWrites() throws Exception {
+        Superblock first = superblock(genesis.getSuperblockId(), 1, 10, 10);
+        Superblock second = superblock(first.getSuperblockId(), 2, 20, 20);
+        store.putAll(Arrays.asList(first, second), second);
+        Superblock cachedFirst = store.get(first.getSuperblockId());
+
+        // Moving the chain head doesn't change any superblock, so cached ones are still served,
+        // but lookups by height follow the new main chain.
+        Superblock fork = superblock(genesis.getSuperblockId(), 1, 30, 30);
+        store.putAll(Collections.singletonList(fork), fork);
+        assertEquals(fork.getSuperblockId(), store.getByHeight(1).getSuperblockId());
+        assertEquals(fork.getSuperblockId(), store.getChainHead().getSuperblockId());
+        assertSame(cachedFirst, store.get(first.getSuperblockId()));
+        store.setChainHead(second);
+        assertSame(cachedFirst, store.getByHeight(1));
+        assertEquals(second.getSuperblockId(), store.getChainHead().getSuperblockId());
+
+        // Pruning replaces the cached copies of the superblocks it rewrites.
+        store.pruneBelow(2);
+        assertTrue(store.get(first.getSuperblockId()).getDogeBlockHashes().isEmpty());
+        assertTrue(store.getByHeight(1).getDogeBlockHashes().isEmpty());
+        assertEquals(2, store.getChainHead().getDogeBlockHashes().size());
+
+        // Storing a superblock again drops it from the cache, and the store's copy is still the pruned one.
+        store.putAll(Arrays.asList(first, second), second);
+        assertTrue(store.get(first.getSuperblockId()).getDogeBlockHashes().isEmpty());
+    }
+
+    @Test
+    public void testReadsWhileWriting() throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    while (writing.get()) {
+                        // Walk down from the chain head, both through the height index and the parent IDs.
+                        Superblock current = store.getChainHead();
+                        for (long height = current.getSuperblockHeight(); height > 0; height--) {
+                            assertEquals(current.getSuperblockId(), store.getMainChainSuperblockId(height));
+                            Superblock parent = store.get(current.getParentId());
+                            assertNotNull(parent);
+                            assertEquals(height - 1, parent.getSuperblockHeight());
+                            current = parent;
+                        }
+                        assertEquals(genesis.getSuperblockId(), current.getSuperblockId());
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        Keccak256Hash parentId = genesis.getSuperblockId();
+        for (int height = 1; height <= 200; height += 5) {
+            List<Superblock> batch = new ArrayList<>();
+            for (int i = height; i < height + 5; i++) {
+                Superblock superblock = superblock(parentId, i, 10 * i, 2 * i);
+                batch.add(superblock);
+                parentId = superblock.getSuperblockId();
+            }
+            store.putAll(batch, batch.get(batch.size() - 1));
+            // Pruning rewrites superblocks the readers are walking through.
+            store.pruneBelow(Math.max(0, height - 20));
+        }
+        writing.set(false);
+        for (Thread reader : readers)
+            reader.join();
+
+        assertNull(failure.get());
+        assertEquals(200, store.getChainHeight());
+        assertEquals(parentId, store.getChainHeadId());
+    }
+
+    @Test
+    public void testUnknownIdsDontReachDatabase() throws Exception {
+        store.close();
+        CountingDBFactory dbFactory = new CountingDBFactory();
+        store = new SuperblockLevelDBBlockStore(context, directory, dbFactory, params);
+        Superblock first = superblock(genesis.getSuperblockId(), 1, 10, 10);
+        store.putAll(Collections.singletonList(first), first);
+
+        int gets = dbFactory.gets.get();
+        for (int i = 0; i < 100; i++)
+            assertNull(store.get(Keccak256Hash.of(new byte[]{(byte) i})));
+        // The filter is nearly empty, so a false positive is practically impossible.
+        assertEquals(gets, dbFactory.gets.get());
+
+        assertEquals(first.getSuperblockId(), store.get(first.getSuperblockId()).getSuperblockId());
+        assertEquals(gets + 1, dbFactory.gets.get());
+    }
+
+    @Test
+    public void testKnownIdsFilterIsRebuiltWhenFull() throws Exception {
+        store.close();
+        CountingDBFactory dbFactory = new CountingDBFactory();
+        store = new SuperblockLevelDBBlockStore(context, directory, dbFactory, params, 4);
+        List<Superblock> superblocks = new ArrayList<>();
+        Keccak256Hash parentId = genesis.getSuperblockId();
+        for (int i = 1; i <= 20; i++) {
+            Superblock superblock = superblock(parentId, i, 10 * i, 2 * i);
+            superblocks.add(superblock);
+            parentId = superblock.getSuperblockId();
+        }
+
+        // Along with the genesis superblock, the first batch leaves room for one more ID.
+        store.putAll(superblocks.subList(0, 2), superblocks.get(1));
+        // The filter is full after the first superblock of this batch, so it's rebuilt from the committed
+        // superblocks in the middle of the batch. The uncommitted one must make it into the new filter.
+        store.putAll(superblocks.subList(2, 6), superblocks.get(5));
+        for (int i = 6; i < superblocks.size(); i += 2)
+            store.putAll(superblocks.subList(i, i + 2), superblocks.get(i + 1));
+
+        for (int i = 0; i < 2; i++) {
+            for (Superblock superblock : superblocks)
+                assertEquals(superblock.getSuperblockId(), store.get(superblock.getSuperblockId()).getSuperblockId());
+            int gets = dbFactory.gets.get();
+            for (int j = 0; j < 100; j++)
+                assertNull(store.get(Keccak256Hash.of(new byte[]{(byte) j})));
+            // Roughly one in a hundred unknown IDs gets past a full filter.
+            assertTrue(dbFactory.gets.get() - gets < 10);
+
+            // Reopening builds the filter from the stored superblocks.
+            store.close();
+            store = new SuperblockLevelDBBlockStore(context, directory, dbFactory, params, 4);
+        }
+    }
+
+    @Test
+    public void testRebuildsIndexesOfOlderVersions() throws Exception {
+        Superblock first = superblock(genesis.getSuperblockId(), 1, 10, 10);
+        Superblock second = superblock(first.getSuperblockId(), 2, 20, 20);
+        Superblock fork = superblock(first.getSuperblockId(), 2, 15, 30);
+        store.putAll(Arrays.asList(first, second, fork), second);
+        Set<Keccak256Hash> tipIds = tipsById(store.getTips()).keySet();
+        store.close();
+
+        // Leave only the superblocks and the chain head, as a store without indexes would have.
+        DB db = JniDBFactory.factory.open(directory, new Options());
+        try {
+            DBIterator it = db.iterator();
+            try {
+                for (it.seekToFirst(); it.hasNext(); ) {
+                    byte[] key = it.next().getKey();
+                    if (key.length != Keccak256Hash.LENGTH && !Arrays.equals(key, "chainhead".getBytes()))
+                        db.delete(key);
+                }
+            } finally {
+                it.close();
+            }
+            db.put("indexversion".getBytes(), SuperblockUtils.intToBytes(1));
+        } finally {
+            db.close();
+        }
+
+        store = new SuperblockLevelDBBlockStore(context, directory, params);
+        assertEquals(second.getSuperblockId(), store.getChainHeadId());
+        assertEquals(genesis.getSuperblockId(), store.getMainChainSuperblockId(0));
+        assertEquals(first.getSuperblockId(), store.getMainChainSuperblockId(1));
+        assertEquals(second.getSuperblockId(), store.getMainChainSuperblockId(2));
+        assertEquals(second.getSuperblockId(), store.getMainChainChildId(first.getSuperblockId()));
+        assertEquals(new HashSet<>(Arrays.asList(second.getSuperblockId(), fork.getSuperblockId())),
+                new HashSet<>(store.getChildrenIds(first.getSuperblockId())));
+        assertEquals(tipIds, tipsById(store.getTips()).keySet());
+        DogeBlockLocation location = store.getMainChainDogeBlockLocation(second.getDogeBlockHashes().get(1));
+        assertEquals(second.getSuperblockId(), location.getSuperblockId());
+        assertEquals(1, location.getLeafIndex());
+        assertEquals(fork.getSuperblockId(), store.get(fork.getSuperblockId()).getSuperblockId());
+    }
+
+    // Opens JNI LevelDB databases, counting the reads of single keys.
+    private static class CountingDBFactory implements DBFactory {
+        final AtomicInteger gets = new AtomicInteger();
+
+        @Override
+        public DB open(File path, Options options) throws IOException {
+            DB db = JniDBFactory.factory.open(path, options);
+            return (DB) Proxy.newProxyInstance(DB.class.getClassLoader(), new Class<?>[]{DB.class},
+                    (proxy, method, args) -> {
+                        if (method.getName().equals("get"))
+                            gets.incrementAndGet();
+                        try {
+                            return method.invoke(db, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+        }
+
+        @Override
+        public void destroy(File path, Options options) throws IOException {
+            JniDBFactory.factory.destroy(path, options);
+        }
+
+        @Override
+        public void repair(File path, Options options) throws IOException {
+            JniDBFactory.factory.repair(path, options);
+        }
+    }
+}
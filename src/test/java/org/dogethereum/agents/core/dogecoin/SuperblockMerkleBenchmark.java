@@ -0,0 +1,67 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PartialMerkleTree;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.MainNetParams;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares SuperblockMerkle with the PartialMerkleTree based calculation it replaced.
+ * Superblocks usually have around 60 blocks; bigger sizes matter when bootstrapping long Doge histories.
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *           -Dexec.mainClass=org.dogethereum.agents.core.dogecoin.SuperblockMerkleBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SuperblockMerkleBenchmark {
+    @Param({"60", "1000", "100000"})
+    int leafCount;
+
+    NetworkParameters params;
+    List<Sha256Hash> leaves;
+    byte[] includeBits;
+
+    @Setup
+    public void setup() {
+        params = MainNetParams.get();
+        leaves = new ArrayList<>();
+        for (int i = 0; i < leafCount; i++)
+            leaves.add(Sha256Hash.of(ByteBuffer.allocate(4).putInt(i).array()));
+        includeBits = new byte[(int) Math.ceil(leafCount / 8.0)];
+        for (int i = 0; i < leafCount; i++)
+            Utils.setBitLE(includeBits, i);
+    }
+
+    @Benchmark
+    public Sha256Hash partialMerkleTree() {
+        return PartialMerkleTree.buildFromLeaves(params, includeBits, leaves)
+                .getTxnHashAndMerkleRoot(new ArrayList<Sha256Hash>());
+    }
+
+    @Benchmark
+    public Sha256Hash superblockMerkle() {
+        return SuperblockMerkle.computeRoot(leaves);
+    }
+
+    @Benchmark
+    public Sha256Hash superblockMerkleParallel() {
+        return SuperblockMerkle.computeRoot(leaves, true);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(SuperblockMerkleBenchmark.class.getSimpleName()).build()).run();
+    }
+}
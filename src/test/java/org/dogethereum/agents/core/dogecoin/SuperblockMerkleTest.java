@@ -0,0 +1,87 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import static org.junit.Assert.*;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PartialMerkleTree;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SuperblockMerkleTest {
+    NetworkParameters params = MainNetParams.get();
+
+    private List<Sha256Hash> leaves(int count) {
+        List<Sha256Hash> leaves = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            leaves.add(Sha256Hash.of(ByteBuffer.allocate(4).putInt(i).array()));
+        return leaves;
+    }
+
+    // How Superblock used to calculate Merkle roots.
+    private Sha256Hash partialMerkleTreeRoot(List<Sha256Hash> leaves) {
+        byte[] includeBits = new byte[(int) Math.ceil(leaves.size() / 8.0)];
+        for (int i = 0; i < leaves.size(); i++)
+            Utils.setBitLE(includeBits, i);
+        PartialMerkleTree tree = PartialMerkleTree.buildFromLeaves(params, includeBits, leaves);
+        return tree.getTxnHashAndMerkleRoot(new ArrayList<Sha256Hash>());
+    }
+
+    @Test
+    public void testSmallTrees() throws Exception {
+        for (int count = 1; count <= 130; count++) {
+            List<Sha256Hash> leaves = leaves(count);
+            assertEquals("leaves: " + count, partialMerkleTreeRoot(leaves), SuperblockMerkle.computeRoot(leaves));
+        }
+    }
+
+    @Test
+    public void testLargeTrees() throws Exception {
+        for (int count : new int[]{4095, 4096, 4097, 10001}) {
+            List<Sha256Hash> leaves = leaves(count);
+            assertEquals("leaves: " + count, partialMerkleTreeRoot(leaves), SuperblockMerkle.computeRoot(leaves));
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws Exception {
+        List<Sha256Hash> leaves = leaves(2 * SuperblockMerkle.PARALLEL_THRESHOLD + 3);
+        assertEquals(SuperblockMerkle.computeRoot(leaves, false), SuperblockMerkle.computeRoot(leaves, true));
+    }
+
+    @Test
+    public void testTreeSiblings() throws Exception {
+        for (int count : new int[]{1, 2, 7, 60, 61}) {
+            List<Sha256Hash> leaves = leaves(count);
+            SuperblockMerkleTree tree = SuperblockMerkle.computeTree(leaves);
+            assertEquals(SuperblockMerkle.computeRoot(leaves), tree.getRoot());
+            for (int i = 0; i < count; i++) {
+                assertEquals("leaves: " + count + ", index: " + i,
+                        tree.getRoot(), root(leaves.get(i), i, tree.getSiblings(i)));
+            }
+        }
+    }
+
+    // Hashes a leaf up to the root the way the relay contract does.
+    private Sha256Hash root(Sha256Hash leaf, int index, List<Sha256Hash> siblings) {
+        Sha256Hash node = leaf;
+        for (Sha256Hash sibling : siblings) {
+            Sha256Hash left = index % 2 == 0 ? node : sibling;
+            Sha256Hash right = index % 2 == 0 ? sibling : node;
+            node = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(left.getReversedBytes(), 0, 32,
+                    right.getReversedBytes(), 0, 32));
+            index /= 2;
+        }
+        return node;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoLeaves() throws Exception {
+        SuperblockMerkle.computeRoot(new ArrayList<Sha256Hash>());
+    }
+}
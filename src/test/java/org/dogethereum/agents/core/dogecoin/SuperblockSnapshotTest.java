@@ -0,0 +1,235 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import static org.junit.Assert.*;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SuperblockSnapshotTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    NetworkParameters params;
+    Superblock genesis;
+    InMemorySuperblockStore source;
+    List<Superblock> chain;
+
+    @Before
+    public void init() throws Exception {
+        params = MainNetParams.get();
+        genesis = superblock(Keccak256Hash.of(new byte[32]), 0);
+        source = new InMemorySuperblockStore(genesis);
+        chain = new ArrayList<>();
+        Superblock parent = genesis;
+        for (int height = 1; height <= 25; height++) {
+            parent = superblock(parent.getSuperblockId(), height);
+            chain.add(parent);
+        }
+        source.putAll(chain, parent);
+    }
+
+    private Superblock superblock(Keccak256Hash parentId, int height) {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (int i = 0; i <= height % 4; i++)
+            hashes.add(Sha256Hash.of(new byte[]{(byte) height, (byte) i}));
+        return new Superblock(params, hashes, BigInteger.valueOf(10 * height), height, height, 0, parentId, height);
+    }
+
+    private byte[] export(long height) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SuperblockSnapshot.export(source, params.getId(), height, out);
+        return out.toByteArray();
+    }
+
+    private File exportToFile(long height) throws Exception {
+        return write(export(height));
+    }
+
+    private File write(byte[] snapshot) throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), snapshot);
+        return file;
+    }
+
+    // Offset of the storage form of the superblock at a given height within a snapshot.
+    private int payloadOffset(byte[] snapshot, long height) {
+        ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+        // Magic and format version, then network ID and last height.
+        int offset = 10 + 4;
+        offset += 2 + buffer.getShort(offset) + 8;
+        for (long h = 0; h < height; h++)
+            offset += 4 + buffer.getInt(offset);
+        return offset + 4;
+    }
+
+    // Replaces the checksum with the one of the current contents.
+    private static void rewriteChecksum(byte[] snapshot) {
+        int contentLength = snapshot.length - Sha256Hash.LENGTH;
+        System.arraycopy(Sha256Hash.hash(snapshot, 0, contentLength), 0, snapshot, contentLength,
+                Sha256Hash.LENGTH);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        InMemorySuperblockStore target = new InMemorySuperblockStore(genesis);
+        long height = SuperblockSnapshot.importInto(target, params.getId(), exportToFile(100));
+
+        assertEquals(25, height);
+        assertEquals(source.getChainHeadId(), target.getChainHeadId());
+        for (Superblock superblock : chain) {
+            Superblock imported = target.getByHeight(superblock.getSuperblockHeight());
+            assertEquals(superblock.getSuperblockId(), imported.getSuperblockId());
+            assertEquals(superblock.getDogeBlockHashes(), imported.getDogeBlockHashes());
+        }
+        Sha256Hash dogeBlockHash = chain.get(10).getDogeBlockHashes().get(0);
+        assertEquals(chain.get(10).getSuperblockId(),
+                target.getMainChainDogeBlockLocation(dogeBlockHash).getSuperblockId());
+    }
+
+    @Test
+    public void testRoundTripWithGenesisWithoutDogeBlockHashes() throws Exception {
+        // Configured genesis superblocks only have their header fields.
+        Superblock hashlessGenesis = new Superblock(genesis.getMerkleRoot(), genesis.getChainWork(),
+                genesis.getLastDogeBlockTime(), genesis.getPreviousToLastDogeBlockTime(),
+                genesis.getLastDogeBlockHash(), genesis.getLastDogeBlockBits(), genesis.getParentId(), 0);
+        source = new InMemorySuperblockStore(hashlessGenesis);
+        Superblock first = superblock(hashlessGenesis.getSuperblockId(), 1);
+        source.putAll(Collections.singletonList(first), first);
+
+        InMemorySuperblockStore target = new InMemorySuperblockStore(hashlessGenesis);
+        assertEquals(1, SuperblockSnapshot.importInto(target, params.getId(), exportToFile(100)));
+        assertEquals(first.getSuperblockId(), target.getChainHeadId());
+    }
+
+    @Test
+    public void testPartialExport() throws Exception {
+        InMemorySuperblockStore target = new InMemorySuperblockStore(genesis);
+        SuperblockSnapshot.importInto(target, params.getId(), exportToFile(7));
+        assertEquals(chain.get(6).getSuperblockId(), target.getChainHeadId());
+    }
+
+    @Test
+    public void testVerifyDetectsCorruption() throws Exception {
+        byte[] snapshot = export(100);
+        File file = folder.newFile();
+        Files.write(file.toPath(), snapshot);
+        assertTrue(SuperblockSnapshot.verify(file));
+
+        snapshot[snapshot.length / 2] ^= 1;
+        Files.write(file.toPath(), snapshot);
+        assertFalse(SuperblockSnapshot.verify(file));
+    }
+
+    @Test(expected = IOException.class)
+    public void testImportRejectsOtherNetwork() throws Exception {
+        InMemorySuperblockStore target = new InMemorySuperblockStore(genesis);
+        SuperblockSnapshot.importInto(target, "another network", exportToFile(100));
+    }
+
+    @Test(expected = IOException.class)
+    public void testImportRejectsNonEmptyStore() throws Exception {
+        SuperblockSnapshot.importInto(source, params.getId(), exportToFile(100));
+    }
+
+    @Test(expected = IOException.class)
+    public void testExportRejectsPrunedChain() throws Exception {
+        source.pruneBelow(5);
+        export(100);
+    }
+
+    @Test
+    public void testImportRejectsBadChecksum() throws Exception {
+        byte[] snapshot = export(100);
+        snapshot[snapshot.length - 1] ^= 1;
+        try {
+            SuperblockSnapshot.importInto(new InMemorySuperblockStore(genesis), params.getId(), write(snapshot));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("checksum"));
+        }
+    }
+
+    @Test
+    public void testTruncatedSnapshotWritesNothing() throws Exception {
+        byte[] snapshot = export(100);
+        InMemorySuperblockStore target = new InMemorySuperblockStore(genesis);
+        try {
+            SuperblockSnapshot.importInto(target, params.getId(),
+                    write(Arrays.copyOf(snapshot, payloadOffset(snapshot, 23))), 10);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("checksum"));
+        }
+        assertEquals(genesis.getSuperblockId(), target.getChainHeadId());
+        assertNull(target.getByHeight(1));
+    }
+
+    @Test
+    public void testImportRejectsTamperedDogeBlockHash() throws Exception {
+        byte[] snapshot = export(100);
+        // The superblock at height 23 has four Doge blocks. Its ID doesn't cover the second one.
+        int hashOffset = payloadOffset(snapshot, 23) + Superblock.DOGE_BLOCK_HASHES_PAYLOAD_OFFSET +
+                Superblock.HASH_BYTES_LENGTH;
+        snapshot[hashOffset] ^= 1;
+        rewriteChecksum(snapshot);
+        InMemorySuperblockStore target = new InMemorySuperblockStore(genesis);
+        try {
+            SuperblockSnapshot.importInto(target, params.getId(), write(snapshot));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Merkle root"));
+        }
+        assertEquals(genesis.getSuperblockId(), target.getChainHeadId());
+    }
+
+    @Test
+    public void testImportRejectsWrongLastDogeBlockHash() throws Exception {
+        byte[] snapshot = export(100);
+        // The last superblock has no child whose parent ID would give it away.
+        int hashOffset = payloadOffset(snapshot, 25) + Superblock.LAST_BLOCK_HASH_PAYLOAD_OFFSET;
+        snapshot[hashOffset] ^= 1;
+        rewriteChecksum(snapshot);
+        try {
+            SuperblockSnapshot.importInto(new InMemorySuperblockStore(genesis), params.getId(), write(snapshot));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Last Doge block hash"));
+        }
+    }
+
+    @Test
+    public void testFailedImportResetsStore() throws Exception {
+        byte[] snapshot = export(100);
+        // Superblocks up to height 20 are written before the broken one is read.
+        int heightOffset = payloadOffset(snapshot, 23) + Superblock.SUPERBLOCK_HEIGHT_PAYLOAD_OFFSET;
+        snapshot[heightOffset] ^= 1;
+        rewriteChecksum(snapshot);
+        InMemorySuperblockStore target = new InMemorySuperblockStore(genesis);
+        try {
+            SuperblockSnapshot.importInto(target, params.getId(), write(snapshot), 10);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("height 23"));
+        }
+        assertEquals(genesis.getSuperblockId(), target.getChainHeadId());
+        assertNull(target.get(chain.get(0).getSuperblockId()));
+
+        // The store can take another snapshot.
+        assertEquals(25, SuperblockSnapshot.importInto(target, params.getId(), exportToFile(100), 10));
+        assertEquals(source.getChainHeadId(), target.getChainHeadId());
+    }
+}
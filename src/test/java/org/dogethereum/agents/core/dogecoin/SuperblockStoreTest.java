@@ -0,0 +1,349 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import static org.junit.Assert.*;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Behaviour shared by every SuperblockStore. Each implementation's test extends this class
+ * and provides its store through createStore.
+ */
+public abstract class SuperblockStoreTest {
+    NetworkParameters params = MainNetParams.get();
+    SuperblockStore store;
+    Superblock genesis;
+
+    /**
+     * @return New store holding nothing but its genesis superblock.
+     * @throws Exception
+     */
+    protected abstract SuperblockStore createStore() throws Exception;
+
+    /**
+     * Closes a store and opens its data again. Stores that don't persist anything are returned as they are.
+     * @param store Store to be reopened.
+     * @return Reopened store.
+     * @throws Exception
+     */
+    protected SuperblockStore reopen(SuperblockStore store) throws Exception {
+        return store;
+    }
+
+    @Before
+    public void initStore() throws Exception {
+        store = createStore();
+        genesis = store.getChainHead();
+    }
+
+    @After
+    public void closeStore() throws Exception {
+        store.close();
+    }
+
+    Superblock superblock(Keccak256Hash parentId, long height, long work, int firstBlock) {
+        Sha256Hash first = Sha256Hash.of(new byte[]{(byte) firstBlock});
+        Sha256Hash second = Sha256Hash.of(new byte[]{(byte) (firstBlock + 1)});
+        return new Superblock(params, Arrays.asList(first, second), BigInteger.valueOf(work),
+                height, height, 0, parentId, height);
+    }
+
+    void reopen() throws Exception {
+        store = reopen(store);
+    }
+
+    static Map<Keccak256Hash, SuperblockTip> tipsById(List<SuperblockTip> tips) {
+        Map<Keccak256Hash, SuperblockTip> tipsById = new HashMap<>();
+        for (SuperblockTip tip : tips)
+            tipsById.put(tip.getSuperblockId(), tip);
+        return tipsById;
+    }
+
+    @Test
+    public void testGenesisIsChainHead() throws Exception {
+        assertEquals(genesis.getSuperblockId(), store.getChainHeadId());
+        assertEquals(0, store.getChainHeight());
+        assertEquals(genesis.getSuperblockId(), store.getMainChainSuperblockId(0));
+        assertNull(store.getMainChainChildId(genesis.getSuperblockId()));
+    }
+
+    @Test
+    public void testPutAllIndexesMainChain() throws Exception {
+        Superblock first = superblock(genesis.getSuperblockId(), 1, 10, 10);
+        Superblock second = superblock(first.getSuperblockId(), 2, 20, 20);
+        store.putAll(Arrays.asList(first, second), second);
+
+        assertEquals(second.getSuperblockId(), store.getChainHeadId());
+        assertEquals(BigInteger.valueOf(20), store.getChainHeadWork());
+        assertEquals(first.getSuperblockId(), store.getByHeight(1).getSuperblockId());
+        assertEquals(second.getSuperblockId(), store.getMainChainChildId(first.getSuperblockId()));
+
+        DogeBlockLocation location = store.getDogeBlockLocation(second.getDogeBlockHashes().get(1));
+        assertEquals(second.getSuperblockId(), location.getSuperblockId());
+        assertEquals(2, location.getSuperblockHeight());
+        assertEquals(1, location.getLeafIndex());
+    }
+
+    @Test
+    public void testReorgToShorterBranch() throws Exception {
+        Superblock first = superblock(genesis.getSuperblockId(), 1, 10, 10);
+        Superblock second = superblock(first.getSuperblockId(), 2, 20, 20);
+        store.putAll(Arrays.asList(first, second), second);
+
+        Superblock fork = superblock(genesis.getSuperblockId(), 1, 30, 30);
+        store.putAll(Collections.singletonList(fork), fork);
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals(fork.getSuperblockId(), store.getChainHeadId());
+            assertEquals(1, store.getChainHeight());
+            assertEquals(genesis.getSuperblockId(), store.getMainChainSuperblockId(0));
+            assertEquals(fork.getSuperblockId(), store.getMainChainSuperblockId(1));
+            assertNull(store.getMainChainSuperblockId(2));
+            assertNull(store.getByHeight(2));
+            // The old branch is still stored.
+            assertEquals(second.getSuperblockId(), store.get(second.getSuperblockId()).getSuperblockId());
+            reopen();
+        }
+    }
+
+    @Test
+    public void testMainChainDogeBlockLocationAfterFork() throws Exception {
+        Superblock first = superblock(genesis.getSuperblockId(), 1, 10, 10);
+        store.putAll(Collections.singletonList(first), first);
+        Sha256Hash dogeBlockHash = first.getDogeBlockHashes().get(1);
+
+        // A competing superblock with the same Doge blocks doesn't take over the main chain's entries.
+        Superblock fork = superblock(genesis.getSuperblockId(), 1, 5, 10);
+        store.put(fork);
+        DogeBlockLocation location = store.getMainChainDogeBlockLocation(dogeBlockHash);
+        assertEquals(first.getSuperblockId(), location.getSuperblockId());
+        assertEquals(1, location.getSuperblockHeight());
+        assertEquals(1, location.getLeafIndex());
+
+        // Once it's in the main chain, they point to it.
+        Superblock forkChild = superblock(fork.getSuperblockId(), 2, 20, 20);
+        store.putAll(Collections.singletonList(forkChild), forkChild);
+        assertEquals(fork.getSuperblockId(), store.getMainChainDogeBlockLocation(dogeBlockHash).getSuperblockId());
+        assertEquals(forkChild.getSuperblockId(),
+                store.getMainChainDogeBlockLocation(forkChild.getDogeBlockHashes().get(0)).getSuperblockId());
+
+        store.setChainHead(first);
+        assertEquals(first.getSuperblockId(), store.getMainChainDogeBlockLocation(dogeBlockHash).getSuperblockId());
+        assertNull(store.getMainChainDogeBlockLocation(forkChild.getDogeBlockHashes().get(0)));
+        assertEquals(forkChild.getSuperblockId(),
+                store.getDogeBlockLocation(forkChild.getDogeBlockHashes().get(0)).getSuperblockId());
+    }
+
+    @Test
+    public void testChildrenIndexesFollowReorg() throws Exception {
+        Superblock first = superblock(genesis.getSuperblockId(), 1, 10, 10);
+        Superblock second = superblock(first.getSuperblockId(), 2, 20, 20);
+        store.putAll(Arrays.asList(first, second), second);
+        assertEquals(first.getSuperblockId(), store.getMainChainChildId(genesis.getSuperblockId()));
+        assertEquals(second.getSuperblockId(), store.getMainChainChildId(first.getSuperblockId()));
+        assertNull(store.getMainChainChildId(second.getSuperblockId()));
+
+        Superblock fork = superblock(genesis.getSuperblockId(), 1, 30, 30);
+        store.putAll(Collections.singletonList(fork), fork);
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals(fork.getSuperblockId(), store.getMainChainChildId(genesis.getSuperblockId()));
+            assertNull(store.getMainChainChildId(first.getSuperblockId()));
+            assertNull(store.getMainChainChildId(fork.getSuperblockId()));
+            assertEquals(new HashSet<>(Arrays.asList(first.getSuperblockId(), fork.getSuperblockId())),
+                    new HashSet<>(store.getChildrenIds(genesis.getSuperblockId())));
+            assertEquals(Collections.singletonList(second.getSuperblockId()),
+                    store.getChildrenIds(first.getSuperblockId()));
+            assertTrue(store.getChildrenIds(second.getSuperblockId()).isEmpty());
+            reopen();
+        }
+    }
+
+    @Test
+    public void testRollBackToAncestor() throws Exception {
+        Superblock first = superblock(genesis.getSuperblockId(), 1, 10, 10);
+        Superblock second = superblock(first.getSuperblockId(), 2, 20, 20);
+        Superblock third = superblock(second.getSuperblockId(), 3, 30, 40);
+        store.putAll(Arrays.asList(first, second, third), third);
+
+        store.setChainHead(first);
+
+        assertEquals(first.getSuperblockId(), store.getChainHeadId());
+        assertEquals(first.getSuperblockId(), store.getChainHead().getSuperblockId());
+        assertNull(store.getMainChainSuperblockId(2));
+        assertNull(store.getMainChainSuperblockId(3));
+        assertNull(store.getMainChainChildId(first.getSuperblockId()));
+        assertNull(store.getMainChainChildId(second.getSuperblockId()));
+        assertNull(store.getMainChainDogeBlockLocation(third.getDogeBlockHashes().get(0)));
+        assertNotNull(store.getMainChainDogeBlockLocation(first.getDogeBlockHashes().get(0)));
+        List<SuperblockTip> tips = store.getTips();
+        assertEquals(1, tips.size());
+        assertEquals(third.getSuperblockId(), tips.get(0).getSuperblockId());
+        assertFalse(tips.get(0).isMainChain());
+        assertEquals(first.getSuperblockId(), tips.get(0).getForkPointId());
+        assertEquals(1, tips.get(0).getForkPointHeight());
+
+        // Moving forward again reindexes the branch.
+        store.setChainHead(third);
+        assertEquals(third.getSuperblockId(), store.getMainChainSuperblockId(3));
+        assertEquals(second.getSuperblockId(), store.getMainChainChildId(first.getSuperblockId()));
+        assertEquals(third.getSuperblockId(),
+                store.getMainChainDogeBlockLocation(third.getDogeBlockHashes().get(0)).getSuperblockId());
+    }
+
+    @Test
+    public void testTipsTrackBranches() throws Exception {
+        Superblock first = superblock(genesis.getSuperblockId(), 1, 10, 10);
+        Superblock second = superblock(first.getSuperblockId(), 2, 20, 20);
+        Superblock fork = superblock(first.getSuperblockId(), 2, 15, 30);
+        Superblock forkChild = superblock(fork.getSuperblockId(), 3, 16, 40);
+        Superblock otherFork = superblock(genesis.getSuperblockId(), 1, 5, 50);
+        store.putAll(Arrays.asList(first, second, fork, forkChild, otherFork), second);
+
+        Map<Keccak256Hash, SuperblockTip> tips = tipsById(store.getTips());
+        assertEquals(3, tips.size());
+        SuperblockTip mainTip = tips.get(second.getSuperblockId());
+        assertTrue(mainTip.isMainChain());
+        assertEquals(2, mainTip.getSuperblockHeight());
+        SuperblockTip forkTip = tips.get(forkChild.getSuperblockId());
+        assertFalse(forkTip.isMainChain());
+        assertEquals(3, forkTip.getSuperblockHeight());
+        assertEquals(BigInteger.valueOf(16), forkTip.getChainWork());
+        assertEquals(first.getSuperblockId(), forkTip.getForkPointId());
+        assertEquals(1, forkTip.getForkPointHeight());
+        SuperblockTip otherForkTip = tips.get(otherFork.getSuperblockId());
+        assertEquals(genesis.getSuperblockId(), otherForkTip.getForkPointId());
+        assertEquals(0, otherForkTip.getForkPointHeight());
+
+        // Storing a superblock again doesn't turn it back into a tip, and the tips survive reopening.
+        store.put(fork);
+        reopen();
+        assertEquals(tips.keySet(), tipsById(store.getTips()).keySet());
+
+        // Switching to the longest branch moves the fork points.
+        store.setChainHead(forkChild);
+        tips = tipsById(store.getTips());
+        assertTrue(tips.get(forkChild.getSuperblockId()).isMainChain());
+        assertEquals(first.getSuperblockId(), tips.get(second.getSuperblockId()).getForkPointId());
+    }
+
+    @Test
+    public void testPruneBelow() throws Exception {
+        Superblock first = superblock(genesis.getSuperblockId(), 1, 10, 10);
+        Superblock second = superblock(first.getSuperblockId(), 2, 20, 20);
+        Superblock third = superblock(second.getSuperblockId(), 3, 30, 40);
+        store.putAll(Arrays.asList(first, second, third), third);
+        // Read before pruning, so that a stale cached copy would show up.
+        assertEquals(2, store.get(first.getSuperblockId()).getDogeBlockHashes().size());
+
+        // Configured genesis superblocks don't have any Doge block hashes to drop.
+        assertEquals(genesis.getDogeBlockHashes().isEmpty() ? 1 : 2, store.pruneBelow(2));
+        assertEquals(2, store.getPrunedHeight());
+        assertTrue(store.get(first.getSuperblockId()).getDogeBlockHashes().isEmpty());
+        reopen();
+        assertEquals(2, store.getPrunedHeight());
+
+        Superblock prunedFirst = store.get(first.getSuperblockId());
+        assertTrue(prunedFirst.getDogeBlockHashes().isEmpty());
+        assertEquals(first.getSuperblockId(), prunedFirst.getSuperblockId());
+        assertEquals(first.getMerkleRoot(), prunedFirst.getMerkleRoot());
+        assertEquals(first.getLastDogeBlockHash(), prunedFirst.getLastDogeBlockHash());
+        DogeBlockLocation location = store.getMainChainDogeBlockLocation(first.getDogeBlockHashes().get(1));
+        assertEquals(first.getSuperblockId(), location.getSuperblockId());
+        assertEquals(1, location.getLeafIndex());
+
+        SuperblockChain chain = new SuperblockChain(null, new FixedConstantProvider(), params, store);
+        try {
+            chain.getMerkleTree(prunedFirst);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("pruned"));
+        }
+        Superblock keptSecond = store.get(second.getSuperblockId());
+        assertEquals(2, keptSecond.getDogeBlockHashes().size());
+        assertNotNull(chain.getMerkleTree(keptSecond));
+
+        // The chain head is never pruned, and pruning again doesn't redo anything.
+        assertEquals(1, store.pruneBelow(10));
+        assertEquals(3, store.getPrunedHeight());
+        assertEquals(0, store.pruneBelow(10));
+        assertEquals(2, store.getChainHead().getDogeBlockHashes().size());
+    }
+
+    @Test
+    public void testMerkleTreeOfSuperblockWithoutHashes() throws Exception {
+        // Configured genesis superblocks have no Doge block hashes, but nothing was pruned.
+        Superblock headerOnly = new Superblock(Sha256Hash.ZERO_HASH, Collections.emptyList(), BigInteger.ZERO,
+                0, 0, 0, Keccak256Hash.wrap(new byte[32]), 0);
+        SuperblockChain chain = new SuperblockChain(null, new FixedConstantProvider(), params, store);
+        try {
+            chain.getMerkleTree(headerOnly);
+            fail();
+        } catch (IOException e) {
+            assertFalse(e.getMessage().contains("pruned"));
+        }
+    }
+
+    @Test
+    public void testPutKeepsPrunedSuperblocksPruned() throws Exception {
+        Superblock first = superblock(genesis.getSuperblockId(), 1, 10, 10);
+        Superblock second = superblock(first.getSuperblockId(), 2, 20, 20);
+        store.putAll(Arrays.asList(first, second), second);
+        store.pruneBelow(2);
+
+        store.put(first);
+        assertTrue(store.get(first.getSuperblockId()).getDogeBlockHashes().isEmpty());
+        store.putAll(Arrays.asList(first, second), second);
+        reopen();
+        assertTrue(store.get(first.getSuperblockId()).getDogeBlockHashes().isEmpty());
+        assertEquals(2, store.getPrunedHeight());
+        assertEquals(first.getSuperblockId(),
+                store.getMainChainDogeBlockLocation(first.getDogeBlockHashes().get(0)).getSuperblockId());
+        assertEquals(second.getSuperblockId(), store.getTips().get(0).getSuperblockId());
+    }
+
+    @Test
+    public void testMainChainStream() throws Exception {
+        Superblock first = superblock(genesis.getSuperblockId(), 1, 10, 10);
+        Superblock second = superblock(first.getSuperblockId(), 2, 20, 20);
+        Superblock fork = superblock(first.getSuperblockId(), 2, 15, 30);
+        Superblock third = superblock(second.getSuperblockId(), 3, 30, 40);
+        store.putAll(Arrays.asList(first, second, fork, third), third);
+
+        try (Stream<Keccak256Hash> ids = store.getMainChainIds(1, 100)) {
+            assertEquals(Arrays.asList(first.getSuperblockId(), second.getSuperblockId(), third.getSuperblockId()),
+                    ids.collect(Collectors.toList()));
+        }
+        try (Stream<Superblock> superblocks = store.getMainChain(0, 1)) {
+            assertEquals(Arrays.asList(0L, 1L),
+                    superblocks.map(Superblock::getSuperblockHeight).collect(Collectors.toList()));
+        }
+    }
+
+    static class FixedConstantProvider implements SuperblockConstantProvider {
+        @Override
+        public BigInteger getSuperblockDuration() {
+            return BigInteger.valueOf(3600);
+        }
+
+        @Override
+        public BigInteger getSuperblockDelay() {
+            return BigInteger.valueOf(3600);
+        }
+
+        @Override
+        public BigInteger getSuperblockTimeout() {
+            return BigInteger.valueOf(300);
+        }
+    }
+}
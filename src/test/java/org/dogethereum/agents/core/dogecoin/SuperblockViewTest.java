@@ -0,0 +1,96 @@
+package org.dogethereum.agents.core.dogecoin;
+
+import static org.junit.Assert.*;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SuperblockViewTest {
+
+    private Superblock superblock(int numberOfHashes) {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (int i = 0; i < numberOfHashes; i++)
+            hashes.add(Sha256Hash.of(ByteBuffer.allocate(4).putInt(i).array()));
+        return new Superblock(SuperblockMerkle.computeRoot(hashes), hashes,
+                BigInteger.ONE.shiftLeft(200).add(BigInteger.valueOf(0x80)), 1522097077L, 1522097017L,
+                0x1a01cd2dL, Keccak256Hash.of(new byte[]{1, 2, 3}), 123456);
+    }
+
+    private SuperblockView view(Superblock superblock) throws Exception {
+        return new SuperblockView(superblock.getSuperblockId(), SuperblockEncoder.encodeForStorage(superblock));
+    }
+
+    private void assertSameHeader(Superblock superblock, SuperblockView view) throws Exception {
+        assertEquals(superblock.getSuperblockId(), view.getSuperblockId());
+        assertEquals(superblock.getMerkleRoot(), view.getMerkleRoot());
+        assertEquals(superblock.getChainWork(), view.getChainWork());
+        assertEquals(superblock.getLastDogeBlockTime(), view.getLastDogeBlockTime());
+        assertEquals(superblock.getPreviousToLastDogeBlockTime(), view.getPreviousToLastDogeBlockTime());
+        assertEquals(superblock.getLastDogeBlockHash(), view.getLastDogeBlockHash());
+        assertEquals(superblock.getLastDogeBlockBits(), view.getLastDogeBlockBits());
+        assertEquals(superblock.getParentId(), view.getParentId());
+        assertEquals(superblock.getSuperblockHeight(), view.getSuperblockHeight());
+    }
+
+    @Test
+    public void testMatchesSuperblock() throws Exception {
+        for (int numberOfHashes : new int[]{1, 2, 61}) {
+            Superblock superblock = superblock(numberOfHashes);
+            SuperblockView view = view(superblock);
+
+            assertSameHeader(superblock, view);
+            assertFalse(view.isPruned());
+            assertEquals(numberOfHashes, view.getDogeBlockHashCount());
+            byte[] copied = new byte[3 + Sha256Hash.LENGTH];
+            for (int i = 0; i < numberOfHashes; i++) {
+                Sha256Hash hash = superblock.getDogeBlockHashes().get(i);
+                assertEquals(hash, view.getDogeBlockHash(i));
+                view.copyDogeBlockHash(i, copied, 3);
+                assertArrayEquals(hash.getBytes(), Arrays.copyOfRange(copied, 3, copied.length));
+            }
+
+            Superblock decoded = view.toSuperblock();
+            assertEquals(superblock.getDogeBlockHashes(), decoded.getDogeBlockHashes());
+            assertEquals(superblock.getSuperblockId(), decoded.getSuperblockId());
+            assertArrayEquals(view.getPayload(), SuperblockEncoder.encodeForStorage(decoded));
+        }
+    }
+
+    @Test
+    public void testPruned() throws Exception {
+        Superblock superblock = superblock(5);
+        SuperblockView view = view(superblock);
+        byte[] payload = view.getPayload().clone();
+
+        SuperblockView pruned = view.pruned();
+
+        assertArrayEquals(payload, view.getPayload());
+        assertTrue(pruned.isPruned());
+        assertEquals(0, pruned.getDogeBlockHashCount());
+        assertSameHeader(superblock, pruned);
+        try {
+            pruned.getDogeBlockHash(0);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+        }
+
+        // Pruned superblocks keep their ID, since it only depends on the header.
+        Superblock decoded = pruned.toSuperblock();
+        assertTrue(decoded.getDogeBlockHashes().isEmpty());
+        assertEquals(superblock.getSuperblockId(), SuperblockEncoder.calculateId(decoded));
+        assertEquals(superblock.getLastDogeBlockHash(), decoded.getLastDogeBlockHash());
+        assertArrayEquals(pruned.getPayload(), SuperblockEncoder.encodeForStorage(decoded));
+        assertArrayEquals(pruned.getPayload(), pruned.pruned().getPayload());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testHashIndexOutOfRange() throws Exception {
+        view(superblock(3)).copyDogeBlockHash(3, new byte[Sha256Hash.LENGTH], 0);
+    }
+}
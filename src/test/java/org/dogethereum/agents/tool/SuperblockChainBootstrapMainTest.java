@@ -0,0 +1,156 @@
+package org.dogethereum.agents.tool;
+
+import static org.junit.Assert.*;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStoreException;
+import org.dogethereum.agents.core.dogecoin.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class SuperblockChainBootstrapMainTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int SUPERBLOCK_DURATION = 600;
+    // Well in the past, so that every superblock time window is closed.
+    private static final long FIRST_BLOCK_TIME = 1500000000;
+
+    NetworkParameters params;
+    Context context;
+    AltcoinLevelDBBlockStore dogeStore;
+    Superblock genesis;
+
+    @Before
+    public void init() throws Exception {
+        params = UnitTestParams.get();
+        context = new Context(params);
+        dogeStore = new AltcoinLevelDBBlockStore(context, folder.newFolder());
+        StoredBlock dogeGenesis = dogeStore.getChainHead();
+        genesis = new Superblock(params, Collections.singletonList(dogeGenesis.getHeader().getHash()),
+                dogeGenesis.getChainWork(), dogeGenesis.getHeader().getTimeSeconds(), 0,
+                dogeGenesis.getHeader().getDifficultyTarget(), Keccak256Hash.wrap(new byte[32]), 0);
+    }
+
+    @After
+    public void close() throws Exception {
+        dogeStore.close();
+    }
+
+    // Stores Doge blocks a minute apart on top of the chain head, so that there are ten per superblock.
+    private void extendDogeChain(int length) throws Exception {
+        StoredBlock parent = dogeStore.getChainHead();
+        Address coinbaseTo = new ECKey().toAddress(params);
+        for (int i = 0; i < length; i++) {
+            Block header = parent.getHeader().createNextBlock(coinbaseTo).cloneAsHeader();
+            header.setTime(FIRST_BLOCK_TIME + 60 * parent.getHeight());
+            parent = parent.build(header);
+            dogeStore.put(parent);
+            dogeStore.setChainHead(parent);
+        }
+    }
+
+    private SuperblockChain superblockChain(SuperblockStore store) throws Exception {
+        DogecoinWrapper dogecoinWrapper = new DogecoinWrapper(null) {
+            @Override
+            public StoredBlock getBlock(Sha256Hash hash) throws BlockStoreException {
+                return dogeStore.get(hash);
+            }
+
+            @Override
+            public AltcoinLevelDBBlockStore getBlockStore() {
+                return dogeStore;
+            }
+        };
+        return new SuperblockChain(dogecoinWrapper, new FixedConstantProvider(), params, store);
+    }
+
+    private static List<Keccak256Hash> mainChainIds(SuperblockStore store) throws Exception {
+        try (Stream<Keccak256Hash> ids = store.getMainChainIds(0, store.getChainHeight())) {
+            return ids.collect(Collectors.toList());
+        }
+    }
+
+    private void assertSameChains(SuperblockStore expected, SuperblockStore actual) throws Exception {
+        assertEquals(expected.getChainHeadId(), actual.getChainHeadId());
+        assertEquals(expected.getChainHeight(), actual.getChainHeight());
+        assertEquals(mainChainIds(expected), mainChainIds(actual));
+    }
+
+    @Test
+    public void testBootstrapMatchesSuperblockChain() throws Exception {
+        // Enough blocks for several batches, ending halfway through a time window.
+        extendDogeChain(125);
+        InMemorySuperblockStore expected = new InMemorySuperblockStore(genesis);
+        superblockChain(expected).storeSuperblocks(dogeStore.getChainHead());
+        InMemorySuperblockStore bootstrapped = new InMemorySuperblockStore(genesis);
+
+        long stored = SuperblockChainBootstrapMain.bootstrap(dogeStore, bootstrapped, SUPERBLOCK_DURATION,
+                new Date(), 3);
+
+        assertEquals(13, stored);
+        assertSameChains(expected, bootstrapped);
+    }
+
+    @Test
+    public void testBootstrapContinuesStoredChain() throws Exception {
+        extendDogeChain(45);
+        InMemorySuperblockStore expected = new InMemorySuperblockStore(genesis);
+        SuperblockChain chain = superblockChain(expected);
+        chain.storeSuperblocks(dogeStore.getChainHead());
+        InMemorySuperblockStore bootstrapped = new InMemorySuperblockStore(genesis);
+        SuperblockChainBootstrapMain.bootstrap(dogeStore, bootstrapped, SUPERBLOCK_DURATION, new Date(), 2);
+        assertSameChains(expected, bootstrapped);
+
+        // Both pick up from the block after the chain head's last one, even though it's in the same time window.
+        extendDogeChain(40);
+        chain.storeSuperblocks(dogeStore.getChainHead());
+        assertEquals(5, SuperblockChainBootstrapMain.bootstrap(dogeStore, bootstrapped, SUPERBLOCK_DURATION,
+                new Date(), 2));
+        assertSameChains(expected, bootstrapped);
+        assertEquals(0, SuperblockChainBootstrapMain.bootstrap(dogeStore, bootstrapped, SUPERBLOCK_DURATION,
+                new Date(), 2));
+    }
+
+    @Test
+    public void testBootstrapUsesProviderConstants() throws Exception {
+        extendDogeChain(125);
+        InMemorySuperblockStore expected = new InMemorySuperblockStore(genesis);
+        superblockChain(expected).storeSuperblocks(dogeStore.getChainHead());
+        InMemorySuperblockStore bootstrapped = new InMemorySuperblockStore(genesis);
+
+        // Same provider as the superblock chain's, so the tool can't use other windows than the agent.
+        long stored = SuperblockChainBootstrapMain.bootstrap(dogeStore, bootstrapped, new FixedConstantProvider(), 4);
+
+        assertEquals(13, stored);
+        assertSameChains(expected, bootstrapped);
+    }
+
+    private static class FixedConstantProvider implements SuperblockConstantProvider {
+        @Override
+        public BigInteger getSuperblockDuration() {
+            return BigInteger.valueOf(SUPERBLOCK_DURATION);
+        }
+
+        @Override
+        public BigInteger getSuperblockDelay() {
+            return BigInteger.valueOf(SUPERBLOCK_DURATION);
+        }
+
+        @Override
+        public BigInteger getSuperblockTimeout() {
+            return BigInteger.valueOf(300);
+        }
+    }
+}